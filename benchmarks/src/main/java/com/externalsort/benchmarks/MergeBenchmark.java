@@ -0,0 +1,98 @@
+package com.externalsort.benchmarks;
+
+import com.externalsort.MergeEngine;
+import com.externalsort.SortedFilesMerger;
+import com.externalsort.helper.CsvFilelineStack;
+import com.externalsort.helper.IStreamWrapper;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One k-way merge of CSV runs into a file, {@link SortedFilesMerger#mergeSortedFiles(List, BufferedWriter,
+ * Comparator, boolean, CSVFormat, MergeEngine)}, at several fan-ins for the same number of records.
+ * The runs are kept from one invocation to the next, opening them is part of the measured time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MergeBenchmark {
+
+    private static final Comparator<CSVRecord> BY_KEY = Comparator.comparing(r -> r.get(0));
+
+    @Param({"200000"})
+    private int rows;
+
+    @Param({"32", "256"})
+    private int rowWidth;
+
+    @Param({"2", "16", "128"})
+    private int fanIn;
+
+    @Param({"none", "deflate"})
+    private String wrapper;
+
+    @Param({"LOSER_TREE", "PRIORITY_QUEUE"})
+    private MergeEngine engine;
+
+    private IStreamWrapper streamWrapper;
+    private File[] runs;
+    private File output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        streamWrapper = StreamWrappers.of(wrapper);
+        runs = SyntheticCsv.sortedRuns(fanIn, rows, rowWidth, streamWrapper, 42);
+        output = File.createTempFile("benchmark", ".csv");
+    }
+
+    @Benchmark
+    public long mergeSortedFiles() throws IOException {
+        List<CsvFilelineStack> stacks = new ArrayList<>();
+        for (File run : runs) {
+            stacks.add(new CsvFilelineStack(new CSVParser(new BufferedReader(new InputStreamReader(
+                    streamWrapper.wrap(new FileInputStream(run)), StandardCharsets.UTF_8)), CSVFormat.DEFAULT)));
+        }
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                streamWrapper.wrap(new FileOutputStream(output)), StandardCharsets.UTF_8));
+        return SortedFilesMerger.mergeSortedFiles(stacks, writer, BY_KEY, false, CSVFormat.DEFAULT, engine);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File run : runs) {
+            run.delete();
+        }
+        output.delete();
+    }
+}
@@ -0,0 +1,94 @@
+package com.externalsort.benchmarks;
+
+import com.externalsort.BatchSortedFileProducer;
+import com.externalsort.RunGeneration;
+import com.externalsort.SortConfig;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the input and writing the sorted runs, {@link BatchSortedFileProducer#sortCsvInBatch(File, Comparator,
+ * SortConfig)}. The runs of an invocation are deleted after it, outside of the measured time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RunGenerationBenchmark {
+
+    private static final Comparator<CSVRecord> BY_KEY = Comparator.comparing(r -> r.get(0));
+
+    @Param({"200000"})
+    private int rows;
+
+    @Param({"32", "256"})
+    private int rowWidth;
+
+    @Param({"10", "1000000"})
+    private long cardinality;
+
+    @Param({"0.0", "0.9"})
+    private double presortedness;
+
+    @Param({"none", "deflate"})
+    private String wrapper;
+
+    @Param({"OBJECT_LIST", "BYTE_ARENA", "REPLACEMENT_SELECTION"})
+    private RunGeneration runGeneration;
+
+    @Param({"16777216"})
+    private long sortMemory;
+
+    private File input;
+    private SortConfig config;
+    private List<File> runs = Collections.emptyList();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        config = SortConfig.builder()
+                .wrapper(StreamWrappers.of(wrapper))
+                .runGeneration(runGeneration)
+                .memoryBudget(sortMemory)
+                .build();
+        input = SyntheticCsv.input(rows, rowWidth, cardinality, presortedness, config.getWrapper(), 42);
+    }
+
+    @Benchmark
+    public List<File> sortCsvInBatch() throws IOException {
+        runs = BatchSortedFileProducer.sortCsvInBatch(input, BY_KEY, config);
+        return runs;
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteRuns() {
+        for (File run : runs) {
+            run.delete();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        input.delete();
+    }
+}
@@ -0,0 +1,90 @@
+package com.externalsort.benchmarks;
+
+import com.externalsort.ExternalSort;
+import com.externalsort.RunGeneration;
+import com.externalsort.SortConfig;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole sort of a file, {@link ExternalSort#sortCsv(File, File, Comparator, SortConfig)}: the input is larger
+ * than the memory of the sort so it goes through the runs and the merge.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SortBenchmark {
+
+    private static final Comparator<CSVRecord> BY_KEY = Comparator.comparing(r -> r.get(0));
+
+    @Param({"500000"})
+    private int rows;
+
+    @Param({"32", "256"})
+    private int rowWidth;
+
+    @Param({"10", "1000000"})
+    private long cardinality;
+
+    @Param({"0.0", "0.9"})
+    private double presortedness;
+
+    @Param({"none", "deflate"})
+    private String wrapper;
+
+    @Param({"OBJECT_LIST", "REPLACEMENT_SELECTION"})
+    private RunGeneration runGeneration;
+
+    @Param({"1", "4"})
+    private int parallelism;
+
+    @Param({"16777216"})
+    private long sortMemory;
+
+    private File input;
+    private File output;
+    private SortConfig config;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        config = SortConfig.builder()
+                .wrapper(StreamWrappers.of(wrapper))
+                .runGeneration(runGeneration)
+                .parallelism(parallelism)
+                .memoryBudget(sortMemory)
+                .build();
+        input = SyntheticCsv.input(rows, rowWidth, cardinality, presortedness, config.getWrapper(), 42);
+        output = File.createTempFile("benchmark", ".csv");
+    }
+
+    @Benchmark
+    public long sortCsv() throws IOException {
+        return ExternalSort.sortCsv(input, output, BY_KEY, config);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        input.delete();
+        output.delete();
+    }
+}
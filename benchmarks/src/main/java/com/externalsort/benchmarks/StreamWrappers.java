@@ -0,0 +1,44 @@
+package com.externalsort.benchmarks;
+
+import com.externalsort.helper.IStreamWrapper;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The stream wrappers a benchmark is run with, by name so that they can be JMH parameters.
+ */
+class StreamWrappers {
+
+    private StreamWrappers() {
+
+    }
+
+    /**
+     * @param name "none" for the plain file streams, "deflate" for a wrapper that costs CPU on every byte
+     *             like an encrypting one would
+     */
+    static IStreamWrapper of(String name) {
+        switch (name) {
+            case "none":
+                return new IStreamWrapper() {};
+            case "deflate":
+                return new IStreamWrapper() {
+                    @Override
+                    public OutputStream wrap(OutputStream outputStream) {
+                        return new DeflaterOutputStream(outputStream, new Deflater(Deflater.BEST_SPEED), 64 * 1024);
+                    }
+
+                    @Override
+                    public InputStream wrap(InputStream inputStream) {
+                        return new InflaterInputStream(inputStream);
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("unknown wrapper " + name);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.externalsort.benchmarks;
+
+import com.externalsort.helper.IStreamWrapper;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generators of the CSV inputs of the benchmarks, two columns: a key then a random payload.
+ * The keys are fixed width so that they sort as strings like their numbers, the same seed gives the same file.
+ */
+class SyntheticCsv {
+
+    // "k" and 12 digits, a comma and CRLF follow
+    private static final int KEY_WIDTH = 13;
+
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+
+    private SyntheticCsv() {
+
+    }
+
+    /**
+     * @param rows records written
+     * @param rowWidth bytes of a line, the key and the separators included
+     * @param cardinality distinct keys
+     * @param presortedness probability of a record taking its key in ascending order, 0 for random keys
+     *                      and 1 for a sorted file
+     * @param wrapper wraps the file as the sorts wrap their input
+     * @return a temporary file deleted on exit
+     */
+    static File input(int rows, int rowWidth, long cardinality, double presortedness, IStreamWrapper wrapper,
+                      long seed) throws IOException {
+        Random random = new Random(seed);
+        File file = File.createTempFile("benchmark", ".csv");
+        file.deleteOnExit();
+        char[] payload = new char[Math.max(0, rowWidth - KEY_WIDTH - 3)];
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(wrapper.wrap(new FileOutputStream(file)),
+                StandardCharsets.UTF_8))) {
+            for (int i = 0; i < rows; i++) {
+                long key = random.nextDouble() < presortedness ? i * cardinality / rows
+                        : (long) (random.nextDouble() * cardinality);
+                writeLine(writer, key, payload, random);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Sorted runs sharing the keys 0 to rows - 1, run r holds the keys r, r + runs, r + 2 * runs...
+     * so that the merge takes its records from every run in turn.
+     * @param wrapper wraps the runs as the sorts wrap their temporary files
+     * @return temporary files deleted on exit
+     */
+    static File[] sortedRuns(int runs, int rows, int rowWidth, IStreamWrapper wrapper, long seed)
+            throws IOException {
+        Random random = new Random(seed);
+        File[] files = new File[runs];
+        char[] payload = new char[Math.max(0, rowWidth - KEY_WIDTH - 3)];
+        for (int r = 0; r < runs; r++) {
+            files[r] = File.createTempFile("benchmark", ".run");
+            files[r].deleteOnExit();
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    wrapper.wrap(new FileOutputStream(files[r])), StandardCharsets.UTF_8))) {
+                for (long key = r; key < rows; key += runs) {
+                    writeLine(writer, key, payload, random);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static void writeLine(Writer writer, long key, char[] payload, Random random) throws IOException {
+        writer.write(String.format("k%012d", key));
+        writer.write(',');
+        for (int j = 0; j < payload.length; j++) {
+            payload[j] = ALPHABET[random.nextInt(ALPHABET.length)];
+        }
+        writer.write(payload);
+        writer.write("\r\n");
+    }
+}
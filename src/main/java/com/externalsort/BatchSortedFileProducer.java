@@ -1,6 +1,14 @@
 package com.externalsort;
 
+import com.externalsort.helper.BinaryRunWriter;
+import com.externalsort.helper.CsvChunks;
+import com.externalsort.helper.CsvPrinterSink;
+import com.externalsort.helper.IOSink;
 import com.externalsort.helper.IStreamWrapper;
+import com.externalsort.helper.MappedInputStream;
+import com.externalsort.helper.RecordBuffer;
+import com.externalsort.helper.RecordCombiner;
+import com.externalsort.helper.SortKeyExtractor;
 import com.externalsort.helper.SizeCalculator;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
@@ -11,15 +19,27 @@ import org.slf4j.LoggerFactory;
 
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 public class BatchSortedFileProducer {
 
     private static final Logger LOG = LoggerFactory.getLogger(BatchSortedFileProducer.class);
 
+    private static final AtomicInteger WORKER_ID = new AtomicInteger(0);
 
     public static List<File> sortCsvInBatch(File csvFile, Comparator<CSVRecord> cmp, File tmpDirectory, Charset cs,
                                             boolean isDistinct, CSVFormat csvFormat, int excludeHeaderLines)
@@ -47,10 +67,126 @@ public class BatchSortedFileProducer {
     public static List<File> sortCsvInBatch(File csvFile, Comparator<CSVRecord> cmp, File tmpDirectory, Charset cs,
                                             boolean isDistinct, CSVFormat csvFormat, int excludeHeaderLines,
                                             IStreamWrapper wrapper) throws IOException {
+        return sortCsvInBatch(csvFile, cmp, tmpDirectory, cs, isDistinct, csvFormat, excludeHeaderLines, wrapper, 1);
+    }
 
+    /**
+     * Same as {@link #sortCsvInBatch(File, Comparator, File, Charset, boolean, CSVFormat, int, IStreamWrapper)},
+     * but when parallelism &gt; 1 the work is pipelined: the calling thread parses blocks, a pool of
+     * parallelism workers sorts and spills them, and a bounded hand-off queue keeps at most
+     * 2 * parallelism blocks in flight. The memory budget is divided between the in-flight blocks.
+     * @param parallelism number of sorting threads, 1 keeps the single threaded behaviour
+     *                    (the comparator and the wrapper must be thread safe when &gt; 1)
+     * @return result to temporary files that have to be merged later, in input order
+     * @throws IOException
+     */
+    public static List<File> sortCsvInBatch(File csvFile, Comparator<CSVRecord> cmp, File tmpDirectory, Charset cs,
+                                            boolean isDistinct, CSVFormat csvFormat, int excludeHeaderLines,
+                                            IStreamWrapper wrapper, int parallelism) throws IOException {
+        return sortCsvInBatch(csvFile, cmp, tmpDirectory, cs, isDistinct, csvFormat, excludeHeaderLines, wrapper,
+                parallelism, RunFormat.CSV);
+    }
+
+    /**
+     * Same as {@link #sortCsvInBatch(File, Comparator, File, Charset, boolean, CSVFormat, int, IStreamWrapper, int)}
+     * with an explicit encoding of the temporary files
+     * @param runFormat encoding of the runs, they must be merged with the same format
+     * @return result to temporary files that have to be merged later, in input order
+     * @throws IOException
+     */
+    public static List<File> sortCsvInBatch(File csvFile, Comparator<CSVRecord> cmp, File tmpDirectory, Charset cs,
+                                            boolean isDistinct, CSVFormat csvFormat, int excludeHeaderLines,
+                                            IStreamWrapper wrapper, int parallelism, RunFormat runFormat)
+            throws IOException {
+        return sortCsvInBatch(csvFile, cmp, tmpDirectory, cs, isDistinct, csvFormat, excludeHeaderLines, wrapper,
+                parallelism, runFormat, RunGeneration.OBJECT_LIST);
+    }
+
+    /**
+     * Same as
+     * {@link #sortCsvInBatch(File, Comparator, File, Charset, boolean, CSVFormat, int, IStreamWrapper, int, RunFormat)}
+     * with an explicit in-memory representation of the blocks
+     * @param generation how the records of a block are held before being sorted,
+     *                   {@link RunGeneration#REPLACEMENT_SELECTION} ignores parallelism
+     * @return result to temporary files that have to be merged later, in input order
+     * @throws IOException
+     */
+    public static List<File> sortCsvInBatch(File csvFile, Comparator<CSVRecord> cmp, File tmpDirectory, Charset cs,
+                                            boolean isDistinct, CSVFormat csvFormat, int excludeHeaderLines,
+                                            IStreamWrapper wrapper, int parallelism, RunFormat runFormat,
+                                            RunGeneration generation) throws IOException {
+        return sortCsvInBatch(csvFile, cmp, SortConfig.builder()
+                .tmpDirectory(tmpDirectory)
+                .charset(cs)
+                .distinct(isDistinct)
+                .csvFormat(csvFormat)
+                .headerLineNum(excludeHeaderLines)
+                .wrapper(wrapper)
+                .parallelism(Math.max(1, parallelism))
+                .runFormat(runFormat)
+                .runGeneration(generation)
+                .build());
+    }
+
+    /**
+     * Given a huge CSV file, load it by blocks, sort them in-memory and write them to temporary files
+     * that have to be merged later. The memory of the blocks is reserved from the budget of the config
+     * for the time of the call.
+     * @param csvFile input CSV file
+     * @param cmp comparator passed by user
+     * @param config tmp directory, charset, distinct, format, header lines, wrapper, parallelism,
+     *               run format, run generation and memory of the sort
+     * @return result to temporary files that have to be merged later, in input order
+     * @throws IOException
+     */
+    public static List<File> sortCsvInBatch(File csvFile, Comparator<CSVRecord> cmp, SortConfig config)
+            throws IOException {
+        MemoryBudget budget = config.getMemoryBudget();
+        long memory = config.acquireMemory();
+        try {
+            return sortCsvInBatch(csvFile, cmp, config, memory);
+        } finally {
+            budget.release(memory);
+        }
+    }
+
+    /**
+     * @param memoryLimit bytes already reserved for the blocks
+     */
+    static List<File> sortCsvInBatch(File csvFile, Comparator<CSVRecord> cmp, SortConfig config, long memoryLimit)
+            throws IOException {
+        StatsRecorder stats = config.getRecorder();
+        long start = stats.start();
+        List<File> runs = generateRuns(csvFile, cmp, withoutLimit(config), memoryLimit);
+        stats.runs(runs);
+        stats.phase(SortStats.Phase.RUN_GENERATION, start);
+        return runs;
+    }
+
+    private static List<File> generateRuns(File csvFile, Comparator<CSVRecord> cmp, SortConfig config,
+                                           long memoryLimit) throws IOException {
+        RunGeneration generation = config.getRunGeneration();
+        if (generation == RunGeneration.REPLACEMENT_SELECTION) {
+            return sortCsvByReplacementSelection(csvFile, cmp, config, memoryLimit);
+        }
+        if (config.isMappedInput()) {
+            return sortCsvInChunks(csvFile, cmp, config, memoryLimit,
+                    generation == RunGeneration.BYTE_ARENA ? ArenaBlock::new : ListBlock::new);
+        }
+        if (config.getParallelism() > 1 || generation == RunGeneration.BYTE_ARENA) {
+            return sortCsvInBlocks(csvFile, cmp, config, memoryLimit,
+                    generation == RunGeneration.BYTE_ARENA ? ArenaBlock::new : ListBlock::new);
+        }
+        SpillDirectories tmpDirectory = config.getSpillDirectories();
+        boolean isDistinct = config.isDistinct();
+        CSVFormat csvFormat = config.getCsvFormat();
+        int excludeHeaderLines = config.getHeaderLineNum();
+        IStreamWrapper wrapper = config.getSpillWrapper();
+        RunFormat runFormat = config.getRunFormat();
+        StatsRecorder stats = config.getRecorder();
         // TODO: ADD YOUR CODE HERE
         List<File> files = new ArrayList<>();
-        long blockSize = estimateBestSizeOfBlocks(estimateAvailableMemory()); // 由这个函数来评估最优的run大小
+        long blockSize = memoryLimit; // 由内存预算决定run的大小
         /*
         * AtomicLong是作用是对长整形进行原子操作。
         * 在32位操作系统中，64位的long 和 double 变量由于会被JVM当作两个分离的32位来进行操作，所以不具有原子性。
@@ -61,96 +197,1127 @@ public class BatchSortedFileProducer {
         AtomicInteger cnt = new AtomicInteger(0);
 
         // 读取给定的CSV文件,只读取给定的块大小
-        try (CSVParser parser = new CSVParser(new BufferedReader(
-                new InputStreamReader(wrapper.wrap(new FileInputStream(csvFile)), cs)),
-                CSVFormat.DEFAULT)) {
-            parser.spliterator().forEachRemaining(e -> {
-                cnt.getAndIncrement(); // cnt 变量加1
-                if (currentBlock.get() < blockSize) { // 当前得到的块数小于blockSize,最后一次读
-                    if (e.getRecordNumber() <= excludeHeaderLines) { // 读的只剩headerlines了
-                        // csv 中的头headline
-                        LOG.info("skip one header line because key is not distinct {}", e.toString());
-                    } else { // 除了headerlines还有其他数据
-                        tmpList.add(e);
-                        currentBlock.addAndGet(SizeCalculator.estimatedSizeOf(e));
+        try {
+            try (CSVParser parser = new CSVParser(new BufferedReader(
+                    new InputStreamReader(config.getWrapper().wrap(new FileInputStream(csvFile)), config.getCharset())),
+                    CSVFormat.DEFAULT)) {
+                try {
+                    parser.spliterator().forEachRemaining(e -> {
+                        cnt.getAndIncrement(); // cnt 变量加1
+                        if (currentBlock.get() < blockSize) { // 当前得到的块数小于blockSize,最后一次读
+                            if (e.getRecordNumber() <= excludeHeaderLines) { // 读的只剩headerlines了
+                                // csv 中的头headline
+                                LOG.info("skip one header line because key is not distinct {}", e.toString());
+                            } else { // 除了headerlines还有其他数据
+                                stats.rowRead();
+                                tmpList.add(e);
+                                currentBlock.addAndGet(SizeCalculator.sizeOf(e));
+                            }
+                        } else { // 当前得到的块数 大于blockSize
+                            stats.rowRead();
+                            stats.buffered(currentBlock.get());
+                            try {
+                                tmpList.add(e);
+                                files.add(sortSingleTmpFile(tmpList,cmp,tmpDirectory,isDistinct,
+                                        config.getCombiner(),csvFormat,wrapper,runFormat,config.getLimit()));
+                            } catch (IOException e1) {
+                                // 写run失败时不能丢掉这一块数据,异常要传给调用者
+                                throw new UncheckedIOException(e1);
+                            }
+                            stats.buffered(-currentBlock.get());
+                            tmpList.clear();
+                            currentBlock.getAndSet(0);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+            if (!tmpList.isEmpty()) {
+                stats.buffered(currentBlock.get());
+                files.add(sortSingleTmpFile(tmpList, cmp, tmpDirectory, isDistinct, config.getCombiner(),
+                        csvFormat, wrapper, runFormat, config.getLimit())); // 对内存中的record进行排序
+                stats.buffered(-currentBlock.get());
+            }
+        } catch (IOException | RuntimeException e) {
+            // 已经写出的run也要删掉
+            SortedFilesMerger.deleteFiles(files);
+            throw e;
+        }
+        return files;
+    }
+
+    /**
+     * Given a huge CSV file, cut it in blocks ordered by a binary key computed once per record.
+     * The blocks are kept in byte arenas, radix sorted on the keys and written as
+     * {@link RunFormat#BINARY} runs carrying their keys, to be merged with
+     * {@link SortedFilesMerger#mergeSortedRunsByKey(List, File, CSVFormat, boolean, boolean, IStreamWrapper)}.
+     * @param csvFile input CSV file
+     * @param keyExtractor computes the binary key of a record
+     * @param tmpDirectory the directory path where to save the tmp file
+     * @param cs charset to parse the file
+     * @param isDistinct if true only the first record of each key is kept
+     * @param excludeHeaderLines how many line in csv header, this should be precluded before sorting starts
+     * @param wrapper this used for Stream Wrapper, eg. some one want to use AES Stream to protect file Stream
+     * @param parallelism number of sorting threads, 1 sorts on the calling thread
+     * @return result to temporary files that have to be merged later, in input order
+     * @throws IOException
+     */
+    public static List<File> sortCsvInBatch(File csvFile, SortKeyExtractor keyExtractor, File tmpDirectory,
+                                            Charset cs, boolean isDistinct, int excludeHeaderLines,
+                                            IStreamWrapper wrapper, int parallelism) throws IOException {
+        return sortCsvInBatch(csvFile, keyExtractor, SortConfig.builder()
+                .tmpDirectory(tmpDirectory)
+                .charset(cs)
+                .distinct(isDistinct)
+                .headerLineNum(excludeHeaderLines)
+                .wrapper(wrapper)
+                .parallelism(Math.max(1, parallelism))
+                .build());
+    }
+
+    /**
+     * Same as {@link #sortCsvInBatch(File, SortKeyExtractor, File, Charset, boolean, int, IStreamWrapper, int)}
+     * with the options and the memory budget of a config, its run format and run generation are ignored
+     * @return result to temporary files that have to be merged later, in input order
+     * @throws IOException
+     */
+    public static List<File> sortCsvInBatch(File csvFile, SortKeyExtractor keyExtractor, SortConfig config)
+            throws IOException {
+        MemoryBudget budget = config.getMemoryBudget();
+        long memory = config.acquireMemory();
+        try {
+            return sortCsvInBatch(csvFile, keyExtractor, config, memory);
+        } finally {
+            budget.release(memory);
+        }
+    }
+
+    /**
+     * @param memoryLimit bytes already reserved for the blocks
+     */
+    static List<File> sortCsvInBatch(File csvFile, SortKeyExtractor keyExtractor, SortConfig config,
+                                     long memoryLimit) throws IOException {
+        SortConfig binary = config.toBuilder().runFormat(RunFormat.BINARY).limit(0).build();
+        StatsRecorder stats = config.getRecorder();
+        long start = stats.start();
+        List<File> runs = config.isMappedInput()
+                ? sortCsvInChunks(csvFile, null, binary, memoryLimit, () -> new KeyedArenaBlock(keyExtractor))
+                : sortCsvInBlocks(csvFile, null, binary, memoryLimit, () -> new KeyedArenaBlock(keyExtractor));
+        stats.runs(runs);
+        stats.phase(SortStats.Phase.RUN_GENERATION, start);
+        return runs;
+    }
+
+    /**
+     * @return the config without its limit: the runs of a file are merged in full, only the runs of
+     * {@link LimitedSort} are cut to the limit, its merge stops there
+     */
+    private static SortConfig withoutLimit(SortConfig config) {
+        return config.getLimit() == 0 ? config : config.toBuilder().limit(0).build();
+    }
+
+    /**
+     * Cut records coming from memory in sorted runs, as {@link #sortCsvInBatch(File, Comparator, SortConfig)}
+     * does for a file: with the run generation, the run format, the parallelism and the codec of the config.
+     * Memory mapped input does not apply. Each run is cut to the limit of the config, which only
+     * {@link LimitedSort} sets: the merge of the runs must stop at the limit.
+     * @param records consumed to the end, the header lines of the config are skipped by record number
+     * @param memoryLimit bytes already reserved for the blocks
+     * @return result to temporary files that have to be merged later, in input order
+     */
+    static List<File> sortRecordsInBatch(Iterator<CSVRecord> records, Comparator<CSVRecord> cmp,
+                                         SortConfig config, long memoryLimit) throws IOException {
+        StatsRecorder stats = config.getRecorder();
+        long start = stats.start();
+        List<File> runs = generateRuns(records, cmp, config, memoryLimit);
+        stats.runs(runs);
+        stats.phase(SortStats.Phase.RUN_GENERATION, start);
+        return runs;
+    }
+
+    private static List<File> generateRuns(Iterator<CSVRecord> records, Comparator<CSVRecord> cmp,
+                                           SortConfig config, long memoryLimit) throws IOException {
+        RunGeneration generation = config.getRunGeneration();
+        return generation == RunGeneration.REPLACEMENT_SELECTION
+                ? sortRecordsByReplacementSelection(records, cmp, config, memoryLimit)
+                : sortRecordsInBlocks(records, cmp, config, memoryLimit,
+                        generation == RunGeneration.BYTE_ARENA ? ArenaBlock::new : ListBlock::new);
+    }
+
+    /**
+     * Sort a file that fits in memory straight into the output, without temporary files nor merge.
+     * A file larger on disk than the memory is not read, otherwise the records are read until they reach the
+     * memory limit. Past it, with a merge, the file is not read again: the records already read are sorted and
+     * spilled as the first run, or go first through the heap of a replacement selection, the rest of the file is
+     * cut in runs by the run generation of the config, memory mapped input aside, and the runs are handed to the
+     * merge.
+     * @param outputFile the sorted output, written with the format, the wrapper and the append mode of the config
+     * @param memoryLimit bytes already reserved for the records
+     * @param merge merges the runs of a file that does not fit in memory into the output, null to give up instead
+     * @return the file lines, or -1 when the records do not fit in memory and there is no merge: nothing was
+     * written and the file has to go through the runs
+     */
+    static long sortCsvInMemory(File csvFile, File outputFile, Comparator<CSVRecord> cmp, SortConfig config,
+                                long memoryLimit, RunMerge merge) throws IOException {
+        if (csvFile.length() > memoryLimit) {
+            return merge == null ? -1 : merge.merge(sortCsvInBatch(csvFile, cmp, config, memoryLimit));
+        }
+        StatsRecorder stats = config.getRecorder();
+        long start = stats.start();
+        List<CSVRecord> records = new ArrayList<>();
+        long memoryUsed = 0;
+        List<File> runs = null;
+        try (CSVParser parser = new CSVParser(new BufferedReader(new InputStreamReader(
+                config.getWrapper().wrap(new FileInputStream(csvFile)), config.getCharset())), CSVFormat.DEFAULT)) {
+            Iterator<CSVRecord> it = parser.iterator();
+            while (it.hasNext()) {
+                CSVRecord e = it.next();
+                if (e.getRecordNumber() <= config.getHeaderLineNum()) {
+                    LOG.info("skip one header line because key is not distinct {}", e.toString());
+                    continue;
+                }
+                records.add(e);
+                memoryUsed += SizeCalculator.sizeOf(e);
+                if (memoryUsed >= memoryLimit && it.hasNext()) {
+                    LOG.debug("{} does not fit in {} bytes", csvFile.getName(), memoryLimit);
+                    if (merge == null) {
+                        stats.phase(SortStats.Phase.RUN_GENERATION, start);
+                        return -1;
                     }
-                } else { // 当前得到的块数 大于blockSize
-                    try {
-                        tmpList.add(e);
-                        files.add(sortSingleTmpFile(tmpList,cmp,tmpDirectory,isDistinct,csvFormat,wrapper));
-                    } catch (Exception e1) {
-                        LOG.warn("Error during the sort in batch",e1);
+                    runs = spillHead(records, memoryUsed, it, cmp, config, memoryLimit);
+                    break;
+                }
+            }
+        }
+        if (runs != null) {
+            stats.runs(runs);
+            stats.phase(SortStats.Phase.RUN_GENERATION, start);
+            return merge.merge(runs);
+        }
+        records.sort(cmp);
+        stats.rowsRead(records.size());
+        stats.buffered(memoryUsed);
+        stats.phase(SortStats.Phase.RUN_GENERATION, start);
+        start = stats.start();
+        long rowCnt = 0;
+        CSVRecord lastLine = null;
+        IOSink<CSVRecord> output = openOutput(outputFile, config);
+        CombiningSink combining = config.getCombiner() == null ? null
+                : new CombiningSink(output, cmp, config.getCombiner(), true);
+        try (IOSink<CSVRecord> sink = combining != null ? combining : output) {
+            for (CSVRecord csvrecord : records) {
+                if (combining == null && config.isDistinct() && lastLine != null
+                        && cmp.compare(csvrecord, lastLine) == 0) {
+                    LOG.warn("skip one line because key is not distinct {} ", csvrecord.toString());
+                    continue;
+                }
+                sink.push(csvrecord);
+                lastLine = csvrecord;
+                rowCnt++;
+            }
+        }
+        stats.buffered(-memoryUsed);
+        stats.phase(SortStats.Phase.OUTPUT, start);
+        return combining != null ? combining.count() : rowCnt;
+    }
+
+    /**
+     * Same as {@link #sortCsvInMemory(File, File, Comparator, SortConfig, long, RunMerge)} ordered by binary keys,
+     * the records are held in a byte arena with their keys and radix sorted. The runs are binary runs carrying
+     * their keys.
+     * @return the file lines, or -1 when the records do not fit in memory and there is no merge
+     */
+    static long sortCsvInMemory(File csvFile, File outputFile, SortKeyExtractor keyExtractor, SortConfig config,
+                                long memoryLimit, RunMerge merge) throws IOException {
+        if (csvFile.length() > memoryLimit) {
+            return merge == null ? -1 : merge.merge(sortCsvInBatch(csvFile, keyExtractor, config, memoryLimit));
+        }
+        StatsRecorder stats = config.getRecorder();
+        long start = stats.start();
+        RecordBuffer buffer = new RecordBuffer();
+        List<File> runs = null;
+        try (CSVParser parser = new CSVParser(new BufferedReader(new InputStreamReader(
+                config.getWrapper().wrap(new FileInputStream(csvFile)), config.getCharset())), CSVFormat.DEFAULT)) {
+            Iterator<CSVRecord> it = parser.iterator();
+            while (it.hasNext()) {
+                CSVRecord e = it.next();
+                if (e.getRecordNumber() <= config.getHeaderLineNum()) {
+                    LOG.info("skip one header line because key is not distinct {}", e.toString());
+                    continue;
+                }
+                buffer.add(e, keyExtractor.keyOf(e));
+                if (buffer.memoryUsed() >= memoryLimit && it.hasNext()) {
+                    LOG.debug("{} does not fit in {} bytes", csvFile.getName(), memoryLimit);
+                    if (merge == null) {
+                        stats.phase(SortStats.Phase.RUN_GENERATION, start);
+                        return -1;
                     }
-                    tmpList.clear();
-                    currentBlock.getAndSet(0);
+                    runs = spillHead(buffer, it, keyExtractor, config, memoryLimit);
+                    break;
                 }
-            });
+            }
         }
-        if (!tmpList.isEmpty()) {
-            files.add(sortSingleTmpFile(tmpList, cmp, tmpDirectory, isDistinct, csvFormat, wrapper)); // 对内存中的record进行排序
+        if (runs != null) {
+            stats.runs(runs);
+            stats.phase(SortStats.Phase.RUN_GENERATION, start);
+            return merge.merge(runs);
+        }
+        buffer.sortByKey();
+        stats.rowsRead(buffer.size());
+        stats.buffered(buffer.memoryUsed());
+        stats.phase(SortStats.Phase.RUN_GENERATION, start);
+        start = stats.start();
+        long rowCnt = 0;
+        try (IOSink<CSVRecord> sink = openOutput(outputFile, config)) {
+            for (int i = 0; i < buffer.size(); i++) {
+                if (config.isDistinct() && i > 0 && buffer.compareKeys(i - 1, i) == 0) {
+                    LOG.warn("skip one line because key is not distinct {} ", buffer.get(i).toString());
+                    continue;
+                }
+                sink.push(buffer.get(i));
+                rowCnt++;
+            }
+        }
+        stats.buffered(-buffer.memoryUsed());
+        stats.phase(SortStats.Phase.OUTPUT, start);
+        return rowCnt;
+    }
+
+    /**
+     * Spill the records read by an attempt to sort in memory as the first run, then cut the rest of the input in
+     * runs. With replacement selection the records read go through the heap first instead, so that a sorted input
+     * still gives a single run.
+     * @return the runs, in input order
+     */
+    private static List<File> spillHead(List<CSVRecord> head, long memoryUsed, Iterator<CSVRecord> rest,
+                                        Comparator<CSVRecord> cmp, SortConfig config, long memoryLimit)
+            throws IOException {
+        if (config.getRunGeneration() == RunGeneration.REPLACEMENT_SELECTION) {
+            return sortRecordsByReplacementSelection(concat(head, rest), cmp, withoutLimit(config), memoryLimit);
+        }
+        StatsRecorder stats = config.getRecorder();
+        stats.rowsRead(head.size());
+        stats.buffered(memoryUsed);
+        List<File> runs = new ArrayList<>();
+        try {
+            runs.add(sortSingleTmpFile(head, cmp, config.getSpillDirectories(), config.isDistinct(),
+                    config.getCombiner(), config.getCsvFormat(), config.getSpillWrapper(), config.getRunFormat(), 0));
+        } finally {
+            stats.buffered(-memoryUsed);
+        }
+        head.clear();
+        try {
+            runs.addAll(generateRuns(rest, cmp, withoutLimit(config), memoryLimit));
+        } catch (IOException | RuntimeException e) {
+            SortedFilesMerger.deleteFiles(runs);
+            throw e;
+        }
+        return runs;
+    }
+
+    /**
+     * @return the records of head then those of rest, head releases its records as they are read
+     */
+    private static Iterator<CSVRecord> concat(List<CSVRecord> head, Iterator<CSVRecord> rest) {
+        return new Iterator<CSVRecord>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < head.size() || rest.hasNext();
+            }
+
+            @Override
+            public CSVRecord next() {
+                return next < head.size() ? head.set(next++, null) : rest.next();
+            }
+        };
+    }
+
+    /**
+     * @see #spillHead(List, long, Iterator, Comparator, SortConfig, long)
+     */
+    private static List<File> spillHead(RecordBuffer head, Iterator<CSVRecord> rest, SortKeyExtractor keyExtractor,
+                                        SortConfig config, long memoryLimit) throws IOException {
+        StatsRecorder stats = config.getRecorder();
+        long memoryUsed = head.memoryUsed();
+        stats.rowsRead(head.size());
+        stats.buffered(memoryUsed);
+        List<File> runs = new ArrayList<>();
+        try {
+            runs.add(sortSingleTmpFileByKey(head, config.getSpillDirectories(), config.isDistinct(),
+                    config.getSpillWrapper(), 0));
+        } finally {
+            stats.buffered(-memoryUsed);
+        }
+        head.clear();
+        SortConfig binary = config.toBuilder().runFormat(RunFormat.BINARY).limit(0).build();
+        try {
+            runs.addAll(sortRecordsInBlocks(rest, null, binary, memoryLimit, () -> new KeyedArenaBlock(keyExtractor)));
+        } catch (IOException | RuntimeException e) {
+            SortedFilesMerger.deleteFiles(runs);
+            throw e;
+        }
+        return runs;
+    }
+
+    /**
+     * Merges the runs of a file into the output.
+     */
+    interface RunMerge {
+        /**
+         * @return the file lines
+         */
+        long merge(List<File> runs) throws IOException;
+    }
+
+    /**
+     * @return a sink printing to the output file with the format, the wrapper and the append mode of the config,
+     * or to its parts when the config cuts the output in parts
+     */
+    static IOSink<CSVRecord> openOutput(File outputFile, SortConfig config) throws IOException {
+        if (config.getPartSize() > 0) {
+            return new PartWriter(outputFile, config, f -> config.getWrapper().wrap(new FileOutputStream(f)));
+        }
+        SortedFilesMerger.createIfNotExists(outputFile);
+        return new CsvPrinterSink(new CSVPrinter(new BufferedWriter(new OutputStreamWriter(
+                config.getWrapper().wrap(new FileOutputStream(outputFile, config.isAppend())))),
+                config.getCsvFormat()));
+    }
+
+    /**
+     * Produce the runs by replacement selection: the records wait in a heap ordered by run number then by cmp,
+     * and the smallest one is written each time the heap is over the memory budget. A record smaller than the
+     * last one written cannot join the current run, it is tagged for the next one. A run ends when the heap
+     * holds only records of the next run.
+     * Random input gives runs about twice the memory, an already sorted input gives a single run.
+     * @return result to temporary files that have to be merged later, in input order
+     */
+    private static List<File> sortCsvByReplacementSelection(File csvFile, Comparator<CSVRecord> cmp,
+                                                            SortConfig config, long memoryLimit)
+            throws IOException {
+        try (CSVParser parser = new CSVParser(new BufferedReader(
+                new InputStreamReader(config.getWrapper().wrap(new FileInputStream(csvFile)),
+                        config.getCharset())), CSVFormat.DEFAULT)) {
+            return sortRecordsByReplacementSelection(parser.iterator(), cmp, config, memoryLimit);
+        }
+    }
+
+    /**
+     * @see #sortCsvByReplacementSelection(File, Comparator, SortConfig, long)
+     */
+    private static List<File> sortRecordsByReplacementSelection(Iterator<CSVRecord> records,
+                                                                Comparator<CSVRecord> cmp, SortConfig config,
+                                                                long memoryLimit) throws IOException {
+        // ties keep the input order, as the stable sort of the other run generations
+        PriorityQueue<HeapEntry> heap = new PriorityQueue<>((a, b) -> {
+            if (a.run != b.run) {
+                return Integer.compare(a.run, b.run);
+            }
+            int c = cmp.compare(a.record, b.record);
+            return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+        });
+        ReplacementSelectionRuns runs = new ReplacementSelectionRuns(cmp, config);
+        StatsRecorder stats = config.getRecorder();
+        long memoryUsed = 0;
+        long sequence = 0;
+        try {
+            while (records.hasNext()) {
+                CSVRecord e = records.next();
+                if (e.getRecordNumber() <= config.getHeaderLineNum()) {
+                    LOG.info("skip one header line because key is not distinct {}", e.toString());
+                    continue;
+                }
+                stats.rowRead();
+                HeapEntry entry = new HeapEntry(runs.runOf(e), sequence++, e);
+                heap.add(entry);
+                memoryUsed += entry.size;
+                stats.buffered(entry.size);
+                while (memoryUsed >= memoryLimit && !heap.isEmpty()) {
+                    long released = runs.write(heap.poll());
+                    memoryUsed -= released;
+                    stats.buffered(-released);
+                }
+            }
+            while (!heap.isEmpty()) {
+                long released = runs.write(heap.poll());
+                memoryUsed -= released;
+                stats.buffered(-released);
+            }
+            return runs.finish();
+        } catch (IOException | RuntimeException e) {
+            stats.buffered(-memoryUsed);
+            runs.abort();
+            throw e;
+        }
+    }
+
+    private static final class HeapEntry {
+        private final int run;
+        private final long sequence;
+        private final CSVRecord record;
+        private final long size;
+
+        HeapEntry(int run, long sequence, CSVRecord record) {
+            this.run = run;
+            this.sequence = sequence;
+            this.record = record;
+            // run, sequence, record and size fields, plus the slot of the heap
+            this.size = SizeCalculator.sizeOf(record) + SizeCalculator.align(16 + 4 + 8 + 8 + 8);
+        }
+    }
+
+    /**
+     * The runs written by replacement selection, a new file is opened each time the run number goes up.
+     */
+    private static final class ReplacementSelectionRuns {
+        private final Comparator<CSVRecord> cmp;
+        private final SpillDirectories tmpDirectories;
+        private final boolean isDistinct;
+        private final CSVFormat csvFormat;
+        private final IStreamWrapper wrapper;
+        private final RunFormat runFormat;
+        private final long limit;
+        private final RecordCombiner combiner;
+        private final List<File> files = new ArrayList<>();
+        private IOSink<CSVRecord> sink;
+        private CombiningSink combining;
+        private int currentRun;
+        private CSVRecord lastLine;
+        private long written;
+
+        ReplacementSelectionRuns(Comparator<CSVRecord> cmp, SortConfig config) {
+            this.cmp = cmp;
+            this.tmpDirectories = config.getSpillDirectories();
+            this.isDistinct = config.isDistinct();
+            this.csvFormat = config.getCsvFormat();
+            this.wrapper = config.getSpillWrapper();
+            this.runFormat = config.getRunFormat();
+            this.limit = config.getLimit();
+            this.combiner = config.getCombiner();
+        }
+
+        /**
+         * @return the run a new record can still join
+         */
+        int runOf(CSVRecord record) {
+            if (lastLine == null || cmp.compare(record, lastLine) >= 0) {
+                return currentRun;
+            }
+            return currentRun + 1;
+        }
+
+        /**
+         * @return the estimated size of the entry, released from the heap
+         */
+        long write(HeapEntry entry) throws IOException {
+            if (sink == null || entry.run != currentRun) {
+                closeRun();
+                File tmpFile = tmpDirectories.newFile("sortInBatch", ".run");
+                files.add(tmpFile);
+                IOSink<CSVRecord> run = openRun(tmpFile, tmpDirectories, csvFormat, wrapper, runFormat);
+                combining = combiner == null ? null : new CombiningSink(run, cmp, combiner, true);
+                sink = combining != null ? combining : run;
+                currentRun = entry.run;
+                lastLine = null;
+                written = 0;
+            }
+            if (combining == null && isDistinct && lastLine != null && cmp.compare(entry.record, lastLine) == 0) {
+                LOG.warn("skip one line because key is not distinct {} ", entry.record.toString());
+            } else {
+                // past the limit the run is still followed, so that it stays sorted, but not written
+                if (limit == 0 || written < limit) {
+                    sink.push(entry.record);
+                    written = combining != null ? combining.count() : written + 1;
+                }
+                lastLine = entry.record;
+            }
+            return entry.size;
+        }
+
+        List<File> finish() throws IOException {
+            closeRun();
+            LOG.debug("replacement selection wrote {} runs", files.size());
+            return files;
+        }
+
+        void abort() {
+            try {
+                closeRun();
+            } catch (IOException e) {
+                LOG.warn("Error while closing a run", e);
+            }
+            for (File f : files) {
+                if (f.exists() && !f.delete()) {
+                    LOG.warn("The file {} was not deleted", f.getName());
+                }
+            }
+        }
+
+        private void closeRun() throws IOException {
+            if (sink != null) {
+                IOSink<CSVRecord> s = sink;
+                sink = null;
+                s.close();
+            }
+        }
+    }
+
+    /**
+     * Cut the input in blocks held by a pool of reusable {@link RunBlock}s.
+     * When parallelism &gt; 1 the calling thread parses and a pool of workers sorts and spills,
+     * the pool of free blocks is the bounded hand-off: at most 2 * parallelism blocks wait or are being sorted
+     * while the parser fills another one. Otherwise the blocks are sorted on the calling thread.
+     */
+    private static List<File> sortCsvInBlocks(File csvFile, Comparator<CSVRecord> cmp, SortConfig config,
+                                              long memoryLimit, Supplier<RunBlock> blockFactory)
+            throws IOException {
+        try (CSVParser parser = new CSVParser(new BufferedReader(
+                new InputStreamReader(config.getWrapper().wrap(new FileInputStream(csvFile)),
+                        config.getCharset())), CSVFormat.DEFAULT)) {
+            return sortRecordsInBlocks(parser.iterator(), cmp, config, memoryLimit, blockFactory);
+        }
+    }
+
+    /**
+     * @see #sortCsvInBlocks(File, Comparator, SortConfig, long, Supplier)
+     */
+    private static List<File> sortRecordsInBlocks(Iterator<CSVRecord> records, Comparator<CSVRecord> cmp,
+                                                  SortConfig config, long memoryLimit,
+                                                  Supplier<RunBlock> blockFactory) throws IOException {
+        int parallelism = config.getParallelism();
+        int blocks = parallelism > 1 ? 2 * parallelism + 1 : 1;
+        long blockSize = memoryLimit / blocks;
+        BlockingQueue<RunBlock> freeBlocks = new ArrayBlockingQueue<>(blocks);
+        for (int i = 0; i < blocks; i++) {
+            freeBlocks.add(blockFactory.get());
+        }
+        ExecutorService sorters = parallelism > 1 ? newSorterPool(parallelism, blocks) : null;
+        List<Future<File>> runs = new ArrayList<>();
+        try {
+            RunBlock block = takeBlock(freeBlocks);
+            while (records.hasNext()) {
+                CSVRecord e = records.next();
+                if (e.getRecordNumber() <= config.getHeaderLineNum()) {
+                    LOG.info("skip one header line because key is not distinct {}", e.toString());
+                    continue;
+                }
+                config.getRecorder().rowRead();
+                block.add(e);
+                if (block.memoryUsed() >= blockSize) {
+                    runs.add(spillBlock(sorters, freeBlocks, block, cmp, config));
+                    block = takeBlock(freeBlocks);
+                }
+            }
+            if (!block.isEmpty()) {
+                runs.add(spillBlock(sorters, freeBlocks, block, cmp, config));
+            }
+            List<File> files = new ArrayList<>(runs.size());
+            for (Future<File> run : runs) {
+                files.add(run.get());
+            }
+            return files;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deleteRuns(runs);
+            throw new InterruptedIOException("interrupted while sorting in batch");
+        } catch (ExecutionException e) {
+            deleteRuns(runs);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Error during the sort in batch", cause);
+        } catch (IOException | RuntimeException e) {
+            deleteRuns(runs);
+            throw e;
+        } finally {
+            if (sorters != null) {
+                sorters.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Memory map the input and split it in parallelism chunks at record boundaries, each chunk is parsed
+     * straight into its own block and sorted on its own thread. The memory budget is divided between the blocks.
+     * @return result to temporary files that have to be merged later, in input order
+     */
+    private static List<File> sortCsvInChunks(File csvFile, Comparator<CSVRecord> cmp, SortConfig config,
+                                              long memoryLimit, Supplier<RunBlock> blockFactory)
+            throws IOException {
+        int parallelism = config.getParallelism();
+        long blockSize = memoryLimit / parallelism;
+        ExecutorService parsers = parallelism > 1 ? newSorterPool(parallelism, parallelism) : null;
+        List<Future<List<File>>> chunks = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(csvFile.toPath(), StandardOpenOption.READ)) {
+            long[] boundaries = CsvChunks.split(channel, parallelism, CSVFormat.DEFAULT.getQuoteCharacter(),
+                    parsers);
+            config.getRecorder().bytesRead(channel.size());
+            LOG.debug("sorting {} in {} chunks", csvFile.getName(), boundaries.length - 1);
+            for (int i = 0; i < boundaries.length - 1; i++) {
+                long start = boundaries[i];
+                long end = boundaries[i + 1];
+                boolean first = i == 0;
+                FutureTask<List<File>> chunk = new FutureTask<>(() ->
+                        sortChunk(channel, start, end, first, cmp, config, blockSize, blockFactory.get()));
+                chunks.add(chunk);
+                if (parsers == null) {
+                    chunk.run();
+                } else {
+                    parsers.execute(chunk);
+                }
+            }
+            List<File> files = new ArrayList<>();
+            for (Future<List<File>> chunk : chunks) {
+                files.addAll(chunk.get());
+            }
+            return files;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deleteChunks(chunks);
+            throw new InterruptedIOException("interrupted while sorting in chunks");
+        } catch (ExecutionException e) {
+            deleteChunks(chunks);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Error during the sort in chunks", cause);
+        } catch (IOException | RuntimeException e) {
+            deleteChunks(chunks);
+            throw e;
+        } finally {
+            if (parsers != null) {
+                parsers.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Parse one chunk of the mapped input into a block, sorting and spilling the block each time it is full.
+     * A chunk that fails removes its own runs.
+     */
+    private static List<File> sortChunk(FileChannel channel, long start, long end, boolean firstChunk,
+                                        Comparator<CSVRecord> cmp, SortConfig config, long blockSize,
+                                        RunBlock block) throws IOException {
+        List<File> files = new ArrayList<>();
+        StatsRecorder stats = config.getRecorder();
+        try (CSVParser parser = new CSVParser(new BufferedReader(new InputStreamReader(
+                new MappedInputStream(channel, start, end), config.getCharset())), CSVFormat.DEFAULT)) {
+            for (CSVRecord e : parser) {
+                if (firstChunk && e.getRecordNumber() <= config.getHeaderLineNum()) {
+                    LOG.info("skip one header line because key is not distinct {}", e.toString());
+                    continue;
+                }
+                stats.rowRead();
+                block.add(e);
+                if (block.memoryUsed() >= blockSize) {
+                    files.add(sortAndSpill(block, cmp, config));
+                    block.clear();
+                }
+            }
+            if (!block.isEmpty()) {
+                files.add(sortAndSpill(block, cmp, config));
+            }
+            return files;
+        } catch (IOException | RuntimeException e) {
+            for (File f : files) {
+                if (f.exists() && !f.delete()) {
+                    LOG.warn("The file {} was not deleted", f.getName());
+                }
+            }
+            throw e;
+        } finally {
+            block.clear();
+        }
+    }
+
+    /**
+     * Best effort removal of the runs of the chunks already sorted when another chunk fails,
+     * also used for the inputs of a {@link MultiInputSort}.
+     */
+    static void deleteChunks(List<Future<List<File>>> chunks) {
+        for (Future<List<File>> chunk : chunks) {
+            if (!chunk.cancel(true)) {
+                try {
+                    for (File f : chunk.get()) {
+                        if (f.exists() && !f.delete()) {
+                            LOG.warn("The file {} was not deleted", f.getName());
+                        }
+                    }
+                } catch (Exception ignored) {
+                    // the chunk failed itself and removed its runs
+                }
+            }
+        }
+    }
+
+    private static ExecutorService newSorterPool(int parallelism, int blocks) {
+        // the pool of free blocks is the real bound, the queue only has to be large enough to never reject
+        return new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(blocks), r -> {
+                    Thread t = new Thread(r, "externalsort-sorter-" + WORKER_ID.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    private static RunBlock takeBlock(BlockingQueue<RunBlock> freeBlocks) throws InterruptedIOException {
+        try {
+            return freeBlocks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a free block");
+        }
+    }
+
+    /**
+     * Sort and spill a full block on the sorter pool, or on the calling thread when there is no pool.
+     * The block goes back to the free blocks once written.
+     */
+    private static Future<File> spillBlock(ExecutorService sorters, BlockingQueue<RunBlock> freeBlocks,
+                                           RunBlock block, Comparator<CSVRecord> cmp, SortConfig config) {
+        FutureTask<File> run = new FutureTask<>(() -> {
+            try {
+                return sortAndSpill(block, cmp, config);
+            } finally {
+                block.clear();
+                freeBlocks.add(block);
+            }
+        });
+        if (sorters == null) {
+            run.run();
+        } else {
+            sorters.execute(run);
+        }
+        return run;
+    }
+
+    /**
+     * Sort and spill a full block, its records count as buffered until it is written.
+     */
+    private static File sortAndSpill(RunBlock block, Comparator<CSVRecord> cmp, SortConfig config)
+            throws IOException {
+        long memoryUsed = block.memoryUsed();
+        config.getRecorder().buffered(memoryUsed);
+        try {
+            return block.sortAndSpill(cmp, config);
+        } finally {
+            config.getRecorder().buffered(-memoryUsed);
+        }
+    }
+
+    /**
+     * Best effort removal of the runs already written when the pipeline fails half way.
+     */
+    private static void deleteRuns(List<Future<File>> runs) {
+        for (Future<File> run : runs) {
+            if (!run.cancel(true)) {
+                try {
+                    File f = run.get();
+                    if (f.exists() && !f.delete()) {
+                        LOG.warn("The file {} was not deleted", f.getName());
+                    }
+                } catch (Exception ignored) {
+                    // the run failed itself, nothing was returned to delete
+                }
+            }
         }
-        return files;
     }
 
     /**
      * Sort a list and save it to a temporary file
      * @param tmpList data to be sorted
      * @param cmp comparator passed by user
-     * @param tmpFolderPath the directory path where to save the tmp file
+     * @param tmpDirectories the directories where to save the tmp file
      * @param isDistinct is the comparator key is distinct which means no two record are compare == 0
      *                   if isDistinct == true, but the data is not distinct, it will ignore the duplicate key randomly
+     * @param combiner collapses the records with the same key, null to keep them. isDistinct is ignored with a combiner
      * @param csvFormat the CSV Format you want, if no idea, pass CSVFormat.DEFAULT
      * @param wrapper this used for Stream Wrapper, eg. some one want to use AES Stream to protect file Stream
+     * @param runFormat encoding of the tmp file
+     * @param limit records kept at the head of the run, 0 to keep them all
      * @return the tmp file which content is data in tmpList sorted
      * @throws IOException
      */
     private static File sortSingleTmpFile(List<CSVRecord> tmpList, Comparator<CSVRecord> cmp,
-                                          File tmpFolderPath, boolean isDistinct, CSVFormat csvFormat,
-                                          IStreamWrapper wrapper) throws IOException {
+                                          SpillDirectories tmpDirectories, boolean isDistinct, RecordCombiner combiner,
+                                          CSVFormat csvFormat, IStreamWrapper wrapper, RunFormat runFormat,
+                                          long limit) throws IOException {
         // TODO: ADD YOUR CODE HERE
         Collections.sort(tmpList,cmp);
-        File tmpFile = File.createTempFile("sortInBatch",".run",tmpFolderPath);
+        File tmpFile = tmpDirectories.newFile("sortInBatch",".run");
         CSVRecord lastLine = null;
-        try (CSVPrinter printer = new CSVPrinter(new BufferedWriter(
-                new OutputStreamWriter(wrapper.wrap(new FileOutputStream(tmpFile)))),csvFormat)) {
-            for (CSVRecord csvrecord : tmpList) {
-                if (csvrecord == null) {
-                    throw new IllegalStateException("INVALID AREA");
-                }
-                if (isDistinct && (lastLine != null && cmp.compare(csvrecord,lastLine) ==0)) { // isDistinct 标识是否是唯一键
-                    LOG.warn("skip one line because key is not distinct {} ",csvrecord.toString());
-                } else {
-                    printer.printRecord(csvrecord);
+        long written = 0;
+        IOSink<CSVRecord> run = openRun(tmpFile, tmpDirectories, csvFormat, wrapper, runFormat);
+        CombiningSink combining = combiner == null ? null : new CombiningSink(run, cmp, combiner, true);
+        IOSink<CSVRecord> sink = combining != null ? combining : run;
+        try {
+            try {
+                for (CSVRecord csvrecord : tmpList) {
+                    if (csvrecord == null) {
+                        throw new IllegalStateException("INVALID AREA");
+                    }
+                    if (combining == null && isDistinct && (lastLine != null && cmp.compare(csvrecord,lastLine) ==0)) { // isDistinct 标识是否是唯一键
+                        LOG.warn("skip one line because key is not distinct {} ",csvrecord.toString());
+                    } else {
+                        sink.push(csvrecord);
+                        lastLine = csvrecord;
+                        // a combined key is counted once the next key starts
+                        written = combining != null ? combining.count() : written + 1;
+                        if (limit > 0 && written >= limit) {
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                sink.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            deleteRun(tmpFile);
+            throw e;
+        }
+        return tmpFile;
+    }
+
+    /**
+     * Sort a record buffer and save it to a temporary file, binary runs are copied without decoding the records
+     * unless they are combined
+     * @see #sortSingleTmpFile(List, Comparator, SpillDirectories, boolean, RecordCombiner, CSVFormat, IStreamWrapper,
+     * RunFormat, long)
+     */
+    private static File sortSingleTmpFile(RecordBuffer buffer, Comparator<CSVRecord> cmp,
+                                          SpillDirectories tmpDirectories, boolean isDistinct, RecordCombiner combiner,
+                                          CSVFormat csvFormat, IStreamWrapper wrapper, RunFormat runFormat,
+                                          long limit) throws IOException {
+        buffer.sort(cmp);
+        File tmpFile = tmpDirectories.newFile("sortInBatch",".run");
+        CSVRecord lastLine = null;
+        long written = 0;
+        IOSink<CSVRecord> run = openRun(tmpFile, tmpDirectories, csvFormat, wrapper, runFormat);
+        CombiningSink combining = combiner == null ? null : new CombiningSink(run, cmp, combiner, true);
+        IOSink<CSVRecord> sink = combining != null ? combining : run;
+        BinaryRunWriter binary = sink instanceof BinaryRunWriter ? (BinaryRunWriter) sink : null;
+        try {
+            try {
+                for (int i = 0; i < buffer.size() && (limit == 0 || written < limit); i++) {
+                    CSVRecord csvrecord = binary == null || isDistinct ? buffer.get(i) : null;
+                    if (combining == null && isDistinct
+                            && (lastLine != null && cmp.compare(csvrecord, lastLine) == 0)) {
+                        LOG.warn("skip one line because key is not distinct {} ", csvrecord.toString());
+                        continue;
+                    }
+                    if (binary != null) {
+                        buffer.writeTo(binary, i);
+                    } else {
+                        sink.push(csvrecord);
+                    }
                     lastLine = csvrecord;
+                    written = combining != null ? combining.count() : written + 1;
                 }
+            } finally {
+                sink.close();
             }
+        } catch (IOException | RuntimeException e) {
+            deleteRun(tmpFile);
+            throw e;
         }
         return tmpFile;
     }
 
     /**
-     * This method calls the garbage collector and then returns the free
-     * memory. This avoids problems with applications where the GC hasn't
-     * reclaimed memory and reports no available memory.
-     *
-     * @return available memory
+     * Radix sort a record buffer on the keys of its records and copy it to a binary run.
      */
-    private static long estimateAvailableMemory() {
-        System.gc();
-        return Runtime.getRuntime().freeMemory();
+    private static File sortSingleTmpFileByKey(RecordBuffer buffer, SpillDirectories tmpDirectories, boolean isDistinct,
+                                               IStreamWrapper wrapper, long limit) throws IOException {
+        buffer.sortByKey();
+        File tmpFile = tmpDirectories.newFile("sortInBatch",".run");
+        long written = 0;
+        try (BinaryRunWriter writer = new BinaryRunWriter(wrapper.wrap(tmpDirectories.create(tmpFile)))) {
+            for (int i = 0; i < buffer.size() && (limit == 0 || written < limit); i++) {
+                if (isDistinct && i > 0 && buffer.compareKeys(i - 1, i) == 0) {
+                    LOG.warn("skip one line because key is not distinct {} ", buffer.get(i).toString());
+                    continue;
+                }
+                buffer.writeTo(writer, i);
+                written++;
+            }
+        } catch (IOException | RuntimeException e) {
+            deleteRun(tmpFile);
+            throw e;
+        }
+        return tmpFile;
     }
 
     /**
-     * we divide the file into small blocks. If the blocks are too small, we
-     * shall create too many temporary files. If they are too big, we shall
-     * be using too much memory. So avoid to have OutofMemoryError, we choose maxMemory/6
-     * as a block size
-     *
-     * @param maxMemory Maximum memory to use (in bytes)
-     * @return the estimate
+     * Write records already sorted, and already combined with the combiner of the config, to a new run.
+     * @return the run, in the run format of the config
      */
-    private static long estimateBestSizeOfBlocks(final long maxMemory) {
-        return maxMemory / 2;
+    static File writeRun(Iterable<CSVRecord> sorted, SortConfig config) throws IOException {
+        File tmpFile = config.getSpillDirectories().newFile("sortInBatch", ".run");
+        try (IOSink<CSVRecord> sink = openRun(tmpFile, config.getSpillDirectories(), config.getCsvFormat(),
+                config.getSpillWrapper(), config.getRunFormat())) {
+            for (CSVRecord csvrecord : sorted) {
+                sink.push(csvrecord);
+            }
+        } catch (IOException | RuntimeException e) {
+            deleteRun(tmpFile);
+            throw e;
+        }
+        config.getRecorder().runs(Collections.singletonList(tmpFile));
+        return tmpFile;
+    }
+
+    /**
+     * Delete a run whose writing failed.
+     */
+    private static void deleteRun(File tmpFile) {
+        if (!tmpFile.delete()) {
+            LOG.warn("The file {} was not deleted", tmpFile.getName());
+        }
+    }
+
+    private static IOSink<CSVRecord> openRun(File tmpFile, SpillDirectories tmpDirectories, CSVFormat csvFormat,
+                                             IStreamWrapper wrapper, RunFormat runFormat) throws IOException {
+        OutputStream outputStream = wrapper.wrap(tmpDirectories.create(tmpFile));
+        if (runFormat == RunFormat.BINARY) {
+            return new BinaryRunWriter(outputStream);
+        }
+        IOSink<CSVRecord> csv = new CsvPrinterSink(new CSVPrinter(new BufferedWriter(
+                new OutputStreamWriter(outputStream)), csvFormat));
+        // a single CSV run may become the output, its records are counted here rather than read back
+        return new IOSink<CSVRecord>() {
+            private long records;
+
+            @Override
+            public void push(CSVRecord record) throws IOException {
+                csv.push(record);
+                records++;
+            }
+
+            @Override
+            public void close() throws IOException {
+                csv.close();
+                tmpDirectories.recordCount(tmpFile, records);
+            }
+        };
+    }
+
+    /**
+     * A block of records waiting to be sorted and spilled, instances are reused from one block to the next.
+     */
+    private interface RunBlock {
+        void add(CSVRecord record);
+
+        long memoryUsed();
+
+        boolean isEmpty();
+
+        File sortAndSpill(Comparator<CSVRecord> cmp, SortConfig config) throws IOException;
+
+        void clear();
+    }
+
+    private static class ListBlock implements RunBlock {
+        private final List<CSVRecord> records = new ArrayList<>();
+        private long measuredSize;
+
+        @Override
+        public void add(CSVRecord record) {
+            records.add(record);
+            measuredSize += SizeCalculator.sizeOf(record);
+        }
+
+        @Override
+        public long memoryUsed() {
+            return measuredSize;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return records.isEmpty();
+        }
+
+        @Override
+        public File sortAndSpill(Comparator<CSVRecord> cmp, SortConfig config) throws IOException {
+            return sortSingleTmpFile(records, cmp, config.getSpillDirectories(), config.isDistinct(),
+                    config.getCombiner(), config.getCsvFormat(), config.getSpillWrapper(), config.getRunFormat(),
+                    config.getLimit());
+        }
+
+        @Override
+        public void clear() {
+            records.clear();
+            measuredSize = 0;
+        }
+    }
+
+    private static class ArenaBlock implements RunBlock {
+        private final RecordBuffer buffer = new RecordBuffer();
+
+        @Override
+        public void add(CSVRecord record) {
+            buffer.add(record);
+        }
+
+        @Override
+        public long memoryUsed() {
+            return buffer.memoryUsed();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return buffer.isEmpty();
+        }
+
+        @Override
+        public File sortAndSpill(Comparator<CSVRecord> cmp, SortConfig config) throws IOException {
+            return sortSingleTmpFile(buffer, cmp, config.getSpillDirectories(), config.isDistinct(),
+                    config.getCombiner(), config.getCsvFormat(), config.getSpillWrapper(), config.getRunFormat(),
+                    config.getLimit());
+        }
+
+        @Override
+        public void clear() {
+            buffer.clear();
+        }
+    }
+
+    private static class KeyedArenaBlock implements RunBlock {
+        private final RecordBuffer buffer = new RecordBuffer();
+        private final SortKeyExtractor keyExtractor;
+
+        KeyedArenaBlock(SortKeyExtractor keyExtractor) {
+            this.keyExtractor = keyExtractor;
+        }
+
+        @Override
+        public void add(CSVRecord record) {
+            buffer.add(record, keyExtractor.keyOf(record));
+        }
+
+        @Override
+        public long memoryUsed() {
+            return buffer.memoryUsed();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return buffer.isEmpty();
+        }
+
+        @Override
+        public File sortAndSpill(Comparator<CSVRecord> cmp, SortConfig config) throws IOException {
+            return sortSingleTmpFileByKey(buffer, config.getSpillDirectories(), config.isDistinct(),
+                    config.getSpillWrapper(), config.getLimit());
+        }
+
+        @Override
+        public void clear() {
+            buffer.clear();
+        }
     }
 
 }
@@ -0,0 +1,75 @@
+package com.externalsort;
+
+import com.externalsort.helper.IOSink;
+import com.externalsort.helper.RecordCombiner;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.IOException;
+import java.util.Comparator;
+
+/**
+ * A sink combining the consecutive records with the same key before passing them on, the records are pushed
+ * in sort order. The last key is held until the next one starts, or until {@link #flush()}.
+ * This class is not thread safe.
+ */
+class CombiningSink implements IOSink<CSVRecord> {
+
+    private final IOSink<CSVRecord> sink;
+    private final Comparator<CSVRecord> cmp;
+    private final RecordCombiner combiner;
+    private final boolean isInput;
+    private CSVRecord pending;
+    private long count;
+
+    /**
+     * @param isInput true when the records come from the input, {@link RecordCombiner#init(CSVRecord)} is called
+     *                on them, false when they are already partial results
+     */
+    CombiningSink(IOSink<CSVRecord> sink, Comparator<CSVRecord> cmp, RecordCombiner combiner, boolean isInput) {
+        this.sink = sink;
+        this.cmp = cmp;
+        this.combiner = combiner;
+        this.isInput = isInput;
+    }
+
+    @Override
+    public void push(CSVRecord record) throws IOException {
+        CSVRecord partial = isInput ? combiner.init(record) : record;
+        if (pending != null && cmp.compare(pending, partial) == 0) {
+            pending = combiner.combine(pending, partial);
+        } else {
+            flush();
+            pending = partial;
+        }
+    }
+
+    /**
+     * Pass the held record on, the next record starts a new key.
+     */
+    void flush() throws IOException {
+        if (pending != null) {
+            sink.push(pending);
+            pending = null;
+            count++;
+        }
+    }
+
+    /**
+     * @return the records passed on so far
+     */
+    long count() {
+        return count;
+    }
+
+    /**
+     * Flush then close the underlying sink.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            sink.close();
+        }
+    }
+}
@@ -1,19 +1,37 @@
 package com.externalsort;
 
+import com.externalsort.helper.CloseableIterator;
+import com.externalsort.helper.CoGrouper;
+import com.externalsort.helper.CsvFilelineStack;
 import com.externalsort.helper.IStreamWrapper;
+import com.externalsort.helper.SizeCalculator;
+import com.externalsort.helper.SortKeyExtractor;
+import com.externalsort.helper.SortKeys;
 import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
 
 public class ExternalSort {
 
-    private static final File TMP_DIR = new File(System.getProperty("java.io.tmpdir"));
-
     private static final IStreamWrapper DEFAULT_WRAPPER = new IStreamWrapper() {};
 
     /**
@@ -34,10 +52,573 @@ public class ExternalSort {
     public static long sortCsv(File inCsvFile, File outCsvFile, Comparator<CSVRecord> comparator, boolean isDistinct,
                                boolean isAppend, Charset cs, CSVFormat csvFormat, int headerLineNum,
                                IStreamWrapper wrapper) throws IOException {
-        List<File> tmpFiles = BatchSortedFileProducer.sortCsvInBatch(inCsvFile, comparator, TMP_DIR,
-                cs, isDistinct, csvFormat, headerLineNum, wrapper);
-        return SortedFilesMerger.mergeSortedCsvFiles(tmpFiles, outCsvFile, csvFormat, comparator, isDistinct,
-                isAppend, wrapper);
+        return sortCsv(inCsvFile, outCsvFile, comparator, isDistinct, isAppend, cs, csvFormat, headerLineNum,
+                wrapper, 1);
+    }
+
+    /**
+     * sort a csv file, the sorted runs are produced by a pipeline of one parser thread and
+     * parallelism sorting threads
+     * @param parallelism number of threads sorting and spilling runs, 1 to sort on the calling thread;
+     *                    when &gt; 1 the comparator and the wrapper must be thread safe
+     * @see #sortCsv(File, File, Comparator, boolean, boolean, Charset, CSVFormat, int, IStreamWrapper)
+     */
+    public static long sortCsv(File inCsvFile, File outCsvFile, Comparator<CSVRecord> comparator, boolean isDistinct,
+                               boolean isAppend, Charset cs, CSVFormat csvFormat, int headerLineNum,
+                               IStreamWrapper wrapper, int parallelism) throws IOException {
+        return sortCsv(inCsvFile, outCsvFile, comparator, isDistinct, isAppend, cs, csvFormat, headerLineNum,
+                wrapper, parallelism, RunGeneration.OBJECT_LIST);
+    }
+
+    /**
+     * sort a csv file with an explicit in-memory representation of the blocks during the run generation
+     * @param generation how the records are held in memory before being sorted,
+     *                   {@link RunGeneration#BYTE_ARENA} fits many more records in the same heap,
+     *                   {@link RunGeneration#REPLACEMENT_SELECTION} writes longer runs, a single one when
+     *                   the input is nearly sorted
+     * @see #sortCsv(File, File, Comparator, boolean, boolean, Charset, CSVFormat, int, IStreamWrapper, int)
+     */
+    public static long sortCsv(File inCsvFile, File outCsvFile, Comparator<CSVRecord> comparator, boolean isDistinct,
+                               boolean isAppend, Charset cs, CSVFormat csvFormat, int headerLineNum,
+                               IStreamWrapper wrapper, int parallelism, RunGeneration generation) throws IOException {
+        return sortCsv(inCsvFile, outCsvFile, comparator, config(isDistinct, isAppend, cs, csvFormat, headerLineNum,
+                wrapper, parallelism).runGeneration(generation).build());
+    }
+
+    /**
+     * sort a csv file with the options of a config.
+     * The memory of the sort is reserved from the budget of the config before reading the input, it is used
+     * by the blocks of the run generation then by the stream buffers of the merge, and released at the end.
+     * An input that fits in the memory is sorted in memory and written straight to the output, a single CSV run
+     * is renamed to the output. With more than one partition the key ranges are sorted at the same time and
+     * concatenated instead of merged, see {@link SortConfig.Builder#partitions(int)}. With a limit only the first
+     * records are kept during the scan of the input, see {@link SortConfig.Builder#limit(long)}. With a job id a sort
+     * that failed resumes from its last runs and merges, see {@link SortConfig.Builder#jobId(String)}.
+     * The statistics of the sort are published to the listener of the config,
+     * see {@link SortConfig.Builder#listener(SortListener)}.
+     * @param inCsvFile Input CSV File
+     * @param outCsvFile Sorted Output CSV File
+     * @param comparator comparator passed by user about CSVRecord key to be sorted by
+     * @param config the options of the sort, see {@link SortConfig#builder()}
+     * @return the file lines
+     * @throws IOException
+     */
+    public static long sortCsv(File inCsvFile, File outCsvFile, Comparator<CSVRecord> comparator, SortConfig config)
+            throws IOException {
+        SortConfig sort = config.newSort();
+        long rowCnt = sortCsvFile(inCsvFile, outCsvFile, sort.getRecorder().counting(comparator), sort);
+        sort.publish(rowCnt);
+        return rowCnt;
+    }
+
+    private static long sortCsvFile(File inCsvFile, File outCsvFile, Comparator<CSVRecord> comparator,
+                                    SortConfig config) throws IOException {
+        MemoryBudget budget = config.getMemoryBudget();
+        long memory = config.acquireMemory();
+        ExecutorService mergers = newMergerPool(config.getParallelism());
+        try {
+            if (config.getLimit() > 0) {
+                return LimitedSort.sortCsv(inCsvFile, outCsvFile, comparator, config, mergers, memory);
+            }
+            boolean partitioned = config.getPartitions() > 1 && config.getPartSize() == 0;
+            if (config.getJobId() == null && !partitioned) {
+                // sorted in memory, else the records already read are the first run and the file is read once
+                return BatchSortedFileProducer.sortCsvInMemory(inCsvFile, outCsvFile, comparator, config, memory,
+                        runs -> runs.size() == 1 && SortedFilesMerger.isCopyable(config)
+                                ? SortedFilesMerger.moveSingleRun(runs.get(0), outCsvFile, config)
+                                : SortedFilesMerger.mergeSortedCsvFiles(runs, outCsvFile, comparator, config,
+                                mergers, memory));
+            }
+            long inMemory = BatchSortedFileProducer.sortCsvInMemory(inCsvFile, outCsvFile, comparator, config, memory,
+                    null);
+            if (inMemory >= 0) {
+                return inMemory;
+            }
+            if (config.getJobId() != null) {
+                return ResumableSort.sortCsv(inCsvFile, config, memory, "comparator",
+                        (jobConfig, m) -> BatchSortedFileProducer.sortCsvInBatch(inCsvFile, comparator, jobConfig, m),
+                        (runs, jobConfig, m) -> runs.size() == 1 && SortedFilesMerger.isCopyable(jobConfig)
+                                ? SortedFilesMerger.moveSingleRun(runs.get(0), outCsvFile, jobConfig)
+                                : SortedFilesMerger.mergeSortedCsvFiles(runs, outCsvFile, comparator, jobConfig,
+                                mergers, m));
+            }
+            return PartitionedSort.sortCsv(inCsvFile, outCsvFile, comparator, config, memory);
+        } finally {
+            if (mergers != null) {
+                mergers.shutdown();
+            }
+            budget.release(memory);
+        }
+    }
+
+    /**
+     * sort several csv files into one output, eg. the shards of a job, without concatenating them first.
+     * The inputs are cut in runs at the same time, parallelism of them at once, each one skipping its own header
+     * lines, then the runs of all the inputs go to a single merge, where the records of the earlier inputs come
+     * first among the same keys. A single input is sorted as by {@link #sortCsv(File, File, Comparator, SortConfig)}.
+     * @param inCsvFiles Input CSV Files, see {@link #listFiles(File, String)} to take them from a glob
+     * @param outCsvFile Sorted Output CSV File
+     * @param comparator comparator passed by user about CSVRecord key to be sorted by
+     * @param config the options of the sort, see {@link SortConfig#builder()}. The sort in memory, limit,
+     *               partitions and job id do not apply to several inputs
+     * @return the file lines
+     * @throws IOException
+     */
+    public static long sortCsv(List<File> inCsvFiles, File outCsvFile, Comparator<CSVRecord> comparator,
+                               SortConfig config) throws IOException {
+        SortConfig sort = config.newSort();
+        Comparator<CSVRecord> counting = sort.getRecorder().counting(comparator);
+        long rowCnt = inCsvFiles.size() == 1 ? sortCsvFile(inCsvFiles.get(0), outCsvFile, counting, sort)
+                : sortCsvFiles(inCsvFiles, outCsvFile, counting, sort);
+        sort.publish(rowCnt);
+        return rowCnt;
+    }
+
+    private static long sortCsvFiles(List<File> inCsvFiles, File outCsvFile, Comparator<CSVRecord> comparator,
+                                     SortConfig config) throws IOException {
+        MemoryBudget budget = config.getMemoryBudget();
+        long memory = config.acquireMemory();
+        ExecutorService mergers = newMergerPool(config.getParallelism());
+        try {
+            List<File> runs = MultiInputSort.generateRuns(inCsvFiles, config, memory, (input, inputConfig, m) ->
+                    BatchSortedFileProducer.sortCsvInBatch(input, comparator, inputConfig, m));
+            return SortedFilesMerger.mergeSortedCsvFiles(runs, outCsvFile, comparator, config, mergers, memory);
+        } finally {
+            if (mergers != null) {
+                mergers.shutdown();
+            }
+            budget.release(memory);
+        }
+    }
+
+    /**
+     * @param directory where the input files are
+     * @param glob pattern of the names of the input files, eg. "part-*.csv"
+     * @return the files of the directory matching the glob, sorted by name
+     * @throws IOException
+     */
+    public static List<File> listFiles(File directory, String glob) throws IOException {
+        List<File> files = new ArrayList<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory.toPath(), glob)) {
+            for (Path path : paths) {
+                if (Files.isRegularFile(path)) {
+                    files.add(path.toFile());
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * merge new unsorted records into a CSV file already sorted by the same comparator, eg. a daily batch into
+     * the sorted history: only the new input is cut in sorted runs, the sorted file is read once as one more
+     * input of the final merge, so the cost follows the size of the new input plus one sequential pass over the
+     * sorted file instead of a sort of both. The sorted file is read as the new input is, through the wrapper and
+     * skipping the header lines of the config, and its records come first among the records with the same key.
+     * The statistics of the sort are published to the listener of the config, its rows read are the new ones.
+     * @param sortedCsvFile CSV file sorted by the comparator, left as it is unless it is also the output
+     * @param newCsvFile Input CSV File of the new records
+     * @param outCsvFile Sorted Output CSV File, may be the sorted file: the output is then written next to it and
+     *                   renamed over it once complete
+     * @param comparator comparator the sorted file was sorted by
+     * @param config the options of the sort, see {@link SortConfig#builder()}, with
+     *               {@link SortConfig.Builder#verifySorted(boolean)} to check the sorted file as it is read.
+     *               Limit, partitions and job id do not apply
+     * @return the file lines
+     * @throws IOException
+     */
+    public static long sortCsvIncremental(File sortedCsvFile, File newCsvFile, File outCsvFile,
+                                          Comparator<CSVRecord> comparator, SortConfig config) throws IOException {
+        boolean inPlace = outCsvFile.exists() && Files.isSameFile(sortedCsvFile.toPath(), outCsvFile.toPath());
+        if (inPlace && config.isAppend()) {
+            throw new IllegalArgumentException("the sorted file cannot be appended to itself: " + outCsvFile);
+        }
+        File target = inPlace ? File.createTempFile("incremental", ".csv", outCsvFile.getAbsoluteFile()
+                .getParentFile()) : outCsvFile;
+        // the merge writes all the records, a limit would drop those of the sorted file
+        SortConfig sort = config.newSort().toBuilder().limit(0).build();
+        long rowCnt;
+        try {
+            rowCnt = sortCsvIncrementalFile(sortedCsvFile, newCsvFile, target,
+                    sort.getRecorder().counting(comparator), sort);
+            if (inPlace) {
+                Files.move(target.toPath(), outCsvFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            if (inPlace) {
+                Files.deleteIfExists(target.toPath());
+            }
+        }
+        sort.publish(rowCnt);
+        return rowCnt;
+    }
+
+    private static long sortCsvIncrementalFile(File sortedCsvFile, File newCsvFile, File outCsvFile,
+                                               Comparator<CSVRecord> comparator, SortConfig config)
+            throws IOException {
+        MemoryBudget budget = config.getMemoryBudget();
+        long memory = config.acquireMemory();
+        ExecutorService mergers = newMergerPool(config.getParallelism());
+        try {
+            List<File> runs = BatchSortedFileProducer.sortCsvInBatch(newCsvFile, comparator, config, memory);
+            return SortedFilesMerger.mergeIntoSortedFile(sortedCsvFile, runs, outCsvFile, comparator, config,
+                    mergers, memory);
+        } finally {
+            if (mergers != null) {
+                mergers.shutdown();
+            }
+            budget.release(memory);
+        }
+    }
+
+    /**
+     * sort records coming from memory, eg. the output of a previous step of a pipeline, without writing them
+     * to a CSV file first. The records are consumed by this call and cut in runs as a file would be, the merge
+     * is lazy: the sorted records are read from the runs as the returned iterator is consumed, so they are never
+     * written to a CSV file either. Records that fit in the memory of the sort are sorted in memory.
+     * The memory reserved from the budget of the config and the runs are held until the iterator is closed, by
+     * default the sort reserves a quarter of the budget so that up to four of them can be open at once, eg. the
+     * stages of a pipeline consumed on the same thread, see {@link SortConfig.Builder#sortMemory(long)}.
+     * @param records the records to sort, all of them: the header lines of the config are not skipped
+     * @param comparator comparator passed by user about CSVRecord key to be sorted by
+     * @param config the options of the sort, its output format, append mode, partitions, limit and memory mapped
+     *               input do not apply
+     * @return the sorted records, to be closed
+     * @throws IOException
+     */
+    public static CloseableIterator<CSVRecord> sort(Iterator<CSVRecord> records, Comparator<CSVRecord> comparator,
+                                                    SortConfig config) throws IOException {
+        SortConfig streaming = config.newSort().toBuilder().headerLineNum(0).limit(0).build();
+        StatsRecorder stats = streaming.getRecorder();
+        Comparator<CSVRecord> cmp = stats.counting(comparator);
+        MemoryBudget budget = config.getMemoryBudget();
+        long memory = config.acquireLazyMemory();
+        Runnable release = () -> budget.release(memory);
+        try {
+            // the head of the input is kept in memory, it is sorted there when the input ends before the limit
+            Deque<CSVRecord> head = new ArrayDeque<>();
+            long memoryUsed = 0;
+            while (memoryUsed < memory && records.hasNext()) {
+                CSVRecord e = records.next();
+                head.add(e);
+                memoryUsed += SizeCalculator.sizeOf(e);
+            }
+            if (!records.hasNext()) {
+                long start = stats.start();
+                List<CSVRecord> sorted = new ArrayList<>(head);
+                if (config.getCombiner() != null) {
+                    sorted.replaceAll(config.getCombiner()::init);
+                }
+                sorted.sort(cmp);
+                stats.rowsRead(sorted.size());
+                // held until the iterator is closed
+                stats.buffered(memoryUsed);
+                stats.phase(SortStats.Phase.RUN_GENERATION, start);
+                return published(new MergeIterator(Collections.singletonList(new CsvFilelineStack(
+                        sorted.iterator())), cmp, config.isDistinct(), config.getCombiner(), release), streaming);
+            }
+            Iterator<CSVRecord> all = new Iterator<CSVRecord>() {
+                @Override
+                public boolean hasNext() {
+                    return !head.isEmpty() || records.hasNext();
+                }
+
+                @Override
+                public CSVRecord next() {
+                    // the head is released as the blocks are filled
+                    return head.isEmpty() ? records.next() : head.poll();
+                }
+            };
+            ExecutorService mergers = newMergerPool(config.getParallelism());
+            try {
+                List<File> runs = BatchSortedFileProducer.sortRecordsInBatch(all, cmp, streaming, memory);
+                return published(SortedFilesMerger.iterateSortedRuns(runs, cmp, streaming, mergers, memory, release),
+                        streaming);
+            } finally {
+                if (mergers != null) {
+                    mergers.shutdown();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            release.run();
+            throw e;
+        }
+    }
+
+    /**
+     * sort a stream of records, the input stream is consumed and closed by this call
+     * @return the sorted records, the stream must be closed to release the memory and the runs of the sort
+     * @see #sort(Iterator, Comparator, SortConfig)
+     */
+    public static Stream<CSVRecord> sort(Stream<CSVRecord> records, Comparator<CSVRecord> comparator,
+                                         SortConfig config) throws IOException {
+        try {
+            return sort(records.iterator(), comparator, config).stream();
+        } finally {
+            records.close();
+        }
+    }
+
+    /**
+     * sort CSV text, parsed as the input files are: with CSVFormat.DEFAULT, skipping the header lines of the config
+     * @param reader the CSV text, read to the end and closed by this call
+     * @return the sorted records, to be closed
+     * @see #sort(Iterator, Comparator, SortConfig)
+     */
+    public static CloseableIterator<CSVRecord> sort(Reader reader, Comparator<CSVRecord> comparator,
+                                                    SortConfig config) throws IOException {
+        try (CSVParser parser = new CSVParser(reader, CSVFormat.DEFAULT)) {
+            Iterator<CSVRecord> records = parser.iterator();
+            for (int i = 0; i < config.getHeaderLineNum() && records.hasNext(); i++) {
+                records.next();
+            }
+            return sort(records, comparator, config);
+        }
+    }
+
+    /**
+     * @return the records, publishing the statistics of the sort once they are closed
+     */
+    private static CloseableIterator<CSVRecord> published(CloseableIterator<CSVRecord> records, SortConfig config) {
+        if (config.getListener() == null) {
+            return records;
+        }
+        return new CloseableIterator<CSVRecord>() {
+            private long rowCnt;
+            private boolean closed;
+
+            @Override
+            public boolean hasNext() {
+                return records.hasNext();
+            }
+
+            @Override
+            public CSVRecord next() {
+                CSVRecord next = records.next();
+                rowCnt++;
+                return next;
+            }
+
+            @Override
+            public void close() throws IOException {
+                records.close();
+                if (!closed) {
+                    closed = true;
+                    config.publish(rowCnt);
+                }
+            }
+        };
+    }
+
+    private static SortConfig.Builder config(boolean isDistinct, boolean isAppend, Charset cs, CSVFormat csvFormat,
+                                             int headerLineNum, IStreamWrapper wrapper, int parallelism) {
+        return SortConfig.builder()
+                .distinct(isDistinct)
+                .append(isAppend)
+                .charset(cs)
+                .csvFormat(csvFormat)
+                .headerLineNum(headerLineNum)
+                .wrapper(wrapper)
+                .parallelism(Math.max(1, parallelism));
+    }
+
+    /**
+     * @return a pool for the intermediate merges, or null to merge on the calling thread
+     */
+    private static ExecutorService newMergerPool(int parallelism) {
+        if (parallelism <= 1) {
+            return null;
+        }
+        return Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "externalsort-merger");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * sort a csv file by a binary key computed once per record instead of a comparator.
+     * The records are radix sorted on their keys and the merge compares the keys stored in the runs,
+     * so the sort never calls back user code once the keys are extracted.
+     * @param inCsvFile Input CSV File
+     * @param outCsvFile Sorted Output CSV File
+     * @param keyExtractor computes the binary key of a record, see {@link com.externalsort.helper.SortKeys}
+     * @param isDistinct if true only the first record of each key is kept
+     * @param isAppend isAppend == true, will append the file; otherwise, will overwrite the file.
+     * @param cs charset to parse the input file
+     * @param csvFormat the CSV Format you want, if no idea, pass CSVFormat.DEFAULT
+     * @param headerLineNum how many line in csv header, this should be precluded before sorting starts
+     * @param wrapper this used for wrap stream, eg. some one want to use AES Stream to protect file Stream
+     * @param parallelism number of threads sorting and spilling runs, 1 to sort on the calling thread
+     * @return the file lines
+     * @throws IOException
+     */
+    public static long sortCsv(File inCsvFile, File outCsvFile, SortKeyExtractor keyExtractor, boolean isDistinct,
+                               boolean isAppend, Charset cs, CSVFormat csvFormat, int headerLineNum,
+                               IStreamWrapper wrapper, int parallelism) throws IOException {
+        return sortCsv(inCsvFile, outCsvFile, keyExtractor, config(isDistinct, isAppend, cs, csvFormat,
+                headerLineNum, wrapper, parallelism).build());
+    }
+
+    /**
+     * sort a csv file by a binary key with the options of a config, its run generation, run format and
+     * merge engine are ignored. A sort with a limit or a combiner compares the records through their keys
+     * instead, see {@link SortKeys#comparator(SortKeyExtractor)}
+     * @see #sortCsv(File, File, Comparator, SortConfig)
+     */
+    public static long sortCsv(File inCsvFile, File outCsvFile, SortKeyExtractor keyExtractor, SortConfig config)
+            throws IOException {
+        if (config.getLimit() > 0 || config.getCombiner() != null) {
+            // the few records kept are compared as records, as are the combined ones whose keys are not stored
+            return sortCsv(inCsvFile, outCsvFile, SortKeys.comparator(keyExtractor), config);
+        }
+        SortConfig sort = config.newSort();
+        long rowCnt = sortCsvFile(inCsvFile, outCsvFile, keyExtractor, sort);
+        sort.publish(rowCnt);
+        return rowCnt;
+    }
+
+    private static long sortCsvFile(File inCsvFile, File outCsvFile, SortKeyExtractor keyExtractor,
+                                    SortConfig config) throws IOException {
+        MemoryBudget budget = config.getMemoryBudget();
+        long memory = config.acquireMemory();
+        ExecutorService mergers = newMergerPool(config.getParallelism());
+        try {
+            boolean partitioned = config.getPartitions() > 1 && config.getPartSize() == 0;
+            if (config.getJobId() == null && !partitioned) {
+                // sorted in memory, else the records already read are the first run and the file is read once
+                return BatchSortedFileProducer.sortCsvInMemory(inCsvFile, outCsvFile, keyExtractor, config, memory,
+                        runs -> SortedFilesMerger.mergeSortedRunsByKey(runs, outCsvFile, config, mergers, memory));
+            }
+            long inMemory = BatchSortedFileProducer.sortCsvInMemory(inCsvFile, outCsvFile, keyExtractor, config,
+                    memory, null);
+            if (inMemory >= 0) {
+                return inMemory;
+            }
+            if (config.getJobId() != null) {
+                return ResumableSort.sortCsv(inCsvFile, config, memory, "keyed",
+                        (jobConfig, m) -> BatchSortedFileProducer.sortCsvInBatch(inCsvFile, keyExtractor, jobConfig,
+                                m),
+                        (runs, jobConfig, m) -> SortedFilesMerger.mergeSortedRunsByKey(runs, outCsvFile, jobConfig,
+                                mergers, m));
+            }
+            return PartitionedSort.sortCsv(inCsvFile, outCsvFile, keyExtractor, config, memory);
+        } finally {
+            if (mergers != null) {
+                mergers.shutdown();
+            }
+            budget.release(memory);
+        }
+    }
+
+    /**
+     * sort several csv files into one output by a binary key
+     * @see #sortCsv(List, File, Comparator, SortConfig)
+     * @see #sortCsv(File, File, SortKeyExtractor, SortConfig)
+     */
+    public static long sortCsv(List<File> inCsvFiles, File outCsvFile, SortKeyExtractor keyExtractor,
+                               SortConfig config) throws IOException {
+        if (inCsvFiles.size() == 1) {
+            return sortCsv(inCsvFiles.get(0), outCsvFile, keyExtractor, config);
+        }
+        if (config.getCombiner() != null) {
+            // the combined records are compared as records, their keys are not stored
+            return sortCsv(inCsvFiles, outCsvFile, SortKeys.comparator(keyExtractor), config);
+        }
+        SortConfig sort = config.newSort();
+        long rowCnt = sortCsvFiles(inCsvFiles, outCsvFile, keyExtractor, sort);
+        sort.publish(rowCnt);
+        return rowCnt;
+    }
+
+    private static long sortCsvFiles(List<File> inCsvFiles, File outCsvFile, SortKeyExtractor keyExtractor,
+                                     SortConfig config) throws IOException {
+        MemoryBudget budget = config.getMemoryBudget();
+        long memory = config.acquireMemory();
+        ExecutorService mergers = newMergerPool(config.getParallelism());
+        try {
+            List<File> runs = MultiInputSort.generateRuns(inCsvFiles, config, memory, (input, inputConfig, m) ->
+                    BatchSortedFileProducer.sortCsvInBatch(input, keyExtractor, inputConfig, m));
+            return SortedFilesMerger.mergeSortedRunsByKey(runs, outCsvFile, config, mergers, memory);
+        } finally {
+            if (mergers != null) {
+                mergers.shutdown();
+            }
+            budget.release(memory);
+        }
+    }
+
+    /**
+     * join two csv files on their keys with a sort-merge join: each input is cut in sorted runs by its own key,
+     * then the two sorted sides are merged in step, key after key, without writing them out sorted. The memory
+     * is bounded by the config whatever the size of the inputs, the records of a key that do not fit go to a
+     * temporary file. The rows come out in key order, see {@link JoinType} for their fields.
+     * @param leftCsvFile Input CSV File of the left side
+     * @param leftKey the key of a left record
+     * @param rightCsvFile Input CSV File of the right side
+     * @param rightKey the key of a right record, compared with the left keys as unsigned bytes
+     * @param outCsvFile Joined Output CSV File
+     * @param type which records without a match are written
+     * @param config the options of the sort, see {@link SortConfig#builder()}. The header lines are skipped in both
+     *               inputs, distinct and the combiner apply to each side. The sort in memory, limit, partitions
+     *               and job id do not apply
+     * @return the rows written
+     * @throws IOException
+     */
+    public static long joinCsv(File leftCsvFile, SortKeyExtractor leftKey, File rightCsvFile,
+                               SortKeyExtractor rightKey, File outCsvFile, JoinType type, SortConfig config)
+            throws IOException {
+        SortConfig sort = config.newSort();
+        MemoryBudget budget = sort.getMemoryBudget();
+        long memory = sort.acquireMemory();
+        ExecutorService mergers = newMergerPool(sort.getParallelism());
+        long rowCnt;
+        try {
+            rowCnt = SortMergeJoin.join(leftCsvFile, leftKey, rightCsvFile, rightKey, outCsvFile, type, sort,
+                    mergers, memory);
+        } finally {
+            if (mergers != null) {
+                mergers.shutdown();
+            }
+            budget.release(memory);
+        }
+        sort.publish(rowCnt);
+        return rowCnt;
+    }
+
+    /**
+     * co-group two csv files on their keys: as {@link #joinCsv} does, but the records of both sides with the same
+     * key are handed to a co-grouper that writes the rows of the key, eg. to count or diff the two sides.
+     * @param grouper writes the rows of each key
+     * @return the rows written
+     * @throws IOException
+     * @see #joinCsv(File, SortKeyExtractor, File, SortKeyExtractor, File, JoinType, SortConfig)
+     */
+    public static long coGroupCsv(File leftCsvFile, SortKeyExtractor leftKey, File rightCsvFile,
+                                  SortKeyExtractor rightKey, File outCsvFile, CoGrouper grouper, SortConfig config)
+            throws IOException {
+        SortConfig sort = config.newSort();
+        MemoryBudget budget = sort.getMemoryBudget();
+        long memory = sort.acquireMemory();
+        ExecutorService mergers = newMergerPool(sort.getParallelism());
+        long rowCnt;
+        try {
+            rowCnt = SortMergeJoin.coGroup(leftCsvFile, leftKey, rightCsvFile, rightKey, outCsvFile, grouper, sort,
+                    mergers, memory);
+        } finally {
+            if (mergers != null) {
+                mergers.shutdown();
+            }
+            budget.release(memory);
+        }
+        sort.publish(rowCnt);
+        return rowCnt;
+    }
+
+    public static long sortCsv(File inCsvFile, File outCsvFile, SortKeyExtractor keyExtractor) throws IOException {
+        return sortCsv(inCsvFile, outCsvFile, keyExtractor, false, false,
+                Charset.defaultCharset(), CSVFormat.DEFAULT, 0, DEFAULT_WRAPPER, 1);
     }
 
     public static long sortCsv(File inCsvFile, File outCsvFile, Comparator<CSVRecord> comparator) throws IOException {
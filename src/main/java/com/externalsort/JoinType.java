@@ -0,0 +1,20 @@
+package com.externalsort;
+
+/**
+ * The rows written by {@link ExternalSort#joinCsv} for a key: a joined row holds the fields of the left record
+ * followed by the fields of the right record, the side without a record is left blank.
+ */
+public enum JoinType {
+    /**
+     * one row per pair of records with the same key on both sides
+     */
+    INNER,
+    /**
+     * the rows of an inner join, plus the left records whose key has no right record
+     */
+    LEFT,
+    /**
+     * the rows of a left join, plus the right records whose key has no left record
+     */
+    FULL_OUTER
+}
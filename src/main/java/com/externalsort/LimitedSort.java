@@ -0,0 +1,169 @@
+package com.externalsort;
+
+import com.externalsort.helper.CloseableIterator;
+import com.externalsort.helper.IOSink;
+import com.externalsort.helper.RecordCombiner;
+import com.externalsort.helper.SizeCalculator;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+
+/**
+ * Sort keeping only the first records in sort order, enabled by {@link SortConfig#getLimit()}.
+ * The best records seen so far are kept in an ordered set bounded to the limit, a record worse than all of them
+ * is dropped as soon as it is read. When the set outgrows the memory before the end of the input, its records
+ * go on through the usual run generation with the rest of the input, each run cut to the limit, and the merge
+ * stops once the limit is written. The records dropped so far cannot be part of the output: each of them was
+ * beaten by limit records. With a combiner the set holds one partial result per key, a key dropped from the set
+ * cannot come back either.
+ */
+class LimitedSort {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LimitedSort.class);
+
+    // the entry and its node in the tree
+    private static final long ENTRY_OVERHEAD = 80;
+
+    /**
+     * @param executor runs the intermediate merges of the fallback, null to run them on the calling thread
+     * @param memoryLimit bytes already reserved for the set, or the blocks and the merge of the fallback
+     * @return the file lines
+     */
+    static long sortCsv(File inCsvFile, File outCsvFile, Comparator<CSVRecord> cmp, SortConfig config,
+                        Executor executor, long memoryLimit) throws IOException {
+        long limit = config.getLimit();
+        RecordCombiner combiner = config.getCombiner();
+        // ties keep the input order, a distinct or combined set holds one entry per key
+        Comparator<Entry> order = (a, b) -> cmp.compare(a.record, b.record);
+        TreeSet<Entry> best = new TreeSet<>(config.isDistinct() || combiner != null ? order
+                : order.thenComparingLong(e -> e.sequence));
+        StatsRecorder stats = config.getRecorder();
+        long start = stats.start();
+        long memoryUsed = 0;
+        long sequence = 0;
+        try (CSVParser parser = new CSVParser(new BufferedReader(new InputStreamReader(
+                config.getWrapper().wrap(new FileInputStream(inCsvFile)), config.getCharset())), CSVFormat.DEFAULT)) {
+            Iterator<CSVRecord> records = parser.iterator();
+            while (records.hasNext()) {
+                CSVRecord e = records.next();
+                if (e.getRecordNumber() <= config.getHeaderLineNum()) {
+                    LOG.info("skip one header line because key is not distinct {}", e.toString());
+                    continue;
+                }
+                stats.rowRead();
+                Entry entry = new Entry(combiner == null ? e : combiner.init(e), sequence++);
+                if (best.size() == limit && order.compare(entry, best.last()) > 0) {
+                    continue;
+                }
+                long before = memoryUsed;
+                if (combiner != null && best.contains(entry)) {
+                    Entry combined = best.floor(entry);
+                    memoryUsed -= combined.size;
+                    combined.combine(combiner, entry.record);
+                    memoryUsed += combined.size;
+                } else if (best.add(entry)) {
+                    memoryUsed += entry.size;
+                    if (best.size() > limit) {
+                        memoryUsed -= best.pollLast().size;
+                    }
+                } else {
+                    LOG.warn("skip one line because key is not distinct {}", e.toString());
+                    continue;
+                }
+                stats.buffered(memoryUsed - before);
+                if (memoryUsed >= memoryLimit && records.hasNext()) {
+                    LOG.debug("the first {} records do not fit in {} bytes", limit, memoryLimit);
+                    stats.phase(SortStats.Phase.RUN_GENERATION, start);
+                    return sortInRuns(best, memoryUsed, records, outCsvFile, cmp, config, executor, memoryLimit);
+                }
+            }
+        }
+        stats.phase(SortStats.Phase.RUN_GENERATION, start);
+        start = stats.start();
+        long rowCnt = 0;
+        try (IOSink<CSVRecord> sink = BatchSortedFileProducer.openOutput(outCsvFile, config)) {
+            for (Entry entry : best) {
+                sink.push(entry.record);
+                rowCnt++;
+            }
+        } finally {
+            stats.buffered(-memoryUsed);
+        }
+        stats.phase(SortStats.Phase.OUTPUT, start);
+        return rowCnt;
+    }
+
+    /**
+     * Write the set as the first run, cut the rest of the input in runs of at most limit records, and merge the
+     * head of the runs.
+     * @param memoryUsed bytes of the set, released once it is written
+     */
+    private static long sortInRuns(TreeSet<Entry> best, long memoryUsed, Iterator<CSVRecord> rest, File outCsvFile,
+                                   Comparator<CSVRecord> cmp, SortConfig config, Executor executor,
+                                   long memoryLimit) throws IOException {
+        List<CSVRecord> head = new ArrayList<>(best.size());
+        for (Entry entry : best) {
+            head.add(entry.record);
+        }
+        best.clear();
+        List<File> runs = new ArrayList<>();
+        try {
+            runs.add(BatchSortedFileProducer.writeRun(head, config));
+        } finally {
+            config.getRecorder().buffered(-memoryUsed);
+        }
+        head = null;
+        try {
+            runs.addAll(BatchSortedFileProducer.sortRecordsInBatch(rest, cmp, config, memoryLimit));
+        } catch (IOException | RuntimeException e) {
+            SortedFilesMerger.deleteFiles(runs);
+            throw e;
+        }
+        long start = config.getRecorder().start();
+        long rowCnt = 0;
+        try (CloseableIterator<CSVRecord> sorted = SortedFilesMerger.iterateSortedRuns(runs, cmp, config, executor,
+                memoryLimit, () -> { });
+             IOSink<CSVRecord> sink = BatchSortedFileProducer.openOutput(outCsvFile, config)) {
+            while (rowCnt < config.getLimit() && sorted.hasNext()) {
+                sink.push(sorted.next());
+                rowCnt++;
+            }
+        }
+        config.getRecorder().phase(SortStats.Phase.OUTPUT, start);
+        return rowCnt;
+    }
+
+    private static final class Entry {
+        private CSVRecord record;
+        private final long sequence;
+        private long size;
+
+        Entry(CSVRecord record, long sequence) {
+            this.record = record;
+            this.sequence = sequence;
+            this.size = SizeCalculator.sizeOf(record) + ENTRY_OVERHEAD;
+        }
+
+        /**
+         * Combine a record of the same key into this entry, its place in the set does not change.
+         */
+        void combine(RecordCombiner combiner, CSVRecord next) {
+            record = combiner.combine(record, next);
+            size = SizeCalculator.sizeOf(record) + ENTRY_OVERHEAD;
+        }
+    }
+}
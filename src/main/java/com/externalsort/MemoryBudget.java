@@ -0,0 +1,73 @@
+package com.externalsort;
+
+import java.io.InterruptedIOException;
+
+/**
+ * An exact number of heap bytes shared by the sorts running in the same JVM.
+ * Each sort reserves its memory before reading its input and gives it back once its output is written,
+ * a sort waits while the others hold the bytes it needs. The budget is never measured from the heap state,
+ * so no garbage collection is forced and the block sizes do not depend on when the sort starts.
+ */
+public class MemoryBudget {
+
+    private static final MemoryBudget SHARED = new MemoryBudget(Runtime.getRuntime().maxMemory() / 2);
+
+    private final long capacity;
+    private long available;
+
+    /**
+     * @param capacity bytes shared by the sorts using this budget
+     */
+    public MemoryBudget(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("memory budget must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.available = capacity;
+    }
+
+    /**
+     * @return the budget used by default, half of the maximum heap shared by every sort of the JVM
+     */
+    public static MemoryBudget shared() {
+        return SHARED;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getAvailable() {
+        return available;
+    }
+
+    /**
+     * Wait until the bytes are free and reserve them, a request larger than the capacity gets the capacity.
+     * @param bytes bytes wanted by one sort
+     * @return the bytes reserved, to give back with {@link #release(long)}
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public synchronized long acquire(long bytes) throws InterruptedIOException {
+        long wanted = Math.max(1, Math.min(bytes, capacity));
+        try {
+            while (available < wanted) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for " + wanted + " bytes of memory");
+        }
+        available -= wanted;
+        return wanted;
+    }
+
+    public synchronized void release(long bytes) {
+        available = Math.min(capacity, available + bytes);
+        notifyAll();
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryBudget{capacity=" + capacity + ", available=" + getAvailable() + "}";
+    }
+}
@@ -0,0 +1,15 @@
+package com.externalsort;
+
+/**
+ * Algorithm used by {@link SortedFilesMerger} to pick the next record among the sorted inputs.
+ */
+public enum MergeEngine {
+    /**
+     * tournament tree of losers, about log2(k) comparisons per record and no allocation
+     */
+    LOSER_TREE,
+    /**
+     * java.util.PriorityQueue of the inputs, a poll and an offer per record
+     */
+    PRIORITY_QUEUE
+}
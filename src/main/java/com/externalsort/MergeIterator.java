@@ -0,0 +1,138 @@
+package com.externalsort;
+
+import com.externalsort.helper.CloseableIterator;
+import com.externalsort.helper.IOStack;
+import com.externalsort.helper.LoserTree;
+import com.externalsort.helper.RecordCombiner;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The k-way merge of sorted stacks pulled one record at a time, the lazy counterpart of the merge into a file.
+ * The stacks are closed as soon as they are exhausted, the others when the iterator is closed.
+ * This class is not thread safe.
+ */
+class MergeIterator implements CloseableIterator<CSVRecord> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MergeIterator.class);
+
+    private final List<IOStack<CSVRecord>> stacks;
+    private final LoserTree<IOStack<CSVRecord>> tree;
+    private final Comparator<CSVRecord> cmp;
+    private final boolean isDistinct;
+    private final RecordCombiner combiner;
+    private final Runnable onClose;
+    private CSVRecord next;
+    // the first record of the next key, taken out of the tree to see where the combined key ends
+    private CSVRecord following;
+    private CSVRecord lastLine;
+    private boolean closed;
+
+    /**
+     * @param stacks sorted stacks, closed by this iterator
+     * @param isDistinct if true only the first record of each key is returned
+     * @param combiner combines the records with the same key, they are already partial results. null to return
+     *                 them all, isDistinct is ignored with a combiner
+     * @param onClose called once when the iterator is closed, after the stacks
+     */
+    MergeIterator(List<? extends IOStack<CSVRecord>> stacks, Comparator<CSVRecord> cmp, boolean isDistinct,
+                  RecordCombiner combiner, Runnable onClose) throws IOException {
+        this.stacks = new ArrayList<>(stacks);
+        this.cmp = cmp;
+        this.isDistinct = isDistinct && combiner == null;
+        this.combiner = combiner;
+        this.onClose = onClose;
+        for (IOStack<CSVRecord> stack : this.stacks) {
+            if (stack.empty()) {
+                stack.close();
+            }
+        }
+        this.tree = LoserTree.byHead(this.stacks, cmp);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !closed) {
+            next = advance();
+        }
+        return next != null;
+    }
+
+    @Override
+    public CSVRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        CSVRecord record = next;
+        next = null;
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        next = null;
+        following = null;
+        try {
+            for (IOStack<CSVRecord> stack : stacks) {
+                if (!stack.empty()) {
+                    stack.close();
+                }
+            }
+        } finally {
+            onClose.run();
+        }
+    }
+
+    private CSVRecord advance() {
+        if (combiner == null) {
+            return pop();
+        }
+        CSVRecord combined = following != null ? following : pop();
+        following = null;
+        if (combined == null) {
+            return null;
+        }
+        for (CSVRecord curLine = pop(); curLine != null; curLine = pop()) {
+            if (cmp.compare(combined, curLine) != 0) {
+                following = curLine;
+                break;
+            }
+            combined = combiner.combine(combined, curLine);
+        }
+        return combined;
+    }
+
+    private CSVRecord pop() {
+        try {
+            while (!tree.empty()) {
+                IOStack<CSVRecord> csvFileLines = tree.top();
+                CSVRecord curLine = csvFileLines.pop();
+                if (csvFileLines.empty()) {
+                    csvFileLines.close();
+                }
+                tree.replay();
+                if (isDistinct && lastLine != null && cmp.compare(curLine, lastLine) == 0) {
+                    LOG.warn("skip one line because key is not distinct {}", curLine.toString());
+                    continue;
+                }
+                lastLine = curLine;
+                return curLine;
+            }
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.externalsort;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decides how sorted runs are merged.
+ * The fan-in is derived from the memory given to the merge and the size of the buffer of each stream,
+ * bounded by the file descriptors. The merges are then ordered like a k-ary Huffman tree restricted to
+ * adjacent runs: each merge takes the window of neighbouring runs with the smallest total size, whose output
+ * takes their place, so that few bytes are written by the intermediate merges, and only the first merge may
+ * take less than fan-in inputs. Every merge reads its inputs in the order of the runs, so the records with
+ * the same key keep the order of the runs through any number of passes and the merge stays stable.
+ */
+public class MergePlanner {
+
+    private MergePlanner() {
+
+    }
+
+    /**
+     * @param memoryBudget bytes the buffers of one merge may use
+     * @param streamBufferSize bytes buffered by each input and by the output stream
+     * @param maxOpenFiles file descriptors one merge may use, inputs and output
+     * @return the number of inputs of one merge, at least 2
+     */
+    public static int fanIn(long memoryBudget, int streamBufferSize, int maxOpenFiles) {
+        long byMemory = memoryBudget / streamBufferSize - 1;
+        long byDescriptors = maxOpenFiles - 1;
+        return (int) Math.max(2, Math.min(byMemory, byDescriptors));
+    }
+
+    /**
+     * Plan the merge of runs weighted by their file length.
+     */
+    public static MergePlan plan(List<File> runs, int fanIn) {
+        long[] sizes = new long[runs.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = runs.get(i).length();
+        }
+        return plan(sizes, fanIn);
+    }
+
+    /**
+     * @param runSizes size of each run
+     * @param fanIn maximum number of inputs of one merge, at least 2
+     * @return the plan, its last step is the final merge
+     */
+    public static MergePlan plan(long[] runSizes, int fanIn) {
+        if (fanIn < 2) {
+            throw new IllegalArgumentException("fan-in must be at least 2: " + fanIn);
+        }
+        int runCount = runSizes.length;
+        List<int[]> steps = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        // the nodes left to merge, in the order of the runs
+        List<Integer> nodes = new ArrayList<>();
+        for (int i = 0; i < runCount; i++) {
+            sizes.add(runSizes[i]);
+            nodes.add(i);
+        }
+        if (runCount > fanIn) {
+            // the first merge takes just enough runs for every later merge to be full
+            addStep(steps, sizes, nodes, (runCount - 2) % (fanIn - 1) + 2, runCount);
+            while (nodes.size() > fanIn) {
+                addStep(steps, sizes, nodes, fanIn, runCount);
+            }
+        }
+        addStep(steps, sizes, nodes, nodes.size(), runCount);
+        return new MergePlan(runCount, steps, sizes);
+    }
+
+    /**
+     * Merge the window of adjacent nodes with the smallest total size, the first one among equal windows,
+     * and put the new node in its place.
+     */
+    private static void addStep(List<int[]> steps, List<Long> sizes, List<Integer> nodes, int inputs,
+                                int runCount) {
+        int best = 0;
+        long bestSize = Long.MAX_VALUE;
+        long size = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            size += sizes.get(nodes.get(i));
+            if (i >= inputs) {
+                size -= sizes.get(nodes.get(i - inputs));
+            }
+            if (i >= inputs - 1 && size < bestSize) {
+                best = i - inputs + 1;
+                bestSize = size;
+            }
+        }
+        List<Integer> window = nodes.subList(best, best + inputs);
+        int[] step = new int[inputs];
+        for (int i = 0; i < inputs; i++) {
+            step[i] = window.get(i);
+        }
+        window.clear();
+        nodes.add(best, runCount + steps.size());
+        steps.add(step);
+        sizes.add(bestSize);
+    }
+
+    /**
+     * Merge steps over nodes: nodes 0 .. runCount - 1 are the runs, step i produces node runCount + i.
+     * The last step is the final merge into the output.
+     */
+    public static class MergePlan {
+        private final int runCount;
+        private final List<int[]> steps;
+        private final List<Long> sizes;
+        private final int[] levels;
+
+        MergePlan(int runCount, List<int[]> steps, List<Long> sizes) {
+            this.runCount = runCount;
+            this.steps = Collections.unmodifiableList(steps);
+            this.sizes = sizes;
+            this.levels = new int[steps.size()];
+            for (int i = 0; i < steps.size(); i++) {
+                int level = 0;
+                for (int input : steps.get(i)) {
+                    if (input >= runCount) {
+                        level = Math.max(level, levels[input - runCount]);
+                    }
+                }
+                levels[i] = level + 1;
+            }
+        }
+
+        public int getRunCount() {
+            return runCount;
+        }
+
+        public int getStepCount() {
+            return steps.size();
+        }
+
+        /**
+         * @return the nodes merged by a step, in the order of the runs
+         */
+        public int[] getInputs(int step) {
+            return steps.get(step).clone();
+        }
+
+        /**
+         * @return 1 for a step merging only runs, else one more than the deepest of its inputs
+         */
+        public int getLevel(int step) {
+            return levels[step];
+        }
+
+        /**
+         * @return number of passes over the data, the level of the final merge
+         */
+        public int getPasses() {
+            return levels[levels.length - 1];
+        }
+
+        /**
+         * @return bytes written and read again by the intermediate merges
+         */
+        public long getRewrittenBytes() {
+            long bytes = 0;
+            for (int i = 0; i < steps.size() - 1; i++) {
+                bytes += sizes.get(runCount + i);
+            }
+            return bytes;
+        }
+
+        public int getMaxFanIn() {
+            int fanIn = 0;
+            for (int[] step : steps) {
+                fanIn = Math.max(fanIn, step.length);
+            }
+            return fanIn;
+        }
+
+        @Override
+        public String toString() {
+            return "MergePlan{runs=" + runCount + ", merges=" + steps.size() + ", passes=" + getPasses()
+                    + ", maxFanIn=" + getMaxFanIn() + ", rewrittenBytes=" + getRewrittenBytes() + "}";
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.externalsort;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Run generation of several input files feeding one merge, eg. the shards written by the tasks of a job,
+ * without concatenating them first. The inputs are cut in runs at the same time, parallelism of them at once,
+ * each with its share of the memory. Every input is parsed on its own, so its header lines are skipped
+ * as for a single input.
+ */
+class MultiInputSort {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MultiInputSort.class);
+
+    /**
+     * @param memoryLimit bytes already reserved, shared by the inputs cut in runs at the same time
+     * @param generator cuts one input in runs with the config and the memory it is given
+     * @return the runs of all the inputs, in input order
+     */
+    static List<File> generateRuns(List<File> inputs, SortConfig config, long memoryLimit, InputSorter generator)
+            throws IOException {
+        int concurrency = Math.max(1, Math.min(config.getParallelism(), inputs.size()));
+        long memory = memoryLimit / concurrency;
+        // the threads left over when there are fewer inputs than parallelism go to the run generation of each one
+        SortConfig inputConfig = config.toBuilder()
+                .parallelism(Math.max(1, config.getParallelism() / concurrency))
+                .build();
+        LOG.debug("cutting {} inputs in runs, {} at a time", inputs.size(), concurrency);
+        ExecutorService pool = concurrency > 1 ? newInputPool(concurrency) : null;
+        List<Future<List<File>>> sorts = new ArrayList<>();
+        try {
+            for (File input : inputs) {
+                FutureTask<List<File>> sort = new FutureTask<>(() -> generator.generate(input, inputConfig, memory));
+                sorts.add(sort);
+                if (pool == null) {
+                    sort.run();
+                } else {
+                    pool.execute(sort);
+                }
+            }
+            List<File> runs = new ArrayList<>();
+            for (Future<List<File>> sort : sorts) {
+                runs.addAll(sort.get());
+            }
+            return runs;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            BatchSortedFileProducer.deleteChunks(sorts);
+            throw new InterruptedIOException("interrupted while sorting the inputs");
+        } catch (ExecutionException e) {
+            BatchSortedFileProducer.deleteChunks(sorts);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Error while sorting an input", cause);
+        } catch (RuntimeException e) {
+            BatchSortedFileProducer.deleteChunks(sorts);
+            throw e;
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private static ExecutorService newInputPool(int concurrency) {
+        return Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "externalsort-input");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Cuts one input file in runs.
+     */
+    interface InputSorter {
+        List<File> generate(File input, SortConfig config, long memory) throws IOException;
+    }
+}
@@ -0,0 +1,217 @@
+package com.externalsort;
+
+import com.externalsort.helper.CloseableIterator;
+import com.externalsort.helper.CsvRecords;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Range lookups in the output of a sort cut in parts, see {@link SortConfig.Builder#partSize(long)}.
+ * The sparse index is loaded in memory, a lookup binary searches it for the last indexed record before the
+ * range, skips to its offset in its part and reads the records from there, across the following parts, until the
+ * range is over: a point query reads at most one index interval of records before its first match.
+ * The parts are read through the wrapper of the config, where skipping to the offset is a seek for a plain file.
+ */
+public class PartIndex {
+
+    private final File output;
+    private final Comparator<CSVRecord> cmp;
+    private final SortConfig config;
+    private final CSVFormat csvFormat;
+    // the indexed records, their parts and their offsets, in sort order
+    private final List<CSVRecord> keys = new ArrayList<>();
+    private final List<Integer> parts = new ArrayList<>();
+    private final List<Long> offsets = new ArrayList<>();
+    // the offset of the first record of each part
+    private final List<Long> firstOffsets = new ArrayList<>();
+
+    private PartIndex(File output, Comparator<CSVRecord> cmp, SortConfig config) {
+        this.output = output;
+        this.cmp = cmp;
+        this.config = config;
+        // the lookups start past the header of a part, its lines are records like the others
+        this.csvFormat = config.getCsvFormat().withHeader((String[]) null).withSkipHeaderRecord(false)
+                .withHeaderComments((Object[]) null);
+    }
+
+    /**
+     * Load the index of an output cut in parts.
+     * @param output the output file given to the sort
+     * @param cmp the comparator of the sort
+     * @param config the config of the sort, for its format and wrapper
+     */
+    public static PartIndex open(File output, Comparator<CSVRecord> cmp, SortConfig config) throws IOException {
+        PartIndex index = new PartIndex(output, cmp, config);
+        try (CSVParser parser = new CSVParser(new BufferedReader(new InputStreamReader(config.getWrapper().wrap(
+                new FileInputStream(PartWriter.indexOf(output))))), CSVFormat.DEFAULT)) {
+            for (CSVRecord entry : parser) {
+                String[] values = CsvRecords.values(entry);
+                int part = Integer.parseInt(values[0]);
+                long offset = Long.parseLong(values[1]);
+                index.keys.add(CsvRecords.of(Arrays.copyOfRange(values, 2, values.length), entry.getRecordNumber()));
+                index.parts.add(part);
+                index.offsets.add(offset);
+                if (part == index.firstOffsets.size()) {
+                    index.firstOffsets.add(offset);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return number of part files of the output
+     */
+    public int getPartCount() {
+        return firstOffsets.size();
+    }
+
+    /**
+     * @param key a record with the fields read by the comparator, see
+     *            {@link CsvRecords#of(String[], long)}
+     * @return the records comparing equal to key, to be closed
+     */
+    public CloseableIterator<CSVRecord> get(CSVRecord key) throws IOException {
+        return range(key, key);
+    }
+
+    /**
+     * @param from the first key of the range, included, null to start at the first record
+     * @param to the last key of the range, included, null to read to the last record
+     * @return the records of the range in sort order, to be closed
+     */
+    public CloseableIterator<CSVRecord> range(CSVRecord from, CSVRecord to) throws IOException {
+        // the last indexed record before from: the records before it are smaller, so none is in the range
+        int lo = 0;
+        int hi = keys.size() - 1;
+        int start = -1;
+        while (from != null && lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cmp.compare(keys.get(mid), from) < 0) {
+                start = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return new RangeIterator(Math.max(0, start), from, to);
+    }
+
+    /**
+     * Reads the parts from an indexed record, skipping the records before the range.
+     */
+    private final class RangeIterator implements CloseableIterator<CSVRecord> {
+        private final CSVRecord from;
+        private final CSVRecord to;
+        private int part;
+        private CSVParser parser;
+        private Iterator<CSVRecord> records;
+        private CSVRecord next;
+        private boolean done;
+
+        RangeIterator(int entry, CSVRecord from, CSVRecord to) throws IOException {
+            this.from = from;
+            this.to = to;
+            if (keys.isEmpty()) {
+                done = true;
+                return;
+            }
+            part = parts.get(entry);
+            open(offsets.get(entry));
+            advance();
+        }
+
+        private void open(long offset) throws IOException {
+            InputStream in = config.getWrapper().wrap(new FileInputStream(PartWriter.partOf(output, part)));
+            try {
+                skipFully(in, offset);
+                parser = new CSVParser(new BufferedReader(new InputStreamReader(in)), csvFormat);
+            } catch (IOException | RuntimeException e) {
+                in.close();
+                throw e;
+            }
+            records = parser.iterator();
+        }
+
+        private void advance() throws IOException {
+            while (!done) {
+                if (!records.hasNext()) {
+                    parser.close();
+                    if (++part == firstOffsets.size()) {
+                        done = true;
+                        return;
+                    }
+                    open(firstOffsets.get(part));
+                    continue;
+                }
+                CSVRecord record = records.next();
+                if (from != null && cmp.compare(record, from) < 0) {
+                    continue;
+                }
+                if (to != null && cmp.compare(record, to) > 0) {
+                    close();
+                    return;
+                }
+                next = record;
+                return;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public CSVRecord next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            CSVRecord record = next;
+            next = null;
+            try {
+                advance();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return record;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!done) {
+                done = true;
+                parser.close();
+            }
+        }
+    }
+
+    private static void skipFully(InputStream in, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped > 0) {
+                bytes -= skipped;
+            } else if (in.read() >= 0) {
+                bytes--;
+            } else {
+                throw new EOFException("the part ends before the offset of the index");
+            }
+        }
+    }
+}
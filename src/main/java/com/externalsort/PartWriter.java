@@ -0,0 +1,169 @@
+package com.externalsort;
+
+import com.externalsort.helper.CsvRecords;
+import com.externalsort.helper.IOSink;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The output of a sort cut in parts, see {@link SortConfig.Builder#partSize(long)}. The sorted records are
+ * written to numbered part files next to the output, each one a CSV file of its own with the header of the
+ * format, and a part is closed at the first indexed record past the target size. A sidecar index lists the first
+ * record of each part and every indexInterval-th record after it, with its part and the byte offset where it
+ * starts, read back by {@link PartIndex}. The offsets count the bytes of the CSV text, before the wrapper.
+ * <pre>
+ * output.part-00000, output.part-00001, ...   the parts
+ * output.index                                 part,offset,the fields of the record
+ * </pre>
+ */
+class PartWriter implements IOSink<CSVRecord> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PartWriter.class);
+
+    private final File output;
+    private final CSVFormat csvFormat;
+    private final long partSize;
+    private final int indexInterval;
+    private final Opener opener;
+    private final CSVPrinter index;
+    private int part = -1;
+    private CountingOutputStream counting;
+    private CSVPrinter printer;
+    private long partRecords;
+
+    /**
+     * @param output the name of the output, the file itself is not written
+     * @param opener opens the streams of the parts and of the index
+     */
+    PartWriter(File output, SortConfig config, Opener opener) throws IOException {
+        this.output = output;
+        this.csvFormat = config.getCsvFormat();
+        this.partSize = config.getPartSize();
+        this.indexInterval = config.getIndexInterval();
+        this.opener = opener;
+        this.index = new CSVPrinter(new BufferedWriter(new OutputStreamWriter(opener.open(indexOf(output)))),
+                CSVFormat.DEFAULT);
+    }
+
+    /**
+     * @return the file of a part of the output
+     */
+    static File partOf(File output, int part) {
+        return new File(output.getPath() + String.format(".part-%05d", part));
+    }
+
+    /**
+     * @return the index of the parts of the output
+     */
+    static File indexOf(File output) {
+        return new File(output.getPath() + ".index");
+    }
+
+    @Override
+    public void push(CSVRecord record) throws IOException {
+        if (printer == null || partRecords % indexInterval == 0) {
+            if (printer != null) {
+                // the text of the records printed so far reaches the counting stream
+                printer.flush();
+                if (counting.count >= partSize) {
+                    printer.close();
+                    printer = null;
+                }
+            }
+            if (printer == null) {
+                nextPart();
+            }
+            List<String> entry = new ArrayList<>(record.size() + 2);
+            entry.add(String.valueOf(part));
+            entry.add(String.valueOf(counting.count));
+            Collections.addAll(entry, CsvRecords.values(record));
+            index.printRecord(entry);
+        }
+        printer.printRecord(record);
+        partRecords++;
+    }
+
+    private void nextPart() throws IOException {
+        part++;
+        counting = new CountingOutputStream(opener.open(partOf(output, part)));
+        printer = new CSVPrinter(new BufferedWriter(new OutputStreamWriter(counting)), csvFormat);
+        // the header, if any, is before the offset of the first record
+        printer.flush();
+        partRecords = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (printer == null && part < 0) {
+                // an empty output still has its first part
+                nextPart();
+            }
+            if (printer != null) {
+                printer.close();
+            }
+        } finally {
+            index.close();
+        }
+        // the parts left by a previous, larger output
+        for (int stale = part + 1; partOf(output, stale).exists(); stale++) {
+            if (!partOf(output, stale).delete()) {
+                LOG.warn("The file {} was not deleted", partOf(output, stale).getName());
+            }
+        }
+    }
+
+    /**
+     * Opens the stream of a file of the output.
+     */
+    interface Opener {
+        OutputStream open(File file) throws IOException;
+    }
+
+    /**
+     * Counts the bytes written to a part. Its flush does not go further, the printer is flushed at each index
+     * entry only to know the offset.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+            // see the class comment
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
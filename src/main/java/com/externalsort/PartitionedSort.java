@@ -0,0 +1,319 @@
+package com.externalsort;
+
+import com.externalsort.helper.IStreamWrapper;
+import com.externalsort.helper.SortKeyExtractor;
+import com.externalsort.helper.SortKeys;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.ToIntFunction;
+
+/**
+ * Sort by range partitioning, enabled by {@link SortConfig#getPartitions()}.
+ * A first pass samples the input and picks the splitters, a second pass routes every record to the partition
+ * of its key range. The partitions are sorted on their own and at the same time, each by the usual run
+ * generation and merge, then copied one after the other into the output: every key of a partition is smaller
+ * than the keys of the next one, so there is no global merge and the merge work is spread over the threads.
+ * Equal keys always go to the same partition, so duplicates are dropped as by a single sort.
+ */
+class PartitionedSort {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PartitionedSort.class);
+
+    // records sampled per partition, enough to balance the partitions within a few percent
+    private static final int SAMPLES_PER_PARTITION = 128;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @param memoryLimit bytes already reserved, shared by the partitions sorted at the same time
+     * @return the file lines
+     */
+    static long sortCsv(File inCsvFile, File outCsvFile, Comparator<CSVRecord> cmp, SortConfig config,
+                        long memoryLimit) throws IOException {
+        List<CSVRecord> splitters = splitters(inCsvFile, cmp, config);
+        return sort(inCsvFile, outCsvFile, config, memoryLimit, splitters.size() + 1,
+                record -> upperBound(splitters, record, cmp),
+                (input, output, partitionConfig, memory) -> {
+                    List<File> runs = BatchSortedFileProducer.sortCsvInBatch(input, cmp, partitionConfig, memory);
+                    return SortedFilesMerger.mergeSortedCsvFiles(runs, output, cmp, partitionConfig, null, memory);
+                });
+    }
+
+    /**
+     * @param memoryLimit bytes already reserved, shared by the partitions sorted at the same time
+     * @return the file lines
+     */
+    static long sortCsv(File inCsvFile, File outCsvFile, SortKeyExtractor keyExtractor, SortConfig config,
+                        long memoryLimit) throws IOException {
+        List<byte[]> splitters = new ArrayList<>();
+        for (CSVRecord splitter : splitters(inCsvFile, SortKeys.comparator(keyExtractor), config)) {
+            splitters.add(keyExtractor.keyOf(splitter));
+        }
+        return sort(inCsvFile, outCsvFile, config, memoryLimit, splitters.size() + 1,
+                record -> upperBound(splitters, keyExtractor.keyOf(record), SortKeys::compare),
+                (input, output, partitionConfig, memory) -> {
+                    List<File> runs = BatchSortedFileProducer.sortCsvInBatch(input, keyExtractor, partitionConfig,
+                            memory);
+                    return SortedFilesMerger.mergeSortedRunsByKey(runs, output, partitionConfig, null, memory);
+                });
+    }
+
+    /**
+     * Sample the input uniformly and keep the records cutting the sample in partitions of equal size,
+     * duplicates are dropped so a skewed input gets fewer partitions.
+     * @return the splitters in increasing order, partition i holds the keys from splitter i - 1 included
+     * to splitter i excluded
+     */
+    private static List<CSVRecord> splitters(File csvFile, Comparator<CSVRecord> cmp, SortConfig config)
+            throws IOException {
+        int partitions = config.getPartitions();
+        long start = config.getRecorder().start();
+        List<CSVRecord> sample = new ArrayList<>();
+        int sampleSize = partitions * SAMPLES_PER_PARTITION;
+        Random random = new Random();
+        long seen = 0;
+        try (CSVParser parser = new CSVParser(new BufferedReader(new InputStreamReader(
+                config.getWrapper().wrap(new FileInputStream(csvFile)), config.getCharset())), CSVFormat.DEFAULT)) {
+            for (CSVRecord e : parser) {
+                if (e.getRecordNumber() <= config.getHeaderLineNum()) {
+                    continue;
+                }
+                seen++;
+                // reservoir sampling, every record is kept with the same probability
+                if (sample.size() < sampleSize) {
+                    sample.add(e);
+                } else {
+                    long slot = (long) (random.nextDouble() * seen);
+                    if (slot < sampleSize) {
+                        sample.set((int) slot, e);
+                    }
+                }
+            }
+        }
+        sample.sort(cmp);
+        List<CSVRecord> splitters = new ArrayList<>();
+        for (int i = 1; i < partitions && !sample.isEmpty(); i++) {
+            CSVRecord splitter = sample.get(i * sample.size() / partitions);
+            if (splitters.isEmpty() || cmp.compare(splitter, splitters.get(splitters.size() - 1)) > 0) {
+                splitters.add(splitter);
+            }
+        }
+        LOG.debug("{} records sampled among {}, {} splitters", sample.size(), seen, splitters.size());
+        config.getRecorder().phase(SortStats.Phase.PARTITIONING, start);
+        return splitters;
+    }
+
+    /**
+     * @return the number of splitters smaller than or equal to the value, which is its partition
+     */
+    private static <T> int upperBound(List<T> splitters, T value, Comparator<? super T> cmp) {
+        int low = 0;
+        int high = splitters.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cmp.compare(splitters.get(middle), value) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static long sort(File inCsvFile, File outCsvFile, SortConfig config, long memoryLimit, int partitions,
+                             ToIntFunction<CSVRecord> router, PartitionSorter sorter) throws IOException {
+        if (partitions == 1) {
+            // nothing to split, an empty or a constant input
+            return sorter.sort(inCsvFile, outCsvFile, config, memoryLimit);
+        }
+        List<File> inputs = new ArrayList<>();
+        List<File> outputs = new ArrayList<>();
+        List<Future<Long>> sorts = new ArrayList<>();
+        ExecutorService pool = null;
+        try {
+            long[] sizes = route(inCsvFile, config, partitions, router, inputs);
+            int nonEmpty = 0;
+            for (long size : sizes) {
+                if (size > 0) {
+                    nonEmpty++;
+                }
+            }
+            int concurrency = Math.max(1, Math.min(config.getParallelism(), nonEmpty));
+            long memory = memoryLimit / concurrency;
+            pool = newPartitionPool(concurrency);
+            SortConfig partitionConfig = partitionConfig(config);
+            for (int i = 0; i < partitions; i++) {
+                if (sizes[i] == 0) {
+                    continue;
+                }
+                File input = inputs.get(i);
+                File output = config.getSpillDirectories().newFile("partition", ".csv");
+                outputs.add(output);
+                sorts.add(pool.submit(() -> {
+                    try {
+                        return sorter.sort(input, output, partitionConfig, memory);
+                    } finally {
+                        delete(input);
+                    }
+                }));
+            }
+            return concat(sorts, outputs, outCsvFile, config);
+        } finally {
+            for (Future<Long> partition : sorts) {
+                partition.cancel(true);
+            }
+            if (pool != null) {
+                pool.shutdown();
+            }
+            inputs.forEach(PartitionedSort::delete);
+            outputs.forEach(PartitionedSort::delete);
+        }
+    }
+
+    /**
+     * Write every record to the temporary file of its partition, in the input order.
+     * @param files receives the temporary files of the partitions
+     * @return the number of records of each partition
+     */
+    private static long[] route(File csvFile, SortConfig config, int partitions, ToIntFunction<CSVRecord> router,
+                                List<File> files) throws IOException {
+        IStreamWrapper spillWrapper = config.getSpillWrapper();
+        long start = config.getRecorder().start();
+        long[] sizes = new long[partitions];
+        List<CSVPrinter> printers = new ArrayList<>();
+        try {
+            for (int i = 0; i < partitions; i++) {
+                File file = config.getSpillDirectories().newFile("partition", ".csv");
+                files.add(file);
+                printers.add(new CSVPrinter(new BufferedWriter(new OutputStreamWriter(
+                        spillWrapper.wrap(new FileOutputStream(file)), config.getCharset())), CSVFormat.DEFAULT));
+            }
+            try (CSVParser parser = new CSVParser(new BufferedReader(new InputStreamReader(
+                    config.getWrapper().wrap(new FileInputStream(csvFile)), config.getCharset())),
+                    CSVFormat.DEFAULT)) {
+                for (CSVRecord e : parser) {
+                    if (e.getRecordNumber() <= config.getHeaderLineNum()) {
+                        LOG.info("skip one header line because key is not distinct {}", e.toString());
+                        continue;
+                    }
+                    int partition = router.applyAsInt(e);
+                    printers.get(partition).printRecord(e);
+                    sizes[partition]++;
+                }
+            }
+        } finally {
+            for (CSVPrinter printer : printers) {
+                printer.close();
+            }
+        }
+        config.getRecorder().phase(SortStats.Phase.PARTITIONING, start);
+        return sizes;
+    }
+
+    /**
+     * The partitions are read and written through the spill wrapper, have no header line and are not
+     * split again.
+     */
+    private static SortConfig partitionConfig(SortConfig config) {
+        return config.toBuilder()
+                .wrapper(config.getSpillWrapper())
+                .spillCodec(null)
+                .csvFormat(config.getCsvFormat().withSkipHeaderRecord().withHeaderComments((Object[]) null))
+                .headerLineNum(0)
+                .append(false)
+                .parallelism(1)
+                .mappedInput(false)
+                .partitions(1)
+                .partSize(0)
+                .build();
+    }
+
+    /**
+     * Write the header of the output then copy the sorted partitions in order, each one as soon as it is ready.
+     * The time waiting for the partitions is not part of the output phase.
+     * @return the file lines
+     */
+    private static long concat(List<Future<Long>> sorts, List<File> outputs, File outCsvFile, SortConfig config)
+            throws IOException {
+        SortedFilesMerger.createIfNotExists(outCsvFile);
+        long rowCnt = 0;
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        OutputStream out = config.getWrapper().wrap(new FileOutputStream(outCsvFile, config.isAppend()));
+        try (CSVPrinter header = new CSVPrinter(new BufferedWriter(new OutputStreamWriter(out)),
+                config.getCsvFormat())) {
+            header.flush();
+            for (int i = 0; i < sorts.size(); i++) {
+                rowCnt += await(sorts.get(i));
+                long start = config.getRecorder().start();
+                try (InputStream in = config.getSpillWrapper().wrap(new FileInputStream(outputs.get(i)))) {
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, n);
+                    }
+                }
+                delete(outputs.get(i));
+                config.getRecorder().phase(SortStats.Phase.OUTPUT, start);
+            }
+        }
+        return rowCnt;
+    }
+
+    private static long await(Future<Long> sort) throws IOException {
+        try {
+            return sort.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while sorting the partitions");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error while sorting a partition", e.getCause());
+        }
+    }
+
+    private static ExecutorService newPartitionPool(int concurrency) {
+        return Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "externalsort-partition");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static void delete(File f) {
+        if (f.exists() && !f.delete()) {
+            LOG.warn("The file {} was not deleted", f.getName());
+        }
+    }
+
+    /**
+     * Sorts one partition file into one output file.
+     */
+    private interface PartitionSorter {
+        long sort(File input, File output, SortConfig config, long memory) throws IOException;
+    }
+}
@@ -0,0 +1,63 @@
+package com.externalsort;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Sort surviving the failure of its process, enabled by {@link SortConfig#getJobId()}.
+ * The runs and the intermediate merges are written to the directories of a {@link SortJob} and recorded in its
+ * manifest once finished. A sort started again with the same job id skips the run generation when it was over and
+ * merges what is left: the intermediate merges already written and the runs they did not consume. A run generation
+ * that did not finish starts over, its runs are only recorded together.
+ */
+class ResumableSort {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResumableSort.class);
+
+    /**
+     * @param kind tells apart the sorts whose runs cannot be merged by one another
+     * @param generator cuts the input in runs, written to the temporary directories of the config it is given
+     * @param merger merges the runs into the output
+     * @return the file lines
+     */
+    static long sortCsv(File inCsvFile, SortConfig config, long memoryLimit, String kind, RunGenerator generator,
+                        RunMerger merger) throws IOException {
+        SortJob job = SortJob.open(inCsvFile, config, kind);
+        SortConfig jobConfig = config.toBuilder().tmpDirectories(job.getDirectories()).job(job).build();
+        long rowCnt;
+        try {
+            List<File> runs;
+            if (job.hasRuns()) {
+                runs = job.getRuns();
+                LOG.info("job {}: the run generation is skipped, {} runs left to merge", config.getJobId(),
+                        runs.size());
+            } else {
+                runs = generator.generate(jobConfig, memoryLimit);
+                job.recordRuns(runs);
+            }
+            rowCnt = merger.merge(runs, jobConfig, memoryLimit);
+        } finally {
+            job.close();
+        }
+        job.finish();
+        return rowCnt;
+    }
+
+    /**
+     * Cuts the input of a resumable sort in runs.
+     */
+    interface RunGenerator {
+        List<File> generate(SortConfig config, long memory) throws IOException;
+    }
+
+    /**
+     * Merges the runs of a resumable sort into its output, the runs are kept when it fails.
+     */
+    interface RunMerger {
+        long merge(List<File> runs, SortConfig config, long memory) throws IOException;
+    }
+}
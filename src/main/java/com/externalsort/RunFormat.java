@@ -0,0 +1,16 @@
+package com.externalsort;
+
+/**
+ * Encoding of the temporary sorted runs between {@link BatchSortedFileProducer} and {@link SortedFilesMerger}.
+ * The final output is always written as CSV.
+ */
+public enum RunFormat {
+    /**
+     * runs are CSV files printed with the user's CSVFormat
+     */
+    CSV,
+    /**
+     * runs use the internal length prefixed format, see {@link com.externalsort.helper.BinaryRunWriter}
+     */
+    BINARY
+}
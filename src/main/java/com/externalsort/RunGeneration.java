@@ -0,0 +1,23 @@
+package com.externalsort;
+
+/**
+ * How {@link BatchSortedFileProducer} keeps the records in memory before sorting and spilling them.
+ */
+public enum RunGeneration {
+    /**
+     * the parsed CSVRecord objects are kept in a list, each block size is measured by
+     * {@link com.externalsort.helper.SizeCalculator}
+     */
+    OBJECT_LIST,
+    /**
+     * the records are encoded into pooled byte pages of a {@link com.externalsort.helper.RecordBuffer}
+     * and only a primitive index is sorted, many more rows fit in a block
+     */
+    BYTE_ARENA,
+    /**
+     * the records go through a heap that always writes the smallest record not below the last one written,
+     * the runs are about twice the memory on random input and a nearly sorted input gives a single run.
+     * The runs are produced on the calling thread
+     */
+    REPLACEMENT_SELECTION
+}
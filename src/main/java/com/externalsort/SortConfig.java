@@ -0,0 +1,648 @@
+package com.externalsort;
+
+import com.externalsort.helper.IStreamWrapper;
+import com.externalsort.helper.RecordCombiner;
+import com.externalsort.helper.SpillCodec;
+import com.externalsort.helper.SpillCodecs;
+import org.apache.commons.csv.CSVFormat;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The options of a sort, built with {@link #builder()}. Instances are immutable and can be shared.
+ * The memory of a sort is reserved from a {@link MemoryBudget}, by default the budget shared by the whole JVM,
+ * and covers the blocks of the run generation as well as the stream buffers of the merge.
+ */
+public class SortConfig {
+
+    private static final IStreamWrapper DEFAULT_WRAPPER = new IStreamWrapper() {};
+
+    // share of the budget reserved by default by a sort whose records are read lazily
+    private static final int LAZY_SORT_SHARE = 4;
+
+    private final List<File> tmpDirectories;
+    private final SpillPlacement spillPlacement;
+    private final SpillDirectories spillDirectories;
+    private final Charset charset;
+    private final CSVFormat csvFormat;
+    private final int headerLineNum;
+    private final boolean distinct;
+    private final boolean append;
+    private final IStreamWrapper wrapper;
+    private final int parallelism;
+    private final RunGeneration runGeneration;
+    private final RunFormat runFormat;
+    private final MergeEngine mergeEngine;
+    private final MemoryBudget memoryBudget;
+    private final long sortMemory;
+    private final SpillCodec spillCodec;
+    private final IStreamWrapper spillWrapper;
+    private final boolean mappedInput;
+    private final int partitions;
+    private final long limit;
+    private final RecordCombiner combiner;
+    private final SortListener listener;
+    private final StatsRecorder recorder;
+    private final String jobId;
+    private final SortJob job;
+    private final boolean verifySorted;
+    private final long partSize;
+    private final int indexInterval;
+    private final IStreamWrapper userWrapper;
+
+    private SortConfig(Builder builder) {
+        this.tmpDirectories = builder.tmpDirectories;
+        this.spillPlacement = builder.spillPlacement;
+        this.spillDirectories = new SpillDirectories(tmpDirectories, spillPlacement, builder.job);
+        this.charset = builder.charset;
+        this.csvFormat = builder.csvFormat;
+        this.headerLineNum = builder.headerLineNum;
+        this.distinct = builder.distinct;
+        this.append = builder.append;
+        this.recorder = builder.recorder;
+        this.userWrapper = builder.wrapper;
+        this.wrapper = recorder.files(builder.wrapper);
+        this.parallelism = builder.parallelism;
+        this.runGeneration = builder.runGeneration;
+        this.runFormat = builder.runFormat;
+        this.mergeEngine = builder.mergeEngine;
+        this.memoryBudget = builder.memoryBudget;
+        this.sortMemory = builder.sortMemory;
+        this.spillCodec = builder.spillCodec;
+        this.spillWrapper = recorder.spills(SpillCodecs.wrap(builder.wrapper, builder.spillCodec));
+        this.mappedInput = builder.mappedInput;
+        this.partitions = builder.partitions;
+        this.limit = builder.limit;
+        this.combiner = builder.combiner;
+        this.listener = builder.listener;
+        this.jobId = builder.jobId;
+        this.job = builder.job;
+        this.verifySorted = builder.verifySorted;
+        this.partSize = builder.partSize;
+        this.indexInterval = builder.indexInterval;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return a builder initialized with the options of this config
+     */
+    public Builder toBuilder() {
+        return new Builder()
+                .tmpDirectories(tmpDirectories)
+                .spillPlacement(spillPlacement)
+                .charset(charset)
+                .csvFormat(csvFormat)
+                .headerLineNum(headerLineNum)
+                .distinct(distinct)
+                .append(append)
+                .wrapper(userWrapper)
+                .parallelism(parallelism)
+                .runGeneration(runGeneration)
+                .runFormat(runFormat)
+                .mergeEngine(mergeEngine)
+                .memoryBudget(memoryBudget)
+                .sortMemory(sortMemory)
+                .spillCodec(spillCodec)
+                .mappedInput(mappedInput)
+                .partitions(partitions)
+                .limit(limit)
+                .combiner(combiner)
+                .listener(listener)
+                .recorder(recorder)
+                .jobId(jobId)
+                .job(job)
+                .verifySorted(verifySorted)
+                .partSize(partSize)
+                .indexInterval(indexInterval);
+    }
+
+    /**
+     * @return the first temporary directory
+     */
+    public File getTmpDirectory() {
+        return tmpDirectories.get(0);
+    }
+
+    /**
+     * @return the directories where the temporary files are spread
+     */
+    public List<File> getTmpDirectories() {
+        return tmpDirectories;
+    }
+
+    public SpillPlacement getSpillPlacement() {
+        return spillPlacement;
+    }
+
+    /**
+     * @return where the temporary files of the sorts using this config are created
+     */
+    SpillDirectories getSpillDirectories() {
+        return spillDirectories;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public CSVFormat getCsvFormat() {
+        return csvFormat;
+    }
+
+    public int getHeaderLineNum() {
+        return headerLineNum;
+    }
+
+    public boolean isDistinct() {
+        return distinct;
+    }
+
+    public boolean isAppend() {
+        return append;
+    }
+
+    public IStreamWrapper getWrapper() {
+        return wrapper;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public RunGeneration getRunGeneration() {
+        return runGeneration;
+    }
+
+    public RunFormat getRunFormat() {
+        return runFormat;
+    }
+
+    public MergeEngine getMergeEngine() {
+        return mergeEngine;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return bytes one sort reserves from the budget, 0 for the whole budget
+     */
+    public long getSortMemory() {
+        return sortMemory;
+    }
+
+    /**
+     * @return the codec of the temporary files, null when they are not compressed
+     */
+    public SpillCodec getSpillCodec() {
+        return spillCodec;
+    }
+
+    /**
+     * @return the wrapper of the temporary files: the spill codec, then the wrapper of the config
+     */
+    public IStreamWrapper getSpillWrapper() {
+        return spillWrapper;
+    }
+
+    public boolean isMappedInput() {
+        return mappedInput;
+    }
+
+    /**
+     * @return number of key ranges sorted independently, 1 when the runs are merged into the output
+     */
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * @return number of records written, the first ones in sort order, 0 for all of them
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the combiner of the records with the same key, null when they are all kept
+     */
+    public RecordCombiner getCombiner() {
+        return combiner;
+    }
+
+    /**
+     * @return the listener receiving the statistics of the sorts, null when they are not collected
+     */
+    public SortListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @return the id of a resumable sort, null when the sort starts over after a failure
+     */
+    public String getJobId() {
+        return jobId;
+    }
+
+    /**
+     * @return true when the sorted file of an incremental sort is checked while it is merged
+     */
+    public boolean isVerifySorted() {
+        return verifySorted;
+    }
+
+    /**
+     * @return target bytes of each part of the output, 0 when the output is a single file
+     */
+    public long getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * @return records between two entries of the index of an output cut in parts
+     */
+    public int getIndexInterval() {
+        return indexInterval;
+    }
+
+    /**
+     * @return the manifest of the resumable sort running with this config, null outside of it
+     */
+    SortJob getJob() {
+        return job;
+    }
+
+    /**
+     * @return the counters of the sort running with this config
+     */
+    StatsRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * @return a copy of this config with the counters of a new sort, or this config when there is no listener
+     */
+    SortConfig newSort() {
+        return listener == null ? this : toBuilder().recorder(new StatsRecorder()).build();
+    }
+
+    /**
+     * Publish the statistics of the sort running with this config to the listener, if any.
+     * @param rowsWritten records of the output
+     */
+    void publish(long rowsWritten) {
+        if (listener != null) {
+            listener.onSortFinished(recorder.snapshot(rowsWritten));
+        }
+    }
+
+    /**
+     * Reserve the memory of one sort from the budget, waiting for the other sorts to release it if needed.
+     * @return the bytes reserved, to give back to {@link #getMemoryBudget()}
+     */
+    long acquireMemory() throws InterruptedIOException {
+        return memoryBudget.acquire(sortMemory > 0 ? sortMemory : memoryBudget.getCapacity());
+    }
+
+    /**
+     * Reserve the memory of a sort returning an iterator, held until the iterator is closed: by default a quarter
+     * of the budget instead of all of it, so that the sorts of a pipeline can be open at the same time on one
+     * thread instead of waiting forever for each other.
+     * @return the bytes reserved, to give back to {@link #getMemoryBudget()}
+     */
+    long acquireLazyMemory() throws InterruptedIOException {
+        return memoryBudget.acquire(sortMemory > 0 ? sortMemory : memoryBudget.getCapacity() / LAZY_SORT_SHARE);
+    }
+
+    public static class Builder {
+        private List<File> tmpDirectories = Collections.singletonList(new File(System.getProperty("java.io.tmpdir")));
+        private SpillPlacement spillPlacement = SpillPlacement.ROUND_ROBIN;
+        private Charset charset = Charset.defaultCharset();
+        private CSVFormat csvFormat = CSVFormat.DEFAULT;
+        private int headerLineNum;
+        private boolean distinct;
+        private boolean append;
+        private IStreamWrapper wrapper = DEFAULT_WRAPPER;
+        private int parallelism = 1;
+        private RunGeneration runGeneration = RunGeneration.OBJECT_LIST;
+        private RunFormat runFormat = RunFormat.BINARY;
+        private MergeEngine mergeEngine = MergeEngine.LOSER_TREE;
+        private MemoryBudget memoryBudget = MemoryBudget.shared();
+        private long sortMemory;
+        private SpillCodec spillCodec;
+        private boolean mappedInput;
+        private int partitions = 1;
+        private long limit;
+        private RecordCombiner combiner;
+        private SortListener listener;
+        private StatsRecorder recorder = StatsRecorder.DISABLED;
+        private String jobId;
+        private SortJob job;
+        private boolean verifySorted;
+        private long partSize;
+        private int indexInterval = 1024;
+
+        private Builder() {
+
+        }
+
+        /**
+         * @param tmpDirectory the directory where the runs are written, java.io.tmpdir by default
+         */
+        public Builder tmpDirectory(File tmpDirectory) {
+            return tmpDirectories(tmpDirectory);
+        }
+
+        /**
+         * @param tmpDirectories the directories where the runs are spread, eg. one per local drive so that the
+         *                       spill bandwidth adds up. The output of an intermediate merge is written to
+         *                       another directory than its inputs when possible
+         */
+        public Builder tmpDirectories(File... tmpDirectories) {
+            return tmpDirectories(Arrays.asList(tmpDirectories));
+        }
+
+        /**
+         * @see #tmpDirectories(File...)
+         */
+        public Builder tmpDirectories(List<File> tmpDirectories) {
+            if (tmpDirectories.isEmpty()) {
+                throw new IllegalArgumentException("at least one temporary directory is needed");
+            }
+            this.tmpDirectories = Collections.unmodifiableList(new ArrayList<>(tmpDirectories));
+            return this;
+        }
+
+        /**
+         * @param spillPlacement how the runs are spread over the temporary directories, round robin by default
+         */
+        public Builder spillPlacement(SpillPlacement spillPlacement) {
+            this.spillPlacement = spillPlacement;
+            return this;
+        }
+
+        /**
+         * @param charset charset to parse the input file
+         */
+        public Builder charset(Charset charset) {
+            this.charset = charset;
+            return this;
+        }
+
+        /**
+         * @param csvFormat format of the output file, CSVFormat.DEFAULT by default
+         */
+        public Builder csvFormat(CSVFormat csvFormat) {
+            this.csvFormat = csvFormat;
+            return this;
+        }
+
+        /**
+         * @param headerLineNum how many line in csv header, this should be precluded before sorting starts
+         */
+        public Builder headerLineNum(int headerLineNum) {
+            this.headerLineNum = headerLineNum;
+            return this;
+        }
+
+        /**
+         * @param distinct if true only the first record of each key is kept
+         */
+        public Builder distinct(boolean distinct) {
+            this.distinct = distinct;
+            return this;
+        }
+
+        /**
+         * @param append if true the output file is appended, otherwise it is overwritten
+         */
+        public Builder append(boolean append) {
+            this.append = append;
+            return this;
+        }
+
+        /**
+         * @param wrapper wraps every file stream, eg. to encrypt the files
+         */
+        public Builder wrapper(IStreamWrapper wrapper) {
+            this.wrapper = wrapper;
+            return this;
+        }
+
+        /**
+         * @param parallelism number of threads sorting the runs and running the intermediate merges,
+         *                    when &gt; 1 the comparator and the wrapper must be thread safe
+         */
+        public Builder parallelism(int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+            }
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * @param runGeneration how the records are held in memory before being sorted
+         */
+        public Builder runGeneration(RunGeneration runGeneration) {
+            this.runGeneration = runGeneration;
+            return this;
+        }
+
+        /**
+         * @param runFormat encoding of the temporary files
+         */
+        public Builder runFormat(RunFormat runFormat) {
+            this.runFormat = runFormat;
+            return this;
+        }
+
+        /**
+         * @param mergeEngine the k-way merge algorithm
+         */
+        public Builder mergeEngine(MergeEngine mergeEngine) {
+            this.mergeEngine = mergeEngine;
+            return this;
+        }
+
+        /**
+         * @param memoryBudget the budget the memory of the sort is reserved from,
+         *                     {@link MemoryBudget#shared()} by default
+         */
+        public Builder memoryBudget(MemoryBudget memoryBudget) {
+            this.memoryBudget = memoryBudget;
+            return this;
+        }
+
+        /**
+         * Give the sort its own budget of an exact number of bytes.
+         */
+        public Builder memoryBudget(long bytes) {
+            return memoryBudget(new MemoryBudget(bytes));
+        }
+
+        /**
+         * @param sortMemory bytes one sort reserves from a shared budget, so that several sorts run at once;
+         *                   0, the default, reserves the whole budget, a quarter of it for a sort returning an
+         *                   iterator
+         */
+        public Builder sortMemory(long sortMemory) {
+            if (sortMemory < 0) {
+                throw new IllegalArgumentException("sort memory must not be negative: " + sortMemory);
+            }
+            this.sortMemory = sortMemory;
+            return this;
+        }
+
+        /**
+         * @param spillCodec compresses the temporary files only, the output file is written as is;
+         *                   see {@link SpillCodecs}, null, the default, to write them uncompressed.
+         *                   The runs must be merged with the codec they were written with
+         */
+        public Builder spillCodec(SpillCodec spillCodec) {
+            this.spillCodec = spillCodec;
+            return this;
+        }
+
+        /**
+         * @param mappedInput if true the input file is memory mapped and split in parallelism chunks at record
+         *                    boundaries, each chunk is parsed and sorted on its own thread. The input must be a
+         *                    plain file, the wrapper is not applied to it, in a charset where line breaks and
+         *                    quotes are single bytes such as UTF-8. Ignored by
+         *                    {@link RunGeneration#REPLACEMENT_SELECTION}
+         */
+        public Builder mappedInput(boolean mappedInput) {
+            this.mappedInput = mappedInput;
+            return this;
+        }
+
+        /**
+         * @param partitions when &gt; 1 the input is sampled to cut the keys in partitions ranges, the records of
+         *                   each range are sorted apart, parallelism ranges at a time, and the ranges are written
+         *                   one after the other so there is no final merge. It costs two more reads of the input,
+         *                   worth it when the merge is the bottleneck. 1, the default, sorts in one piece
+         */
+        public Builder partitions(int partitions) {
+            if (partitions < 1) {
+                throw new IllegalArgumentException("partitions must be at least 1: " + partitions);
+            }
+            this.partitions = partitions;
+            return this;
+        }
+
+        /**
+         * @param limit when &gt; 0 only the first limit records in sort order are written: the best ones are kept in
+         *              a bounded set while the input is read, without temporary files. When they do not fit in the
+         *              memory the sort goes through runs cut to limit records. 0, the default, writes all of them.
+         *              Partitions do not apply to a limited sort. The limit applies to the sort of one file only,
+         *              the sorts of several inputs, of records, the incremental sort and the join write all records
+         */
+        public Builder limit(long limit) {
+            if (limit < 0) {
+                throw new IllegalArgumentException("limit must not be negative: " + limit);
+            }
+            this.limit = limit;
+            return this;
+        }
+
+        /**
+         * @param combiner collapses the records with the same key into one, during the run generation and again
+         *                 at each merge level, null by default. It takes the place of distinct, see
+         *                 {@link com.externalsort.helper.RecordCombiners}
+         */
+        public Builder combiner(RecordCombiner combiner) {
+            this.combiner = combiner;
+            return this;
+        }
+
+        /**
+         * @param listener receives the {@link SortStats} of each sort, null by default. The counters are cheap
+         *                 enough to stay on: a few adds per record and two clock reads per buffer of IO
+         */
+        public Builder listener(SortListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        Builder recorder(StatsRecorder recorder) {
+            this.recorder = recorder;
+            return this;
+        }
+
+        /**
+         * @param jobId makes the sort resumable, null by default. Its runs and intermediate merges are written to a
+         *              directory named after the id in each temporary directory, with a manifest of the finished
+         *              ones and their checksums, and are kept when the sort fails. A sort of the same input with
+         *              the same id, comparator and options skips the work recorded in the manifest, the directories
+         *              are removed once the output is written. An input that changed starts over, so do other
+         *              options, the CSV format and the run generation included, and a combiner with another
+         *              {@link RecordCombiner#name()}. The comparator, or the key, is not checked: it must be the
+         *              same at each attempt, a sort in another order needs another id. Partitions do not apply to
+         *              a resumable sort, nor does the job to a sort with a limit or to a sort of records
+         */
+        public Builder jobId(String jobId) {
+            if (jobId != null && !jobId.matches("[A-Za-z0-9_-][A-Za-z0-9._-]*")) {
+                throw new IllegalArgumentException("a job id is made of letters, digits, '.', '_' and '-': " + jobId);
+            }
+            this.jobId = jobId;
+            return this;
+        }
+
+        Builder job(SortJob job) {
+            this.job = job;
+            return this;
+        }
+
+        /**
+         * @param verifySorted if true the sorted file of an incremental sort is checked against the comparator as
+         *                     it is merged, an out of order record fails the sort. false by default, the file is
+         *                     trusted to come from a sort with the same comparator
+         */
+        public Builder verifySorted(boolean verifySorted) {
+            this.verifySorted = verifySorted;
+            return this;
+        }
+
+        /**
+         * @param partSize when &gt; 0 the sorted output is cut in numbered part files of about partSize bytes,
+         *                 written next to the output file, with a sparse index of their records for range lookups,
+         *                 see {@link PartIndex}. The output file itself is not written. A part is closed at the first
+         *                 indexed record past partSize. 0, the default, writes a single file. Append and partitions
+         *                 do not apply to an output in parts
+         */
+        public Builder partSize(long partSize) {
+            if (partSize < 0) {
+                throw new IllegalArgumentException("part size must not be negative: " + partSize);
+            }
+            this.partSize = partSize;
+            return this;
+        }
+
+        /**
+         * @param indexInterval the index of an output cut in parts lists the first record of each part and every
+         *                      indexInterval-th record after it, 1024 by default. A smaller interval makes the lookups
+         *                      read fewer records and the index larger
+         */
+        public Builder indexInterval(int indexInterval) {
+            if (indexInterval < 1) {
+                throw new IllegalArgumentException("index interval must be at least 1: " + indexInterval);
+            }
+            this.indexInterval = indexInterval;
+            return this;
+        }
+
+        public SortConfig build() {
+            return new SortConfig(this);
+        }
+    }
+}
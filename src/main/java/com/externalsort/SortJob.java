@@ -0,0 +1,340 @@
+package com.externalsort;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The manifest of a resumable sort, see {@link SortConfig.Builder#jobId(String)}. The files of the job are written
+ * to a directory named after the id in each temporary directory, the manifest lives in the first one and has one
+ * line per event, its fields separated by tabs:
+ * <pre>
+ * sort   the fingerprint of the input and of the options of the sort
+ * run    path, length and CRC-32 of a run, in the order of the runs
+ * runs   the run generation is over
+ * merge  path, length and CRC-32 of an intermediate merge, then the paths of its inputs
+ * </pre>
+ * The checksums are computed while the files are written, see {@link SpillDirectories#create(File)}.
+ * A line is synced before the files it replaces are deleted, so a crash at any point leaves either the inputs
+ * of a merge or its recorded output. When the job is opened again the manifest is replayed, the files it lists are
+ * checked against their checksums and every other file of the job directories is deleted.
+ */
+class SortJob {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SortJob.class);
+
+    private static final String MANIFEST = "manifest";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final List<File> directories;
+    private final File manifest;
+    // the inputs of the merge with their checksum, in order, once the run generation is over
+    private final Map<File, Checkpoint> files = new LinkedHashMap<>();
+    // the checksums of the files written, until they are recorded
+    private final Map<File, Checkpoint> written = new ConcurrentHashMap<>();
+    private boolean runsWritten;
+    private FileOutputStream out;
+
+    private SortJob(List<File> directories) {
+        this.directories = directories;
+        this.manifest = new File(directories.get(0), MANIFEST);
+    }
+
+    /**
+     * Open the job of a sort, resuming the work recorded by a previous attempt with the same input and options.
+     * @param kind tells apart the sorts whose runs cannot be merged by one another
+     */
+    static SortJob open(File input, SortConfig config, String kind) throws IOException {
+        List<File> directories = new ArrayList<>();
+        for (File tmpDirectory : config.getTmpDirectories()) {
+            File directory = new File(tmpDirectory, "externalsort-" + config.getJobId()).getAbsoluteFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("cannot create the job directory " + directory);
+            }
+            directories.add(directory);
+        }
+        SortJob job = new SortJob(directories);
+        String fingerprint = fingerprint(input, config, kind);
+        if (!job.load(fingerprint)) {
+            job.files.clear();
+            job.runsWritten = false;
+        }
+        job.rewrite(fingerprint);
+        return job;
+    }
+
+    private static String fingerprint(File input, SortConfig config, String kind) {
+        return String.join("|", input.getAbsolutePath(), String.valueOf(input.length()),
+                String.valueOf(input.lastModified()), kind, config.getRunFormat().name(),
+                String.valueOf(config.getSpillCodec() != null), String.valueOf(config.isDistinct()),
+                config.getCombiner() == null ? "" : config.getCombiner().name(),
+                String.valueOf(config.getHeaderLineNum()), config.getCharset().name(),
+                config.getRunGeneration().name(), escape(config.getCsvFormat().toString()));
+    }
+
+    /**
+     * @return the value on a single line of the manifest, a record separator is written as an escape sequence
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\r", "\\r").replace("\n", "\\n").replace("\t", "\\t");
+    }
+
+    /**
+     * @return the directories where the files of the job are written, one per temporary directory
+     */
+    List<File> getDirectories() {
+        return directories;
+    }
+
+    /**
+     * @return true when a previous attempt finished the run generation
+     */
+    boolean hasRuns() {
+        return runsWritten;
+    }
+
+    /**
+     * @return what is left to merge: the runs, and the intermediate merges in place of their inputs
+     */
+    List<File> getRuns() {
+        return new ArrayList<>(files.keySet());
+    }
+
+    /**
+     * @return a stream writing a file of the job, its checksum is kept once it is closed so that recording the
+     * file does not read it again
+     */
+    OutputStream create(File file) throws IOException {
+        File key = file.getAbsoluteFile();
+        CRC32 crc = new CRC32();
+        return new CheckedOutputStream(new FileOutputStream(file), crc) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    super.close();
+                    written.put(key, new Checkpoint(key.length(), crc.getValue()));
+                }
+            }
+        };
+    }
+
+    /**
+     * Record the runs once the run generation is over, with their checksums.
+     */
+    synchronized void recordRuns(List<File> runs) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (File run : runs) {
+            Checkpoint checkpoint = checkpoint(run);
+            files.put(run.getAbsoluteFile(), checkpoint);
+            lines.append(line("run", run, checkpoint)).append('\n');
+        }
+        lines.append("runs\t").append(runs.size()).append('\n');
+        append(lines.toString());
+        runsWritten = true;
+    }
+
+    /**
+     * Record an intermediate merge, before its inputs are deleted.
+     */
+    void recordMerge(List<File> inputs, File output) throws IOException {
+        Checkpoint checkpoint = checkpoint(output);
+        StringBuilder line = new StringBuilder(line("merge", output, checkpoint));
+        for (File input : inputs) {
+            line.append('\t').append(input.getAbsolutePath());
+        }
+        synchronized (this) {
+            append(line.append('\n').toString());
+            for (File input : inputs) {
+                files.remove(input.getAbsoluteFile());
+            }
+            files.put(output.getAbsoluteFile(), checkpoint);
+        }
+    }
+
+    /**
+     * Close the manifest, the files of the job stay for the next attempt.
+     */
+    synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Remove the job once its output is written.
+     */
+    void finish() throws IOException {
+        close();
+        for (File directory : directories) {
+            deleteAllBut(directory, Collections.emptyList());
+            if (!directory.delete()) {
+                LOG.warn("The job directory {} was not deleted", directory);
+            }
+        }
+    }
+
+    /**
+     * Replay the manifest and check the files it lists.
+     * @return true when the previous attempt can be resumed
+     */
+    private boolean load(String fingerprint) throws IOException {
+        if (!manifest.exists()) {
+            return false;
+        }
+        String content = new String(Files.readAllBytes(manifest.toPath()), StandardCharsets.UTF_8);
+        // a line without its line break was being written when the previous attempt died
+        String[] lines = content.substring(0, content.lastIndexOf('\n') + 1).split("\n");
+        if (!lines[0].equals("sort\t" + fingerprint)) {
+            LOG.info("the job {} was started for another input or other options, it starts over", manifest);
+            return false;
+        }
+        for (int l = 1; l < lines.length; l++) {
+            String[] fields = lines[l].split("\t");
+            if (fields[0].equals("run")) {
+                files.put(new File(fields[1]), Checkpoint.parse(fields));
+            } else if (fields[0].equals("runs")) {
+                runsWritten = true;
+            } else if (fields[0].equals("merge")) {
+                for (int i = 4; i < fields.length; i++) {
+                    files.remove(new File(fields[i]));
+                }
+                files.put(new File(fields[1]), Checkpoint.parse(fields));
+            } else {
+                throw new IOException("unknown line in the manifest " + manifest + ": " + lines[l]);
+            }
+        }
+        if (!runsWritten) {
+            LOG.info("the run generation of the job {} did not finish, it starts over", manifest);
+            return false;
+        }
+        for (Map.Entry<File, Checkpoint> file : files.entrySet()) {
+            if (!file.getValue().matches(file.getKey())) {
+                LOG.warn("{} of the job {} is missing or damaged, the job starts over", file.getKey(), manifest);
+                return false;
+            }
+        }
+        LOG.info("resuming the job {} with {} runs left to merge", manifest, files.size());
+        return true;
+    }
+
+    /**
+     * Replace the manifest by the state of the job and delete the files it does not list.
+     */
+    private void rewrite(String fingerprint) throws IOException {
+        File tmp = new File(manifest.getParentFile(), MANIFEST + ".tmp");
+        StringBuilder lines = new StringBuilder("sort\t").append(fingerprint).append('\n');
+        if (runsWritten) {
+            for (Map.Entry<File, Checkpoint> file : files.entrySet()) {
+                lines.append(line("run", file.getKey(), file.getValue())).append('\n');
+            }
+            lines.append("runs\t").append(files.size()).append('\n');
+        }
+        try (FileOutputStream tmpOut = new FileOutputStream(tmp)) {
+            tmpOut.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            tmpOut.getFD().sync();
+        }
+        Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        List<File> kept = new ArrayList<>(files.keySet());
+        kept.add(manifest);
+        for (File directory : directories) {
+            deleteAllBut(directory, kept);
+        }
+        out = new FileOutputStream(manifest, true);
+    }
+
+    private void append(String lines) throws IOException {
+        if (out == null) {
+            throw new IOException("the job " + manifest + " is closed");
+        }
+        out.write(lines.getBytes(StandardCharsets.UTF_8));
+        out.getFD().sync();
+    }
+
+    /**
+     * @return the checksum of a finished file, computed while it was written when it went through {@link #create}
+     */
+    private Checkpoint checkpoint(File file) throws IOException {
+        Checkpoint checkpoint = written.remove(file.getAbsoluteFile());
+        return checkpoint != null ? checkpoint : Checkpoint.of(file);
+    }
+
+    private static String line(String event, File file, Checkpoint checkpoint) {
+        return event + "\t" + file.getAbsolutePath() + "\t" + checkpoint.length + "\t" + checkpoint.crc;
+    }
+
+    private static void deleteAllBut(File directory, List<File> kept) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (!kept.contains(child.getAbsoluteFile()) && !child.delete()) {
+                LOG.warn("The file {} was not deleted", child.getName());
+            }
+        }
+    }
+
+    /**
+     * The length and the CRC-32 of a finished file.
+     */
+    private static final class Checkpoint {
+        private final long length;
+        private final long crc;
+
+        private Checkpoint(long length, long crc) {
+            this.length = length;
+            this.crc = crc;
+        }
+
+        static Checkpoint of(File file) throws IOException {
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long length = 0;
+            try (InputStream in = new FileInputStream(file)) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, n);
+                    length += n;
+                }
+            }
+            return new Checkpoint(length, crc.getValue());
+        }
+
+        /**
+         * @param fields an event, then the path, the length and the checksum
+         */
+        static Checkpoint parse(String[] fields) {
+            return new Checkpoint(Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+        }
+
+        boolean matches(File file) throws IOException {
+            if (!file.isFile() || file.length() != length) {
+                return false;
+            }
+            return of(file).crc == crc;
+        }
+    }
+}
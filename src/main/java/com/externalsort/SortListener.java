@@ -0,0 +1,14 @@
+package com.externalsort;
+
+/**
+ * Receives the statistics of the sorts run with a config, see {@link SortConfig.Builder#listener(SortListener)}.
+ * It is called on the thread of the sort, once per successful sort, and must not throw.
+ */
+public interface SortListener {
+
+    /**
+     * @param stats the statistics of a sort, once its output is written or, for a sort returning an iterator,
+     *              once the iterator is closed
+     */
+    void onSortFinished(SortStats stats);
+}
@@ -0,0 +1,350 @@
+package com.externalsort;
+
+import com.externalsort.helper.CloseableIterator;
+import com.externalsort.helper.CoGrouper;
+import com.externalsort.helper.CsvRecords;
+import com.externalsort.helper.IOSink;
+import com.externalsort.helper.IOStack;
+import com.externalsort.helper.SizeCalculator;
+import com.externalsort.helper.SortKeyExtractor;
+import com.externalsort.helper.SortKeys;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Sort-merge co-group of two CSV files, see {@link ExternalSort#coGroupCsv} and {@link ExternalSort#joinCsv}.
+ * Both inputs are cut in sorted runs by their own key, then the final merges of the two sides are read in step
+ * instead of being written: two cursors go through the keys in order, the records of the current key are gathered
+ * on each side and handed to the co-grouper. The records of a key stay in memory up to a share of the memory of
+ * the sort and go to a temporary file past it, so a key with many records does not exhaust the heap.
+ */
+class SortMergeJoin {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SortMergeJoin.class);
+
+    /**
+     * @param memoryLimit bytes already reserved, see {@link #run}
+     * @return the rows written
+     */
+    static long coGroup(File leftCsvFile, SortKeyExtractor leftKey, File rightCsvFile, SortKeyExtractor rightKey,
+                        File outCsvFile, CoGrouper grouper, SortConfig config, Executor executor, long memoryLimit)
+            throws IOException {
+        return run(leftCsvFile, leftKey, rightCsvFile, rightKey, outCsvFile, (leftWidth, rightWidth) -> grouper,
+                config, executor, memoryLimit);
+    }
+
+    /**
+     * @param memoryLimit bytes already reserved, see {@link #run}
+     * @return the rows written
+     */
+    static long join(File leftCsvFile, SortKeyExtractor leftKey, File rightCsvFile, SortKeyExtractor rightKey,
+                     File outCsvFile, JoinType type, SortConfig config, Executor executor, long memoryLimit)
+            throws IOException {
+        return run(leftCsvFile, leftKey, rightCsvFile, rightKey, outCsvFile,
+                (leftWidth, rightWidth) -> joiner(type, leftWidth, rightWidth), config, executor, memoryLimit);
+    }
+
+    /**
+     * @param memoryLimit bytes already reserved: all of it for the run generation of each side in turn, then a
+     *                    quarter for the final merge and a quarter for the records of the current key of each side
+     */
+    private static long run(File leftCsvFile, SortKeyExtractor leftKey, File rightCsvFile, SortKeyExtractor rightKey,
+                            File outCsvFile, GrouperFactory factory, SortConfig config, Executor executor,
+                            long memoryLimit) throws IOException {
+        Comparator<CSVRecord> leftCmp = config.getRecorder().counting(SortKeys.comparator(leftKey));
+        Comparator<CSVRecord> rightCmp = config.getRecorder().counting(SortKeys.comparator(rightKey));
+        List<File> leftRuns = BatchSortedFileProducer.sortCsvInBatch(leftCsvFile, leftCmp, config, memoryLimit);
+        List<File> rightRuns;
+        try {
+            rightRuns = BatchSortedFileProducer.sortCsvInBatch(rightCsvFile, rightCmp, config, memoryLimit);
+        } catch (IOException | RuntimeException e) {
+            SortedFilesMerger.deleteFiles(leftRuns);
+            throw e;
+        }
+        long share = memoryLimit / 4;
+        try {
+            CloseableIterator<CSVRecord> leftRecords = SortedFilesMerger.iterateSortedRuns(leftRuns, leftCmp, config,
+                    executor, share, () -> { });
+            try (KeyedCursor left = new KeyedCursor(leftRecords, leftKey);
+                 KeyedCursor right = new KeyedCursor(SortedFilesMerger.iterateSortedRuns(rightRuns, rightCmp, config,
+                         executor, share, () -> { }), rightKey);
+                 IOSink<CSVRecord> out = BatchSortedFileProducer.openOutput(outCsvFile, config)) {
+                CoGrouper grouper = factory.create(left.empty() ? 0 : left.peek().size(),
+                        right.empty() ? 0 : right.peek().size());
+                return coGroup(left, right, grouper, out, config, share);
+            } catch (UncheckedIOException e) {
+                // from the records of a key read back from their temporary file
+                throw e.getCause();
+            }
+        } catch (IOException | RuntimeException e) {
+            // the runs of a side whose records were opened are already deleted by their close
+            SortedFilesMerger.deleteFiles(leftRuns);
+            SortedFilesMerger.deleteFiles(rightRuns);
+            throw e;
+        }
+    }
+
+    private static long coGroup(KeyedCursor left, KeyedCursor right, CoGrouper grouper, IOSink<CSVRecord> out,
+                                SortConfig config, long groupMemory) throws IOException {
+        long start = config.getRecorder().start();
+        long[] rowCnt = new long[1];
+        IOSink<CSVRecord> counting = new IOSink<CSVRecord>() {
+            @Override
+            public void push(CSVRecord record) throws IOException {
+                out.push(record);
+                rowCnt[0]++;
+            }
+
+            @Override
+            public void close() {
+                // the output is closed by the caller
+            }
+        };
+        try (Group leftGroup = new Group(config, groupMemory); Group rightGroup = new Group(config, groupMemory)) {
+            while (!left.empty() || !right.empty()) {
+                int c = left.empty() ? 1 : right.empty() ? -1 : SortKeys.compare(left.peekKey(), right.peekKey());
+                leftGroup.clear();
+                rightGroup.clear();
+                if (c <= 0) {
+                    left.popGroup(leftGroup);
+                }
+                if (c >= 0) {
+                    right.popGroup(rightGroup);
+                }
+                grouper.coGroup(leftGroup, rightGroup, counting);
+            }
+        }
+        config.getRecorder().phase(SortStats.Phase.OUTPUT, start);
+        return rowCnt[0];
+    }
+
+    /**
+     * @param leftWidth fields of a left record, the blanks of a right record without a left one
+     * @param rightWidth fields of a right record, the blanks of a left record without a right one
+     */
+    private static CoGrouper joiner(JoinType type, int leftWidth, int rightWidth) {
+        return (left, right, out) -> {
+            boolean leftEmpty = true;
+            for (CSVRecord l : left) {
+                leftEmpty = false;
+                boolean matched = false;
+                for (CSVRecord r : right) {
+                    out.push(joined(l, leftWidth, r, rightWidth));
+                    matched = true;
+                }
+                if (!matched && type != JoinType.INNER) {
+                    out.push(joined(l, leftWidth, null, rightWidth));
+                }
+            }
+            if (leftEmpty && type == JoinType.FULL_OUTER) {
+                for (CSVRecord r : right) {
+                    out.push(joined(null, leftWidth, r, rightWidth));
+                }
+            }
+        };
+    }
+
+    private static CSVRecord joined(CSVRecord left, int leftWidth, CSVRecord right, int rightWidth) {
+        String[] l = left == null ? blanks(leftWidth) : CsvRecords.values(left);
+        String[] r = right == null ? blanks(rightWidth) : CsvRecords.values(right);
+        String[] values = Arrays.copyOf(l, l.length + r.length);
+        System.arraycopy(r, 0, values, l.length, r.length);
+        return CsvRecords.of(values, 0);
+    }
+
+    private static String[] blanks(int width) {
+        String[] values = new String[width];
+        Arrays.fill(values, "");
+        return values;
+    }
+
+    /**
+     * Builds the co-grouper once the number of fields of each side is known.
+     */
+    private interface GrouperFactory {
+        CoGrouper create(int leftWidth, int rightWidth);
+    }
+
+    /**
+     * The sorted records of one side, with the key of the next one.
+     */
+    private static final class KeyedCursor implements IOStack<CSVRecord>, Closeable {
+        private final CloseableIterator<CSVRecord> records;
+        private final SortKeyExtractor keyExtractor;
+        private CSVRecord cache;
+        private byte[] key;
+
+        KeyedCursor(CloseableIterator<CSVRecord> records, SortKeyExtractor keyExtractor) throws IOException {
+            this.records = records;
+            this.keyExtractor = keyExtractor;
+            try {
+                reload();
+            } catch (IOException | RuntimeException e) {
+                records.close();
+                throw e;
+            }
+        }
+
+        byte[] peekKey() {
+            return key;
+        }
+
+        /**
+         * Move the records with the key of the next one to a group.
+         */
+        void popGroup(Group group) throws IOException {
+            byte[] groupKey = key;
+            while (!empty() && Arrays.equals(key, groupKey)) {
+                group.add(pop());
+            }
+            group.seal();
+        }
+
+        @Override
+        public void close() throws IOException {
+            records.close();
+        }
+
+        @Override
+        public boolean empty() {
+            return cache == null;
+        }
+
+        @Override
+        public CSVRecord peek() {
+            return cache;
+        }
+
+        @Override
+        public CSVRecord pop() throws IOException {
+            CSVRecord ret = cache;
+            reload();
+            return ret;
+        }
+
+        private void reload() throws IOException {
+            try {
+                cache = records.hasNext() ? records.next() : null;
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            key = cache == null ? null : keyExtractor.keyOf(cache);
+        }
+    }
+
+    /**
+     * The records of one side for the current key, in memory or in a temporary file once they are over the memory
+     * of the group. A spilled group is read again from its file at each iteration.
+     */
+    private static final class Group implements Iterable<CSVRecord>, Closeable {
+        private final SortConfig config;
+        private final long memoryLimit;
+        private final List<CSVRecord> records = new ArrayList<>();
+        private final List<CSVParser> readers = new ArrayList<>();
+        private long memoryUsed;
+        private File spill;
+        private CSVPrinter spillPrinter;
+
+        Group(SortConfig config, long memoryLimit) {
+            this.config = config;
+            this.memoryLimit = memoryLimit;
+        }
+
+        void add(CSVRecord record) throws IOException {
+            if (spill != null) {
+                spillPrinter.printRecord(record);
+                return;
+            }
+            records.add(record);
+            long size = SizeCalculator.sizeOf(record);
+            memoryUsed += size;
+            config.getRecorder().buffered(size);
+            if (memoryUsed > memoryLimit) {
+                spill = config.getSpillDirectories().newFile("group", ".csv");
+                LOG.debug("the records of a key are over {} bytes, they go to {}", memoryLimit, spill.getName());
+                spillPrinter = new CSVPrinter(new BufferedWriter(new OutputStreamWriter(
+                        config.getSpillWrapper().wrap(new FileOutputStream(spill)), config.getCharset())),
+                        CSVFormat.DEFAULT);
+                for (CSVRecord r : records) {
+                    spillPrinter.printRecord(r);
+                }
+                releaseMemory();
+            }
+        }
+
+        /**
+         * The group is complete, its temporary file can be read.
+         */
+        void seal() throws IOException {
+            if (spillPrinter != null) {
+                spillPrinter.close();
+                spillPrinter = null;
+            }
+        }
+
+        @Override
+        public Iterator<CSVRecord> iterator() {
+            if (spill == null) {
+                return Collections.unmodifiableList(records).iterator();
+            }
+            try {
+                CSVParser parser = new CSVParser(new BufferedReader(new InputStreamReader(
+                        config.getSpillWrapper().wrap(new FileInputStream(spill)), config.getCharset())),
+                        CSVFormat.DEFAULT);
+                readers.add(parser);
+                return parser.iterator();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void clear() throws IOException {
+            releaseMemory();
+            try {
+                seal();
+                for (CSVParser reader : readers) {
+                    reader.close();
+                }
+            } finally {
+                readers.clear();
+                if (spill != null && spill.exists() && !spill.delete()) {
+                    LOG.warn("The file {} was not deleted", spill.getName());
+                }
+                spill = null;
+            }
+        }
+
+        private void releaseMemory() {
+            config.getRecorder().buffered(-memoryUsed);
+            records.clear();
+            memoryUsed = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            clear();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.externalsort;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a sort did, published to the {@link SortListener} of its config. Instances are immutable snapshots.
+ * The counters are kept by the threads of the sort without locking, so collecting them costs a few adds per
+ * record and per buffer of IO. Times are in nanoseconds, bytes are the bytes of the files, after the wrapper.
+ */
+public class SortStats {
+
+    /**
+     * The phases a sort goes through, their times are summed over the threads when partitions are sorted
+     * at the same time.
+     */
+    public enum Phase {
+        /**
+         * sampling the input and writing the records of each key range to its partition
+         */
+        PARTITIONING,
+        /**
+         * reading the input and writing the sorted runs, or reading and sorting it in memory
+         */
+        RUN_GENERATION,
+        /**
+         * the merges writing intermediate runs, when the runs cannot be merged in one pass
+         */
+        INTERMEDIATE_MERGES,
+        /**
+         * writing the output: the final merge, the records sorted in memory, the move of the single run or the
+         * copy of the partitions. The final merge of a sort returning an iterator runs as it is consumed and is
+         * only part of the total time
+         */
+        OUTPUT
+    }
+
+    private final long totalNanos;
+    private final Map<Phase, Long> phaseNanos;
+    private final long rowsRead;
+    private final long rowsWritten;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final List<Long> runSizes;
+    private final int mergePasses;
+    private final int fanIn;
+    private final long bytesSpilled;
+    private final long bytesReread;
+    private final long comparisons;
+    private final long wrapperNanos;
+    private final long peakBufferedBytes;
+
+    SortStats(long totalNanos, Map<Phase, Long> phaseNanos, long rowsRead, long rowsWritten, long bytesRead,
+              long bytesWritten, List<Long> runSizes, int mergePasses, int fanIn, long bytesSpilled,
+              long bytesReread, long comparisons, long wrapperNanos, long peakBufferedBytes) {
+        this.totalNanos = totalNanos;
+        this.phaseNanos = Collections.unmodifiableMap(new EnumMap<>(phaseNanos));
+        this.rowsRead = rowsRead;
+        this.rowsWritten = rowsWritten;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.runSizes = Collections.unmodifiableList(runSizes);
+        this.mergePasses = mergePasses;
+        this.fanIn = fanIn;
+        this.bytesSpilled = bytesSpilled;
+        this.bytesReread = bytesReread;
+        this.comparisons = comparisons;
+        this.wrapperNanos = wrapperNanos;
+        this.peakBufferedBytes = peakBufferedBytes;
+    }
+
+    /**
+     * @return wall time of the sort, from the call to its return or to the close of its iterator
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return time spent in a phase, 0 for a phase the sort did not go through
+     */
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos.getOrDefault(phase, 0L);
+    }
+
+    /**
+     * @return records read from the input, the header lines excluded
+     */
+    public long getRowsRead() {
+        return rowsRead;
+    }
+
+    /**
+     * @return records written to the output, or returned by the iterator
+     */
+    public long getRowsWritten() {
+        return rowsWritten;
+    }
+
+    /**
+     * @return bytes read from the input file, each time it is read
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return bytes written to the output file
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return number of runs written by the run generation, 0 for a sort in memory
+     */
+    public int getRunCount() {
+        return runSizes.size();
+    }
+
+    /**
+     * @return bytes of each run written by the run generation, in the order they were cut
+     */
+    public List<Long> getRunSizes() {
+        return runSizes;
+    }
+
+    /**
+     * @return passes of the merge over the data, 1 when the runs are merged at once, 0 without runs
+     */
+    public int getMergePasses() {
+        return mergePasses;
+    }
+
+    /**
+     * @return the largest number of runs merged at once
+     */
+    public int getFanIn() {
+        return fanIn;
+    }
+
+    /**
+     * @return bytes written to the temporary files: runs, intermediate merges and partitions
+     */
+    public long getBytesSpilled() {
+        return bytesSpilled;
+    }
+
+    /**
+     * @return bytes read back from the temporary files
+     */
+    public long getBytesReread() {
+        return bytesReread;
+    }
+
+    /**
+     * @return calls to the comparator of the sort, 0 for a sort by binary keys
+     */
+    public long getComparisons() {
+        return comparisons;
+    }
+
+    /**
+     * @return time spent in the streams of the wrapper and of the spill codec, the file IO excluded
+     */
+    public long getWrapperNanos() {
+        return wrapperNanos;
+    }
+
+    /**
+     * @return the most bytes of records held in memory at once, measured when the blocks are handed to the
+     * sort, on the heap of replacement selection and on the records sorted in memory
+     */
+    public long getPeakBufferedBytes() {
+        return peakBufferedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "SortStats{totalNanos=" + totalNanos + ", phaseNanos=" + phaseNanos + ", rowsRead=" + rowsRead
+                + ", rowsWritten=" + rowsWritten + ", bytesRead=" + bytesRead + ", bytesWritten=" + bytesWritten
+                + ", runs=" + runSizes.size() + ", mergePasses=" + mergePasses + ", fanIn=" + fanIn
+                + ", bytesSpilled=" + bytesSpilled + ", bytesReread=" + bytesReread + ", comparisons=" + comparisons
+                + ", wrapperNanos=" + wrapperNanos + ", peakBufferedBytes=" + peakBufferedBytes + "}";
+    }
+}
@@ -1,7 +1,19 @@
 package com.externalsort;
 
+import com.externalsort.helper.BinaryRunStack;
+import com.externalsort.helper.BinaryRunWriter;
+import com.externalsort.helper.CloseableIterator;
+import com.externalsort.helper.CsvChunks;
 import com.externalsort.helper.CsvFilelineStack;
+import com.externalsort.helper.CsvPrinterSink;
+import com.externalsort.helper.IOSink;
+import com.externalsort.helper.IOStack;
 import com.externalsort.helper.IStreamWrapper;
+import com.externalsort.helper.LoserTree;
+import com.externalsort.helper.ReadAheadInputStream;
+import com.externalsort.helper.RecordCombiner;
+import com.externalsort.helper.SortKeys;
+import com.externalsort.helper.WriteBehindOutputStream;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVPrinter;
@@ -16,20 +28,52 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
 
 public class SortedFilesMerger {
     private static final Logger LOG = LoggerFactory.getLogger(SortedFilesMerger.class);
 
-    // this parameter to limit the max file merging in one process
-    // to avoid open too many file descriptor.
-    private static final int MAX_FILE_IN_ONE_MERGING = 256;
+    // this parameter to limit the file descriptors opened by the merges running at the same time
+    // to avoid open too many file descriptor, the fan-in is derived from it.
+    private static final int MAX_OPEN_FILES = 1024;
+
+    // bytes buffered by the reader or the writer of each stream of a merge, on top of its read ahead blocks.
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    // bounds of the blocks read ahead and written behind, each input holds two blocks and the output four,
+    // the fan-in is derived from the smallest size.
+    private static final int MIN_IO_BLOCK_SIZE = 32 * 1024;
+    private static final int MAX_IO_BLOCK_SIZE = 1024 * 1024;
+    private static final int WRITE_BEHIND_BLOCKS = 4;
+
+    // the background reads and writes of all the merges, a task never waits so a few threads serve many streams.
+    private static final ExecutorService IO_THREADS = Executors.newFixedThreadPool(
+            Math.max(4, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread t = new Thread(r, "externalsort-io");
+                t.setDaemon(true);
+                return t;
+            });
 
 
     /**
@@ -48,43 +92,783 @@ public class SortedFilesMerger {
     public static long mergeSortedCsvFiles(List<File> csvFiles, File outputFile, CSVFormat csvFormat,
                                            final Comparator<CSVRecord> cmp, boolean isDinstinct, boolean isAppend,
                                            IStreamWrapper wrapper) throws IOException {
+        return mergeSortedCsvFiles(csvFiles, outputFile, csvFormat, cmp, isDinstinct, isAppend, wrapper,
+                MergeEngine.LOSER_TREE);
+    }
+
+    /**
+     * Same as {@link #mergeSortedCsvFiles(List, File, CSVFormat, Comparator, boolean, boolean, IStreamWrapper)}
+     * with an explicit merge algorithm
+     * @param engine algorithm picking the next record among the inputs
+     */
+    public static long mergeSortedCsvFiles(List<File> csvFiles, File outputFile, CSVFormat csvFormat,
+                                           final Comparator<CSVRecord> cmp, boolean isDinstinct, boolean isAppend,
+                                           IStreamWrapper wrapper, MergeEngine engine) throws IOException {
+        return mergeSortedCsvFiles(csvFiles, outputFile, csvFormat, cmp, isDinstinct, isAppend, wrapper, engine,
+                RunFormat.CSV);
+    }
+
+    /**
+     * Same as {@link #mergeSortedCsvFiles(List, File, CSVFormat, Comparator, boolean, boolean, IStreamWrapper)}
+     * with an explicit merge algorithm and encoding of the input runs.
+     * Intermediate merges keep the runs encoding, only the output file is written as CSV.
+     * @param engine algorithm picking the next record among the inputs
+     * @param runFormat how the input files were written by {@link BatchSortedFileProducer}
+     */
+    public static long mergeSortedCsvFiles(List<File> csvFiles, File outputFile, CSVFormat csvFormat,
+                                           final Comparator<CSVRecord> cmp, boolean isDinstinct, boolean isAppend,
+                                           IStreamWrapper wrapper, MergeEngine engine, RunFormat runFormat)
+            throws IOException {
+        return mergeSortedCsvFiles(csvFiles, outputFile, csvFormat, cmp, isDinstinct, isAppend, wrapper, engine,
+                runFormat, null, 1);
+    }
+
+    /**
+     * Same as
+     * {@link #mergeSortedCsvFiles(List, File, CSVFormat, Comparator, boolean, boolean, IStreamWrapper, MergeEngine,
+     * RunFormat)}, but the intermediate merges of a same pass run at the same time on an executor,
+     * the final merge stays on the calling thread.
+     * @param executor runs the intermediate merges, null to run them one after the other on the calling thread
+     *                 (the comparator and the wrapper must be thread safe otherwise)
+     * @param maxConcurrentMerges how many intermediate merges may run at once, to share the disk bandwidth;
+     *                            it is also capped by the number of file descriptors they need
+     */
+    public static long mergeSortedCsvFiles(List<File> csvFiles, File outputFile, CSVFormat csvFormat,
+                                           final Comparator<CSVRecord> cmp, boolean isDinstinct, boolean isAppend,
+                                           IStreamWrapper wrapper, MergeEngine engine, RunFormat runFormat,
+                                           Executor executor, int maxConcurrentMerges) throws IOException {
+        return mergeSortedCsvFiles(csvFiles, outputFile, cmp, SortConfig.builder()
+                .tmpDirectory(directoryOf(csvFiles))
+                .csvFormat(csvFormat)
+                .distinct(isDinstinct)
+                .append(isAppend)
+                .wrapper(wrapper)
+                .mergeEngine(engine)
+                .runFormat(runFormat)
+                .parallelism(Math.max(1, maxConcurrentMerges))
+                .build(), executor);
+    }
+
+    /**
+     * Merge sorted files into one sorted file, the memory of the stream buffers is reserved from the budget
+     * of the config for the time of the call and decides the fan-in with the file descriptor limit.
+     * The intermediate merges of a same pass run at the same time on an executor, at most parallelism of them,
+     * the final merge stays on the calling thread. The input files are deleted.
+     * @param csvFiles sorted runs, written with the run format of the config
+     * @param outputFile output file position
+     * @param cmp comparator passed by user, to tell which key need to sort in CSVRecord
+     * @param config format, distinct, append, wrapper, merge engine, run format, parallelism and memory
+     * @param executor runs the intermediate merges, null to run them one after the other on the calling thread
+     * @return the file lines
+     * @throws IOException
+     */
+    public static long mergeSortedCsvFiles(List<File> csvFiles, File outputFile, Comparator<CSVRecord> cmp,
+                                           SortConfig config, Executor executor) throws IOException {
+        MemoryBudget budget = config.getMemoryBudget();
+        long memory = config.acquireMemory();
+        try {
+            return mergeSortedCsvFiles(csvFiles, outputFile, cmp, config, executor, memory);
+        } finally {
+            budget.release(memory);
+        }
+    }
+
+    /**
+     * @param memoryLimit bytes already reserved for the stream buffers
+     */
+    static long mergeSortedCsvFiles(List<File> csvFiles, File outputFile, Comparator<CSVRecord> cmp,
+                                    SortConfig config, Executor executor, long memoryLimit) throws IOException {
         LOG.debug("mergeSortedCsvFiles file size {}", csvFiles.size());
+        List<File> finalInputs = csvFiles;
+        boolean merged = false;
         try {
-            if (csvFiles.size() <= MAX_FILE_IN_ONE_MERGING) {
-                List<InputStream> inputStreams = new ArrayList<>();
-                for (File f : csvFiles) {
-                    inputStreams.add(wrapper.wrap(new FileInputStream(f)));
+            finalInputs = mergeByPlan(csvFiles, intermediateMerge(cmp, config), executor, memoryLimit, config);
+
+            long start = config.getRecorder().start();
+            MergeStreams streams = new MergeStreams(config, memoryLimit, finalInputs.size());
+            List<IOStack<CSVRecord>> stacks = new ArrayList<>();
+            openRuns(finalInputs, stacks, config, streams);
+            long rowCnt = mergeToOutput(stacks, outputFile, cmp, config, streams);
+            config.getRecorder().phase(SortStats.Phase.OUTPUT, start);
+            merged = true;
+            return rowCnt;
+        } finally {
+            // the runs of a job are kept for the next attempt
+            if (merged || config.getJob() == null) {
+                deleteFiles(csvFiles);
+                deleteFiles(finalInputs);
+            }
+        }
+
+    }
+
+    /**
+     * The intermediate merges of comparator sorted runs, they keep the run format of the config.
+     */
+    private static GroupMerge intermediateMerge(Comparator<CSVRecord> cmp, SortConfig config) {
+        return (tmp, tempOutputFile, memory) -> {
+            MergeStreams streams = new MergeStreams(config, memory, tmp.size());
+            if (config.getRunFormat() == RunFormat.BINARY) {
+                mergeBinaryRuns(tmp, tempOutputFile, cmp, config.isDistinct(), config.getCombiner(), streams,
+                        config.getMergeEngine());
+            } else {
+                mergeCsvRuns(tmp, streams.spill(tempOutputFile), config.getCsvFormat(), cmp,
+                        config.isDistinct(), config.getCombiner(), streams, config.getMergeEngine());
+            }
+        };
+    }
+
+    /**
+     * Merge sorted runs lazily: the intermediate merges run as for a file, then the records of the final merge
+     * are pulled one at a time through the returned iterator, which always uses a loser tree.
+     * The runs are deleted when the iterator is closed, or by this call if it fails.
+     * @param runs sorted runs, written with the run format of the config
+     * @param memoryLimit bytes already reserved for the stream buffers, kept until the iterator is closed
+     * @param onClose called once the iterator is closed and the runs are deleted, not called if this call fails
+     * @return the sorted records
+     */
+    static CloseableIterator<CSVRecord> iterateSortedRuns(List<File> runs, Comparator<CSVRecord> cmp,
+                                                          SortConfig config, Executor executor, long memoryLimit,
+                                                          Runnable onClose) throws IOException {
+        List<File> finalInputs = runs;
+        try {
+            finalInputs = mergeByPlan(runs, intermediateMerge(cmp, config), executor, memoryLimit, config);
+            MergeStreams streams = new MergeStreams(config, memoryLimit, finalInputs.size());
+            List<IOStack<CSVRecord>> stacks = new ArrayList<>();
+            openRuns(finalInputs, stacks, config, streams);
+            List<File> inputs = finalInputs;
+            return new MergeIterator(stacks, cmp, config.isDistinct(), config.getCombiner(), () -> {
+                deleteFiles(inputs);
+                onClose.run();
+            });
+        } catch (IOException | RuntimeException e) {
+            deleteFiles(runs);
+            deleteFiles(finalInputs);
+            throw e;
+        }
+    }
+
+    /**
+     * Merge sorted runs into a CSV file already sorted by the same comparator, eg. the output of yesterday's sort,
+     * so that only the new records are sorted. The intermediate merges only involve the runs, the sorted file
+     * is read once, by the final merge, where it is the first input: with the loser tree engine its records come
+     * before the new ones with the same key. It is read as the input of a sort: through the wrapper, with the
+     * charset of the config and CSVFormat.DEFAULT, skipping the header lines of the config.
+     * The runs are deleted, the sorted file is left as it is.
+     * @param sortedFile sorted CSV file, checked while it is read when the config verifies it
+     * @param runs sorted runs, written with the run format of the config
+     * @param outputFile output file position, not the sorted file
+     * @param memoryLimit bytes already reserved for the stream buffers
+     * @return the file lines
+     */
+    static long mergeIntoSortedFile(File sortedFile, List<File> runs, File outputFile, Comparator<CSVRecord> cmp,
+                                    SortConfig config, Executor executor, long memoryLimit) throws IOException {
+        List<File> finalInputs = runs;
+        try {
+            finalInputs = mergeByPlan(runs, intermediateMerge(cmp, config), executor, memoryLimit, config);
+
+            long start = config.getRecorder().start();
+            MergeStreams streams = new MergeStreams(config, memoryLimit, finalInputs.size() + 1);
+            List<IOStack<CSVRecord>> stacks = new ArrayList<>();
+            stacks.add(new SortedFileStack(sortedFile, new CSVParser(new BufferedReader(new InputStreamReader(
+                    streams.source(sortedFile), config.getCharset())), CSVFormat.DEFAULT),
+                    config.getHeaderLineNum(), config.isVerifySorted() ? cmp : null));
+            openRuns(finalInputs, stacks, config, streams);
+            long rowCnt = mergeToOutput(stacks, outputFile, cmp, config, streams);
+            config.getRecorder().phase(SortStats.Phase.OUTPUT, start);
+            return rowCnt;
+        } finally {
+            deleteFiles(runs);
+            deleteFiles(finalInputs);
+        }
+    }
+
+    /**
+     * Merge the stacks of a final merge into the output of the config, they are closed if it cannot be opened.
+     * @return the file lines
+     */
+    private static long mergeToOutput(List<IOStack<CSVRecord>> stacks, File outputFile, Comparator<CSVRecord> cmp,
+                                      SortConfig config, MergeStreams streams) throws IOException {
+        IOSink<CSVRecord> sink;
+        try {
+            sink = openOutput(outputFile, config, streams);
+        } catch (IOException | RuntimeException e) {
+            for (IOStack<CSVRecord> stack : stacks) {
+                stack.close();
+            }
+            throw e;
+        }
+        try (IOSink<CSVRecord> output = sink) {
+            return merge(stacks, output, cmp, config.isDistinct(), config.getCombiner(), config.getMergeEngine());
+        }
+    }
+
+    /**
+     * @return the sink of a final merge: the output file, or its parts and their index when the config cuts the
+     * output in parts, written behind
+     */
+    private static IOSink<CSVRecord> openOutput(File outputFile, SortConfig config, MergeStreams streams)
+            throws IOException {
+        if (config.getPartSize() > 0) {
+            return new PartWriter(outputFile, config, f -> streams.output(f, false));
+        }
+        createIfNotExists(outputFile);
+        return new CsvPrinterSink(new CSVPrinter(new BufferedWriter(new OutputStreamWriter(
+                streams.output(outputFile, config.isAppend()))), config.getCsvFormat()));
+    }
+
+    /**
+     * Open the runs of a final merge after the stacks already open, all of them are closed if one fails to open.
+     */
+    private static void openRuns(List<File> runs, List<IOStack<CSVRecord>> stacks, SortConfig config,
+                                 MergeStreams streams) throws IOException {
+        try {
+            for (File f : runs) {
+                stacks.add(config.getRunFormat() == RunFormat.BINARY ? new BinaryRunStack(streams.input(f))
+                        : new CsvFilelineStack(new CSVParser(new BufferedReader(new InputStreamReader(
+                                streams.input(f))), config.getCsvFormat())));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (IOStack<CSVRecord> stack : stacks) {
+                stack.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return true when a CSV run of the sort holds the bytes of the output: same format, same wrapper,
+     * no spill codec, an output in one file and a format whose records can be counted without parsing them
+     */
+    static boolean isCopyable(SortConfig config) {
+        CSVFormat format = config.getCsvFormat();
+        String separator = format.getRecordSeparator();
+        return config.getRunFormat() == RunFormat.CSV && config.getSpillCodec() == null
+                && config.getPartSize() == 0 && separator != null && !separator.isEmpty()
+                && format.getQuoteCharacter() != null && format.getEscapeCharacter() == null
+                && format.getHeaderComments() == null;
+    }
+
+    /**
+     * The output of a sort that produced a single run: the run is renamed to the output, or copied with
+     * {@link FileChannel#transferTo} when the output is appended or on another file system, instead of being
+     * merged. The records are counted while the run is written, a run left by a previous attempt of a job is read
+     * once through the wrapper to count them. Only a CSV run holds the bytes of the output, a binary run has to be
+     * decoded and printed, which is what a merge of a single run does.
+     * @param run the only run, already sorted and distinct, see {@link #isCopyable(SortConfig)}
+     * @return the file lines
+     */
+    static long moveSingleRun(File run, File outputFile, SortConfig config) throws IOException {
+        CSVFormat format = config.getCsvFormat();
+        String separator = format.getRecordSeparator();
+        StatsRecorder stats = config.getRecorder();
+        long start = stats.start();
+        boolean moved = false;
+        try {
+            long rowCnt = config.getSpillDirectories().recordCount(run);
+            if (rowCnt < 0) {
+                // without a spill codec the spill wrapper is the wrapper of the output
+                try (InputStream in = config.getSpillWrapper().wrap(new FileInputStream(run))) {
+                    rowCnt = CsvChunks.countRecords(in, format.getQuoteCharacter(),
+                            separator.charAt(separator.length() - 1));
+                }
+                if (format.getHeader() != null && !format.getSkipHeaderRecord()) {
+                    rowCnt = Math.max(0, rowCnt - 1);
                 }
-                if (!outputFile.exists()) {
-                    outputFile.getParentFile().mkdirs();
-                    outputFile.createNewFile();
+            }
+            createIfNotExists(outputFile);
+            if (!config.isAppend()) {
+                try {
+                    Files.move(run.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    stats.phase(SortStats.Phase.OUTPUT, start);
+                    moved = true;
+                    return rowCnt;
+                } catch (IOException e) {
+                    LOG.debug("{} cannot be renamed, it is copied", run.getName(), e);
+                }
+            }
+            try (FileChannel source = FileChannel.open(run.toPath(), StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE,
+                         config.isAppend() ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+                long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+                stats.bytesWritten(size);
+            }
+            stats.phase(SortStats.Phase.OUTPUT, start);
+            moved = true;
+            return rowCnt;
+        } finally {
+            if (moved || config.getJob() == null) {
+                deleteFiles(Collections.singletonList(run));
+            }
+        }
+    }
+
+    private static long mergeCsvRuns(List<File> csvFiles, OutputStream outputStream, CSVFormat csvFormat,
+                                     Comparator<CSVRecord> cmp, boolean isDinstinct, RecordCombiner combiner,
+                                     MergeStreams streams, MergeEngine engine) throws IOException {
+        List<InputStream> inputStreams = new ArrayList<>();
+        for (File f : csvFiles) {
+            inputStreams.add(streams.input(f));
+        }
+
+        return mergeSortedCsvFiles(inputStreams, outputStream, csvFormat, cmp, isDinstinct, combiner, engine);
+    }
+
+    /**
+     * Merge the binary runs produced by
+     * {@link BatchSortedFileProducer#sortCsvInBatch(File, com.externalsort.helper.SortKeyExtractor, File,
+     * java.nio.charset.Charset, boolean, int, IStreamWrapper, int)}.
+     * The records are ordered by comparing the keys stored in the runs, the user's code is never called.
+     * @param runFiles binary runs carrying their keys
+     * @param outputFile output file position
+     * @param csvFormat the CSV Format of the output
+     * @param isDinstinct if true only the first record of each key is kept
+     * @param isAppend isAppend == true will append the file, otherwise, overwrite the file
+     * @param wrapper this used for Stream Wrapper, eg. some one want to use AES Stream to protect file Stream
+     * @return the file lines
+     * @throws IOException
+     */
+    public static long mergeSortedRunsByKey(List<File> runFiles, File outputFile, CSVFormat csvFormat,
+                                            boolean isDinstinct, boolean isAppend, IStreamWrapper wrapper)
+            throws IOException {
+        return mergeSortedRunsByKey(runFiles, outputFile, csvFormat, isDinstinct, isAppend, wrapper, null, 1);
+    }
+
+    /**
+     * Same as {@link #mergeSortedRunsByKey(List, File, CSVFormat, boolean, boolean, IStreamWrapper)}
+     * with the intermediate merges running at the same time on an executor
+     * @param executor runs the intermediate merges, null to run them one after the other on the calling thread
+     * @param maxConcurrentMerges how many intermediate merges may run at once, to share the disk bandwidth;
+     *                            it is also capped by the number of file descriptors they need
+     */
+    public static long mergeSortedRunsByKey(List<File> runFiles, File outputFile, CSVFormat csvFormat,
+                                            boolean isDinstinct, boolean isAppend, IStreamWrapper wrapper,
+                                            Executor executor, int maxConcurrentMerges) throws IOException {
+        return mergeSortedRunsByKey(runFiles, outputFile, SortConfig.builder()
+                .tmpDirectory(directoryOf(runFiles))
+                .csvFormat(csvFormat)
+                .distinct(isDinstinct)
+                .append(isAppend)
+                .wrapper(wrapper)
+                .parallelism(Math.max(1, maxConcurrentMerges))
+                .build(), executor);
+    }
+
+    /**
+     * Same as {@link #mergeSortedRunsByKey(List, File, CSVFormat, boolean, boolean, IStreamWrapper)}
+     * with the options and the memory budget of a config, its merge engine and run format are ignored
+     * @param executor runs the intermediate merges, null to run them one after the other on the calling thread
+     * @return the file lines
+     * @throws IOException
+     */
+    public static long mergeSortedRunsByKey(List<File> runFiles, File outputFile, SortConfig config,
+                                            Executor executor) throws IOException {
+        MemoryBudget budget = config.getMemoryBudget();
+        long memory = config.acquireMemory();
+        try {
+            return mergeSortedRunsByKey(runFiles, outputFile, config, executor, memory);
+        } finally {
+            budget.release(memory);
+        }
+    }
+
+    /**
+     * @param memoryLimit bytes already reserved for the stream buffers
+     */
+    static long mergeSortedRunsByKey(List<File> runFiles, File outputFile, SortConfig config, Executor executor,
+                                     long memoryLimit) throws IOException {
+        LOG.debug("mergeSortedRunsByKey file size {}", runFiles.size());
+        boolean isDinstinct = config.isDistinct();
+        List<File> finalInputs = runFiles;
+        boolean merged = false;
+        try {
+            finalInputs = mergeByPlan(runFiles, (tmp, tempOutputFile, memory) -> {
+                MergeStreams streams = new MergeStreams(config, memory, tmp.size());
+                List<BinaryRunStack> runs = openKeyedRuns(tmp, streams);
+                try (BinaryRunWriter writer = new BinaryRunWriter(streams.spill(tempOutputFile))) {
+                    mergeByKey(runs, null, writer, isDinstinct);
                 }
-                OutputStream outputStream = wrapper.wrap(new FileOutputStream(outputFile, isAppend));
+            }, executor, memoryLimit, config);
 
-                return mergeSortedCsvFiles(inputStreams, outputStream, csvFormat, cmp, isDinstinct);
+            long start = config.getRecorder().start();
+            MergeStreams streams = new MergeStreams(config, memoryLimit, finalInputs.size());
+            List<BinaryRunStack> runs = openKeyedRuns(finalInputs, streams);
+            long rowCnt;
+            try (IOSink<CSVRecord> sink = openOutput(outputFile, config, streams)) {
+                rowCnt = mergeByKey(runs, sink, null, isDinstinct);
+            }
+            config.getRecorder().phase(SortStats.Phase.OUTPUT, start);
+            merged = true;
+            return rowCnt;
+        } finally {
+            if (merged || config.getJob() == null) {
+                deleteFiles(runFiles);
+                deleteFiles(finalInputs);
             }
+        }
+    }
+
+    /**
+     * Merge one group of runs into one file, the runs are deleted by the caller once it is written.
+     */
+    private interface GroupMerge {
+        /**
+         * @param memory bytes the buffers of this merge may use
+         */
+        void merge(List<File> group, File output, long memory) throws IOException;
+    }
+
+    /**
+     * Opens the files of one merge: the inputs are read ahead and the output written behind on IO_THREADS,
+     * so the merging thread only compares and copies records while the disk works, the spill codec included.
+     * The blocks share the memory of the merge between its streams.
+     */
+    private static final class MergeStreams {
+        private final IStreamWrapper wrapper;
+        private final IStreamWrapper spillWrapper;
+        private final SpillDirectories spillDirectories;
+        private final int blockSize;
+
+        MergeStreams(SortConfig config, long memory, int inputs) {
+            this.wrapper = config.getWrapper();
+            this.spillWrapper = config.getSpillWrapper();
+            this.spillDirectories = config.getSpillDirectories();
+            // two blocks per input and WRITE_BEHIND_BLOCKS for the output, besides the buffer of each stream
+            long perBlock = (memory - (long) (inputs + 1) * STREAM_BUFFER_SIZE)
+                    / (2L * inputs + WRITE_BEHIND_BLOCKS);
+            this.blockSize = (int) Math.max(MIN_IO_BLOCK_SIZE, Math.min(MAX_IO_BLOCK_SIZE, perBlock));
+        }
+
+        /**
+         * @return a stream reading a run
+         */
+        InputStream input(File f) throws IOException {
+            return new ReadAheadInputStream(spillWrapper.wrap(new FileInputStream(f)), blockSize, IO_THREADS);
+        }
+
+        /**
+         * @return a stream reading a file given by the user, through the wrapper of the config
+         */
+        InputStream source(File f) throws IOException {
+            return new ReadAheadInputStream(wrapper.wrap(new FileInputStream(f)), blockSize, IO_THREADS);
+        }
+
+        /**
+         * @return a stream writing an intermediate run
+         */
+        OutputStream spill(File f) throws IOException {
+            return writeBehind(spillWrapper.wrap(spillDirectories.create(f)));
+        }
+
+        /**
+         * @return a stream writing the output file
+         */
+        OutputStream output(File f, boolean isAppend) throws IOException {
+            return writeBehind(wrapper.wrap(new FileOutputStream(f, isAppend)));
+        }
 
-            List<File> intermediateMerger = new ArrayList<>();
-            File tmpFileFolder = csvFiles.get(0).getParentFile();
-            for (int i = 0; i < csvFiles.size(); i += MAX_FILE_IN_ONE_MERGING) {
-                List<File> tmp = new ArrayList<>();
-                for (int j = i; j < Math.min(csvFiles.size(), i + MAX_FILE_IN_ONE_MERGING); j++) {
-                    tmp.add(csvFiles.get(j));
+        private OutputStream writeBehind(OutputStream outputStream) {
+            return new WriteBehindOutputStream(outputStream, blockSize, WRITE_BEHIND_BLOCKS, IO_THREADS);
+        }
+    }
+
+    /**
+     * The records of a sorted CSV file, after its header lines. With a comparator each record is checked against
+     * the one before it as the file is read, so a file that is not sorted fails the merge instead of producing
+     * an output that is not sorted either.
+     */
+    private static final class SortedFileStack implements IOStack<CSVRecord> {
+        private final File file;
+        private final CSVParser csvParser;
+        private final Iterator<CSVRecord> iterator;
+        private final Comparator<CSVRecord> cmp;
+        private CSVRecord cache;
+
+        /**
+         * @param cmp the order of the file, null not to check it
+         */
+        SortedFileStack(File file, CSVParser csvParser, int headerLineNum, Comparator<CSVRecord> cmp) {
+            this.file = file;
+            this.csvParser = csvParser;
+            this.iterator = csvParser.iterator();
+            this.cmp = cmp;
+            for (int i = 0; i < headerLineNum && iterator.hasNext(); i++) {
+                iterator.next();
+            }
+            cache = iterator.hasNext() ? iterator.next() : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            csvParser.close();
+        }
+
+        @Override
+        public boolean empty() {
+            return cache == null;
+        }
+
+        @Override
+        public CSVRecord peek() {
+            return cache;
+        }
+
+        @Override
+        public CSVRecord pop() throws IOException {
+            CSVRecord ret = cache;
+            cache = iterator.hasNext() ? iterator.next() : null;
+            if (cmp != null && cache != null && cmp.compare(cache, ret) < 0) {
+                throw new IOException(file + " is not sorted: record " + cache.getRecordNumber()
+                        + " comes before the record " + ret.getRecordNumber());
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Run the intermediate merges planned by {@link MergePlanner}, pass after pass.
+     * The fan-in is derived from the reserved memory and the file descriptors shared by the merges of a pass,
+     * with an executor these merges run at the same time, at most parallelism of them.
+     * The intermediate files go to the spill directories of the config, away from the directories of their inputs.
+     * @return the inputs of the final merge, the runs themselves when they can be merged in one pass
+     */
+    private static List<File> mergeByPlan(List<File> runs, GroupMerge groupMerge, Executor executor,
+                                          long memoryLimit, SortConfig config) throws IOException {
+        int concurrency = executor == null ? 1 : Math.max(1, config.getParallelism());
+        long memory = memoryLimit / concurrency;
+        int fanIn = MergePlanner.fanIn(memory, STREAM_BUFFER_SIZE + 2 * MIN_IO_BLOCK_SIZE,
+                MAX_OPEN_FILES / concurrency);
+        MergePlanner.MergePlan plan = MergePlanner.plan(runs, fanIn);
+        StatsRecorder stats = config.getRecorder();
+        if (!runs.isEmpty()) {
+            stats.merged(plan.getPasses(), plan.getMaxFanIn());
+        }
+        int finalStep = plan.getStepCount() - 1;
+        if (finalStep == 0) {
+            return runs;
+        }
+        LOG.info("merging {} runs with fan-in {}: {}", runs.size(), fanIn, plan);
+        long start = stats.start();
+        File[] nodes = new File[runs.size() + plan.getStepCount()];
+        runs.toArray(nodes);
+        try {
+            for (int level = 1; level < plan.getPasses(); level++) {
+                List<Integer> steps = new ArrayList<>();
+                List<List<File>> groups = new ArrayList<>();
+                for (int step = 0; step < finalStep; step++) {
+                    if (plan.getLevel(step) == level) {
+                        steps.add(step);
+                        groups.add(filesOf(nodes, plan.getInputs(step)));
+                    }
                 }
-                File tempOutputFile = File.createTempFile("intermediateMerger", null, tmpFileFolder);
-                mergeSortedCsvFiles(tmp, tempOutputFile, csvFormat, cmp, isDinstinct, isAppend, wrapper);
+                List<File> outputs = mergeGroups(groups, groupMerge, executor, concurrency, memory, config);
+                for (int i = 0; i < steps.size(); i++) {
+                    nodes[runs.size() + steps.get(i)] = outputs.get(i);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (config.getJob() == null) {
+                deleteFiles(Arrays.asList(nodes).subList(runs.size(), nodes.length));
+            }
+            throw e;
+        }
+        stats.phase(SortStats.Phase.INTERMEDIATE_MERGES, start);
+        return filesOf(nodes, plan.getInputs(finalStep));
+    }
+
+    private static List<File> filesOf(File[] nodes, int[] inputs) {
+        List<File> files = new ArrayList<>(inputs.length);
+        for (int input : inputs) {
+            files.add(nodes[input]);
+        }
+        return files;
+    }
+
+    /**
+     * Merge each group into its own intermediate file, at most concurrency groups at once. The inputs of a group
+     * are deleted once its file is written and, for a job, recorded in its manifest.
+     * @return the intermediate files, one per group in the same order
+     */
+    private static List<File> mergeGroups(List<List<File>> groups, GroupMerge groupMerge, Executor executor,
+                                          int concurrency, long memory, SortConfig config) throws IOException {
+        Semaphore slots = new Semaphore(concurrency);
+        SortJob job = config.getJob();
+        List<File> intermediateMerger = new ArrayList<>();
+        List<Future<Void>> merges = new ArrayList<>();
+        try {
+            for (List<File> group : groups) {
+                File tempOutputFile = config.getSpillDirectories().newFile("intermediateMerger", null, group);
                 intermediateMerger.add(tempOutputFile);
+                FutureTask<Void> merge = new FutureTask<>(() -> {
+                    try {
+                        groupMerge.merge(group, tempOutputFile, memory);
+                        if (job != null) {
+                            job.recordMerge(group, tempOutputFile);
+                        }
+                        deleteFiles(group);
+                    } finally {
+                        slots.release();
+                    }
+                    return null;
+                });
+                slots.acquire();
+                merges.add(merge);
+                if (executor == null) {
+                    merge.run();
+                    merge.get();
+                } else {
+                    executor.execute(merge);
+                }
+            }
+            for (Future<Void> merge : merges) {
+                merge.get();
+            }
+            return intermediateMerger;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abortMerges(merges, intermediateMerger, job);
+            throw new InterruptedIOException("interrupted during the intermediate merges");
+        } catch (ExecutionException e) {
+            abortMerges(merges, intermediateMerger, job);
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error during the intermediate merges", e.getCause());
+        } catch (IOException | RuntimeException e) {
+            abortMerges(merges, intermediateMerger, job);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the directory of the first file, where the merges without a config write their intermediate files
+     */
+    private static File directoryOf(List<File> files) {
+        return files.isEmpty() ? new File(System.getProperty("java.io.tmpdir"))
+                : files.get(0).getAbsoluteFile().getParentFile();
+    }
+
+    static void deleteFiles(List<File> files) {
+        for (File f : files) {
+            if (f != null && f.exists() && !f.delete()) {
+                LOG.warn("The file {} was not deleted", f.getName());
             }
+        }
+    }
+
+    /**
+     * Best effort cleanup when one of the intermediate merges failed. The files of a job are left to its next
+     * attempt, which keeps the merges recorded in the manifest and deletes the others.
+     */
+    private static void abortMerges(List<Future<Void>> merges, List<File> intermediateMerger, SortJob job) {
+        for (Future<Void> merge : merges) {
+            merge.cancel(true);
+        }
+        if (job == null) {
+            deleteFiles(intermediateMerger);
+        }
+    }
 
-            return mergeSortedCsvFiles(intermediateMerger, outputFile, csvFormat, cmp, isDinstinct, isAppend, wrapper);
+    /**
+     * Merge keyed runs either into a sink of records or, keeping the keys, into another binary run.
+     */
+    private static long mergeByKey(List<BinaryRunStack> runs, IOSink<CSVRecord> sink, BinaryRunWriter keyedSink,
+                                   boolean isDinstinct) throws IOException {
+        LoserTree<BinaryRunStack> tree = new LoserTree<>(runs, (a, b) -> SortKeys.compare(a.peekKey(), b.peekKey()));
+        long rowCnt = 0;
+        byte[] lastKey = null;
+        try {
+            while (!tree.empty()) {
+                BinaryRunStack run = tree.top();
+                byte[] key = run.peekKey();
+                CSVRecord curLine = run.pop();
+                if (isDinstinct && lastKey != null && Arrays.equals(key, lastKey)) {
+                    LOG.warn("skip one line because key is not distinct {}", curLine.toString());
+                } else {
+                    if (keyedSink != null) {
+                        keyedSink.write(curLine, key);
+                    } else {
+                        sink.push(curLine);
+                    }
+                    lastKey = key;
+                    rowCnt++;
+                }
+                if (run.empty()) {
+                    run.close();
+                }
+                tree.replay();
+            }
         } finally {
-            for (File f : csvFiles) {
-                if (f.exists() && !f.delete()) {
-                    LOG.warn("The file {} was not deleted", f.getName());
+            for (BinaryRunStack run : runs) {
+                if (!run.empty()) {
+                    run.close();
+                }
+            }
+        }
+        return rowCnt;
+    }
+
+    private static List<BinaryRunStack> openKeyedRuns(List<File> runFiles, MergeStreams streams)
+            throws IOException {
+        List<BinaryRunStack> runs = new ArrayList<>();
+        try {
+            for (File f : runFiles) {
+                BinaryRunStack run = new BinaryRunStack(streams.input(f));
+                if (run.empty()) {
+                    run.close();
+                } else {
+                    runs.add(run);
                 }
             }
+        } catch (IOException | RuntimeException e) {
+            for (BinaryRunStack run : runs) {
+                run.close();
+            }
+            throw e;
+        }
+        return runs;
+    }
+
+    /**
+     * Merge binary runs into another binary run, used for the intermediate merges.
+     */
+    private static long mergeBinaryRuns(List<File> runFiles, File outputFile, Comparator<CSVRecord> cmp,
+                                        boolean isDinstinct, RecordCombiner combiner, MergeStreams streams,
+                                        MergeEngine engine) throws IOException {
+        List<IOStack<CSVRecord>> runs = openBinaryRuns(runFiles, streams);
+        BinaryRunWriter writer = new BinaryRunWriter(streams.spill(outputFile));
+        try {
+            return merge(runs, writer, cmp, isDinstinct, combiner, engine);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static List<IOStack<CSVRecord>> openBinaryRuns(List<File> runFiles, MergeStreams streams)
+            throws IOException {
+        List<IOStack<CSVRecord>> runs = new ArrayList<>();
+        try {
+            for (File f : runFiles) {
+                runs.add(new BinaryRunStack(streams.input(f)));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (IOStack<CSVRecord> run : runs) {
+                run.close();
+            }
+            throw e;
         }
+        return runs;
+    }
 
+    static void createIfNotExists(File outputFile) throws IOException {
+        if (!outputFile.exists()) {
+            outputFile.getParentFile().mkdirs();
+            outputFile.createNewFile();
+        }
     }
 
     /**
@@ -100,6 +884,27 @@ public class SortedFilesMerger {
      */
     public static long mergeSortedCsvFiles(List<InputStream> csvFiles, OutputStream outputStream,
                                            CSVFormat csvFormat, final Comparator<CSVRecord> cmp, boolean isDinstinct) throws IOException {
+        return mergeSortedCsvFiles(csvFiles, outputStream, csvFormat, cmp, isDinstinct, MergeEngine.LOSER_TREE);
+    }
+
+    /**
+     * Same as {@link #mergeSortedCsvFiles(List, OutputStream, CSVFormat, Comparator, boolean)}
+     * with an explicit merge algorithm
+     * @param engine algorithm picking the next record among the inputs
+     */
+    public static long mergeSortedCsvFiles(List<InputStream> csvFiles, OutputStream outputStream,
+                                           CSVFormat csvFormat, final Comparator<CSVRecord> cmp, boolean isDinstinct,
+                                           MergeEngine engine) throws IOException {
+        return mergeSortedCsvFiles(csvFiles, outputStream, csvFormat, cmp, isDinstinct, null, engine);
+    }
+
+    /**
+     * @param combiner collapses the records with the same key, null to keep them. isDinstinct is ignored with a
+     *                 combiner
+     */
+    private static long mergeSortedCsvFiles(List<InputStream> csvFiles, OutputStream outputStream,
+                                            CSVFormat csvFormat, Comparator<CSVRecord> cmp, boolean isDinstinct,
+                                            RecordCombiner combiner, MergeEngine engine) throws IOException {
         try {
             List<CsvFilelineStack> csvList = new ArrayList<>();
             for (InputStream in : csvFiles) {
@@ -109,7 +914,7 @@ public class SortedFilesMerger {
             }
             BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(outputStream));
 
-            return mergeSortedFiles(csvList, bufferedWriter, cmp, isDinstinct, csvFormat);
+            return mergeSortedFiles(csvList, bufferedWriter, cmp, isDinstinct, combiner, csvFormat, engine);
         } finally {
             for (InputStream in : csvFiles) {
                 if (in != null) {
@@ -129,30 +934,118 @@ public class SortedFilesMerger {
         return mergeSortedCsvFiles(csvFiles, outputFile, csvFormat, cmp, isDinstinct, isAppend, new IStreamWrapper() {});
     }
 
-    private static long mergeSortedFiles(List<CsvFilelineStack> csvList, BufferedWriter bufferedWriter,
-                                         Comparator<CSVRecord> cmp, boolean isDinstinct, CSVFormat csvFormat)
-            throws IOException {
+    /**
+     * Merge sorted stacks of records into a writer, the stacks and the writer are closed once done
+     * @param csvList sorted inputs, any {@link IOStack} implementation
+     * @param bufferedWriter where the merged records are printed
+     * @param cmp comparator passed by user, to tell which key need to sort in CSVRecord
+     * @param isDinstinct is the comparator key is distinct which means no two record are compare == 0
+     *      if isDistinct == true, but the data is not distinct, it will ignore the duplicate key randomly
+     * @param csvFormat the CSV Format of the output
+     * @param engine algorithm picking the next record among the inputs
+     * @return the file lines
+     * @throws IOException
+     */
+    public static long mergeSortedFiles(List<? extends IOStack<CSVRecord>> csvList, BufferedWriter bufferedWriter,
+                                        Comparator<CSVRecord> cmp, boolean isDinstinct, CSVFormat csvFormat,
+                                        MergeEngine engine) throws IOException {
+        return mergeSortedFiles(csvList, bufferedWriter, cmp, isDinstinct, null, csvFormat, engine);
+    }
+
+    /**
+     * @param combiner collapses the records with the same key, null to keep them. isDinstinct is ignored with a
+     *                 combiner
+     */
+    private static long mergeSortedFiles(List<? extends IOStack<CSVRecord>> csvList, BufferedWriter bufferedWriter,
+                                         Comparator<CSVRecord> cmp, boolean isDinstinct, RecordCombiner combiner,
+                                         CSVFormat csvFormat, MergeEngine engine) throws IOException {
+        CSVPrinter printer = new CSVPrinter(bufferedWriter, csvFormat);
+        try {
+            return merge(csvList, new CsvPrinterSink(printer), cmp, isDinstinct, combiner, engine);
+        } finally {
+            printer.close();
+            bufferedWriter.close();
+        }
+    }
+
+    /**
+     * Merge sorted stacks into a sink, the stacks are closed once done but not the sink.
+     * With a combiner the records of a key are combined across the stacks as they come out of the merge.
+     */
+    private static long merge(List<? extends IOStack<CSVRecord>> csvList, IOSink<CSVRecord> sink,
+                              Comparator<CSVRecord> cmp, boolean isDinstinct, RecordCombiner combiner,
+                              MergeEngine engine) throws IOException {
+        if (combiner != null) {
+            CombiningSink combining = new CombiningSink(sink, cmp, combiner, false);
+            merge(csvList, combining, cmp, false, null, engine);
+            combining.flush();
+            return combining.count();
+        }
+        if (engine == MergeEngine.PRIORITY_QUEUE) {
+            return mergeWithQueue(csvList, sink, cmp, isDinstinct);
+        }
+        List<IOStack<CSVRecord>> stacks = new ArrayList<>(csvList);
+        for (IOStack<CSVRecord> stack : stacks) {
+            if (stack.empty()) {
+                stack.close();
+            }
+        }
+        LoserTree<IOStack<CSVRecord>> tree = LoserTree.byHead(stacks, cmp);
+        long rowCnt = 0;
+        CSVRecord lastLine = null;
+        try {
+            while (!tree.empty()) {
+                IOStack<CSVRecord> csvFileLines = tree.top();
+                CSVRecord curLine = csvFileLines.pop();
+                if (curLine == null) {
+                    throw new IllegalStateException("INVALID AREA");
+                }
+                if (isDinstinct && (lastLine != null && cmp.compare(curLine, lastLine) == 0)) {
+                    LOG.warn("skip one line because key is not distinct {}", curLine.toString());
+                } else {
+                    sink.push(curLine);
+                    lastLine = curLine;
+                    rowCnt++;
+                }
+                if (csvFileLines.empty()) {
+                    csvFileLines.close();
+                }
+                tree.replay();
+            }
+        } finally {
+            for (IOStack<CSVRecord> stack : stacks) {
+                if (!stack.empty()) {
+                    stack.close();
+                }
+            }
+        }
+        return rowCnt;
+    }
+
+    private static long mergeWithQueue(List<? extends IOStack<CSVRecord>> csvList, IOSink<CSVRecord> sink,
+                                       Comparator<CSVRecord> cmp, boolean isDinstinct) throws IOException {
         // TODO: ADD YOUR CODE HERE
 
-        PriorityQueue<CsvFilelineStack> pq = new PriorityQueue<>(
-                new Comparator<CsvFilelineStack>() {
+        PriorityQueue<IOStack<CSVRecord>> pq = new PriorityQueue<>(
+                new Comparator<IOStack<CSVRecord>>() {
                     @Override
-                    public int compare(CsvFilelineStack i, CsvFilelineStack j) {
+                    public int compare(IOStack<CSVRecord> i, IOStack<CSVRecord> j) {
                         return cmp.compare(i.peek(),j.peek()); // 比较每个文件栈顶,也就是最后一个元素的大小
                     }
                 }
         ); //使用给定的比较器进行排序,小顶堆
-        for (CsvFilelineStack csvFilelineStack : csvList) { // 将每个run入堆
+        for (IOStack<CSVRecord> csvFilelineStack : csvList) { // 将每个run入堆
             if (!csvFilelineStack.empty()){
                 pq.add(csvFilelineStack);
+            } else {
+                csvFilelineStack.close();
             }
         }
         long rowCnt = 0;
-        CSVPrinter printer = new CSVPrinter(bufferedWriter, csvFormat);
         CSVRecord lastLine = null;
         try {
             while (!pq.isEmpty()) {
-                CsvFilelineStack csvFileLines = pq.poll(); // 获取并删除队首元素, 得到所有run文件中,record最小的那个
+                IOStack<CSVRecord> csvFileLines = pq.poll(); // 获取并删除队首元素, 得到所有run文件中,record最小的那个
                 CSVRecord curLine = csvFileLines.pop(); // 获取当前文件的第一个record
                 if (curLine == null) {
                     throw new IllegalStateException("INVALID AREA");
@@ -160,7 +1053,7 @@ public class SortedFilesMerger {
                 if (isDinstinct && (lastLine != null && cmp.compare(curLine, lastLine) == 0)) {
                     LOG.warn("skip one line because key is not distinct {}", curLine.toString());
                 } else {
-                    printer.printRecord(curLine); // 将这个record打印到文件中
+                    sink.push(curLine); // 将这个record打印到文件中
                     lastLine = curLine;
                     rowCnt++;
                 }
@@ -172,9 +1065,7 @@ public class SortedFilesMerger {
                 }
             }
         } finally {
-            printer.close();
-            bufferedWriter.close();
-            for (CsvFilelineStack bfb : pq) {
+            for (IOStack<CSVRecord> bfb : pq) {
                 bfb.close();
             }
         }
@@ -0,0 +1,114 @@
+package com.externalsort;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The temporary directories of a sort, each one expected on its own device, and the placement of the files
+ * created there. The runs are striped over the directories so that a merge reads several devices at once,
+ * and the output of an intermediate merge goes to a directory none of its inputs is in when there is one.
+ * This class is thread safe.
+ */
+class SpillDirectories {
+
+    private final List<File> directories;
+    private final SpillPlacement placement;
+    private final SortJob job;
+    private final AtomicInteger next = new AtomicInteger();
+    // records of the CSV runs, forgotten with the files of the runs
+    private final Map<File, Long> recordCounts = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * @param job the resumable sort the files belong to, null when there is none
+     */
+    SpillDirectories(List<File> directories, SpillPlacement placement, SortJob job) {
+        this.directories = directories;
+        this.placement = placement;
+        this.job = job;
+    }
+
+    /**
+     * @return a new empty file in one of the directories
+     */
+    File newFile(String prefix, String suffix) throws IOException {
+        return newFile(prefix, suffix, Collections.emptyList());
+    }
+
+    /**
+     * @param inputs files read while the new one is written, their directories are avoided
+     * @return a new empty file in one of the directories
+     */
+    File newFile(String prefix, String suffix, List<File> inputs) throws IOException {
+        List<File> candidates = directories;
+        if (directories.size() > 1 && !inputs.isEmpty()) {
+            Set<File> busy = new HashSet<>();
+            for (File input : inputs) {
+                busy.add(input.getAbsoluteFile().getParentFile());
+            }
+            List<File> idle = new ArrayList<>();
+            for (File directory : directories) {
+                if (!busy.contains(directory.getAbsoluteFile())) {
+                    idle.add(directory);
+                }
+            }
+            if (!idle.isEmpty()) {
+                candidates = idle;
+            }
+        }
+        return File.createTempFile(prefix, suffix, pick(candidates));
+    }
+
+    /**
+     * @return a stream writing a file created by {@link #newFile(String, String, List)}, under the spill wrapper.
+     * The file of a job is checksummed on the way for its manifest
+     */
+    OutputStream create(File file) throws IOException {
+        return job == null ? new FileOutputStream(file) : job.create(file);
+    }
+
+    /**
+     * Remember the records written to a CSV run, so that the output of a single run does not count them again.
+     */
+    void recordCount(File run, long records) {
+        recordCounts.put(run, records);
+    }
+
+    /**
+     * @param run a run as returned by the run generation
+     * @return the records written to the run, -1 when it was written by another sort, eg. a previous attempt
+     * of a job
+     */
+    long recordCount(File run) {
+        Long records = recordCounts.get(run);
+        return records == null ? -1 : records;
+    }
+
+    private File pick(List<File> candidates) {
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        if (placement == SpillPlacement.MOST_FREE_SPACE) {
+            File best = candidates.get(0);
+            long bestSpace = best.getUsableSpace();
+            for (File candidate : candidates.subList(1, candidates.size())) {
+                long space = candidate.getUsableSpace();
+                if (space > bestSpace) {
+                    best = candidate;
+                    bestSpace = space;
+                }
+            }
+            return best;
+        }
+        return candidates.get(Math.floorMod(next.getAndIncrement(), candidates.size()));
+    }
+}
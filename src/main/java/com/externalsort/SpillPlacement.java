@@ -0,0 +1,16 @@
+package com.externalsort;
+
+/**
+ * How the temporary files of a sort are spread over its temporary directories, see
+ * {@link SortConfig.Builder#tmpDirectories(java.io.File...)}.
+ */
+public enum SpillPlacement {
+    /**
+     * each new file goes to the next directory in turn
+     */
+    ROUND_ROBIN,
+    /**
+     * each new file goes to the directory with the most usable space at the time it is created
+     */
+    MOST_FREE_SPACE
+}
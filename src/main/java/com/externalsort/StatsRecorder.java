@@ -0,0 +1,325 @@
+package com.externalsort;
+
+import com.externalsort.helper.IStreamWrapper;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters of one sort, shared by its threads and turned into a {@link SortStats} at the end.
+ * The disabled recorder, used when the config has no listener, records nothing and does not wrap anything,
+ * so the sorts without a listener run the same code as before.
+ */
+class StatsRecorder {
+
+    static final StatsRecorder DISABLED = new StatsRecorder(false);
+
+    private final boolean enabled;
+    private final long start = System.nanoTime();
+    private final LongAdder[] phaseNanos = new LongAdder[SortStats.Phase.values().length];
+    private final LongAdder rowsRead = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder bytesSpilled = new LongAdder();
+    private final LongAdder bytesReread = new LongAdder();
+    private final LongAdder comparisons = new LongAdder();
+    private final LongAdder wrapperNanos = new LongAdder();
+    private final List<Long> runSizes = new ArrayList<>();
+    private final LongAccumulator mergePasses = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator fanIn = new LongAccumulator(Math::max, 0);
+    private final AtomicLong buffered = new AtomicLong();
+    private final LongAccumulator peakBuffered = new LongAccumulator(Math::max, 0);
+
+    StatsRecorder() {
+        this(true);
+    }
+
+    private StatsRecorder(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return the start of a phase, to pass to {@link #phase(SortStats.Phase, long)}
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    void phase(SortStats.Phase phase, long start) {
+        if (enabled) {
+            phaseNanos[phase.ordinal()].add(System.nanoTime() - start);
+        }
+    }
+
+    void rowRead() {
+        if (enabled) {
+            rowsRead.increment();
+        }
+    }
+
+    void rowsRead(long rows) {
+        if (enabled) {
+            rowsRead.add(rows);
+        }
+    }
+
+    /**
+     * @param bytes input read without the wrapper, eg. memory mapped
+     */
+    void bytesRead(long bytes) {
+        if (enabled) {
+            bytesRead.add(bytes);
+        }
+    }
+
+    /**
+     * @param bytes output written without the wrapper, eg. copied from a run
+     */
+    void bytesWritten(long bytes) {
+        if (enabled) {
+            bytesWritten.add(bytes);
+        }
+    }
+
+    /**
+     * Record the runs written by the run generation, with their sizes on disk.
+     */
+    void runs(List<File> runs) {
+        if (enabled) {
+            synchronized (runSizes) {
+                for (File run : runs) {
+                    runSizes.add(run.length());
+                }
+            }
+        }
+    }
+
+    void merged(int passes, int maxFanIn) {
+        if (enabled) {
+            mergePasses.accumulate(passes);
+            fanIn.accumulate(maxFanIn);
+        }
+    }
+
+    /**
+     * @param bytes records taken in memory, or given back when negative
+     */
+    void buffered(long bytes) {
+        if (enabled) {
+            peakBuffered.accumulate(buffered.addAndGet(bytes));
+        }
+    }
+
+    /**
+     * @return the comparator counting its calls
+     */
+    Comparator<CSVRecord> counting(Comparator<CSVRecord> cmp) {
+        if (!enabled) {
+            return cmp;
+        }
+        return (a, b) -> {
+            comparisons.increment();
+            return cmp.compare(a, b);
+        };
+    }
+
+    /**
+     * @return the wrapper counting the bytes of the input and output files and the time spent in the wrapper
+     */
+    IStreamWrapper files(IStreamWrapper wrapper) {
+        return instrument(wrapper, bytesRead, bytesWritten);
+    }
+
+    /**
+     * @return the wrapper counting the bytes of the temporary files and the time spent in the wrapper
+     */
+    IStreamWrapper spills(IStreamWrapper wrapper) {
+        return instrument(wrapper, bytesReread, bytesSpilled);
+    }
+
+    private IStreamWrapper instrument(IStreamWrapper wrapper, LongAdder read, LongAdder written) {
+        // the partitions are sorted with the spill wrapper of the sort as their wrapper
+        if (!enabled || wrapper instanceof InstrumentedWrapper) {
+            return wrapper;
+        }
+        return new InstrumentedWrapper(wrapper, read, written, wrapperNanos);
+    }
+
+    /**
+     * @param rowsWritten records of the output
+     */
+    SortStats snapshot(long rowsWritten) {
+        Map<SortStats.Phase, Long> phases = new EnumMap<>(SortStats.Phase.class);
+        for (SortStats.Phase phase : SortStats.Phase.values()) {
+            long nanos = phaseNanos[phase.ordinal()].sum();
+            if (nanos > 0) {
+                phases.put(phase, nanos);
+            }
+        }
+        List<Long> runs;
+        synchronized (runSizes) {
+            runs = new ArrayList<>(runSizes);
+        }
+        return new SortStats(System.nanoTime() - start, phases, rowsRead.sum(), rowsWritten, bytesRead.sum(),
+                bytesWritten.sum(), runs, (int) mergePasses.get(), (int) fanIn.get(), bytesSpilled.sum(),
+                bytesReread.sum(), comparisons.sum(), Math.max(0, wrapperNanos.sum()), peakBuffered.get());
+    }
+
+    /**
+     * Times the calls into the streams of the wrapper and subtracts the time of the file streams under them,
+     * where the bytes are counted. The callers buffer their IO so there are two clock reads per buffer.
+     */
+    private static final class InstrumentedWrapper implements IStreamWrapper {
+        private final IStreamWrapper wrapper;
+        private final LongAdder read;
+        private final LongAdder written;
+        private final LongAdder wrapperNanos;
+
+        InstrumentedWrapper(IStreamWrapper wrapper, LongAdder read, LongAdder written, LongAdder wrapperNanos) {
+            this.wrapper = wrapper;
+            this.read = read;
+            this.written = written;
+            this.wrapperNanos = wrapperNanos;
+        }
+
+        @Override
+        public OutputStream wrap(OutputStream outputStream) {
+            OutputStream file = new TimedOutputStream(outputStream, written, wrapperNanos, -1);
+            return new TimedOutputStream(wrapper.wrap(file), null, wrapperNanos, 1);
+        }
+
+        @Override
+        public InputStream wrap(InputStream inputStream) {
+            InputStream file = new TimedInputStream(inputStream, read, wrapperNanos, -1);
+            return new TimedInputStream(wrapper.wrap(file), null, wrapperNanos, 1);
+        }
+    }
+
+    /**
+     * Adds sign * the time of each call to nanos, and the bytes to bytes when not null.
+     */
+    private static final class TimedInputStream extends FilterInputStream {
+        private final LongAdder bytes;
+        private final LongAdder nanos;
+        private final int sign;
+
+        TimedInputStream(InputStream in, LongAdder bytes, LongAdder nanos, int sign) {
+            super(in);
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.sign = sign;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = in.read();
+            nanos.add(sign * (System.nanoTime() - start));
+            if (bytes != null && b >= 0) {
+                bytes.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            int n = in.read(b, off, len);
+            nanos.add(sign * (System.nanoTime() - start));
+            if (bytes != null && n > 0) {
+                bytes.add(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long start = System.nanoTime();
+            long skipped = in.skip(n);
+            nanos.add(sign * (System.nanoTime() - start));
+            if (bytes != null && skipped > 0) {
+                bytes.add(skipped);
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long start = System.nanoTime();
+            try {
+                in.close();
+            } finally {
+                nanos.add(sign * (System.nanoTime() - start));
+            }
+        }
+    }
+
+    /**
+     * @see TimedInputStream
+     */
+    private static final class TimedOutputStream extends FilterOutputStream {
+        private final LongAdder bytes;
+        private final LongAdder nanos;
+        private final int sign;
+
+        TimedOutputStream(OutputStream out, LongAdder bytes, LongAdder nanos, int sign) {
+            super(out);
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.sign = sign;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            nanos.add(sign * (System.nanoTime() - start));
+            if (bytes != null) {
+                bytes.increment();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            nanos.add(sign * (System.nanoTime() - start));
+            if (bytes != null) {
+                bytes.add(len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            out.flush();
+            nanos.add(sign * (System.nanoTime() - start));
+        }
+
+        @Override
+        public void close() throws IOException {
+            long start = System.nanoTime();
+            try {
+                out.close();
+            } finally {
+                nanos.add(sign * (System.nanoTime() - start));
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.externalsort.helper;
+
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a run written by {@link BinaryRunWriter}.
+ */
+public class BinaryRunStack implements IOStack<CSVRecord> {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataInputStream in;
+    private byte[] buffer = new byte[256];
+    private long recordNumber;
+    private CSVRecord cache;
+    private byte[] cacheKey;
+
+    public BinaryRunStack(InputStream inputStream) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(inputStream, BUFFER_SIZE));
+        reload();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    @Override
+    public boolean empty() {
+        return cache == null;
+    }
+
+    @Override
+    public CSVRecord peek() {
+        return cache;
+    }
+
+    /**
+     * @return the binary key stored with the head record, empty when the run was written without keys
+     */
+    public byte[] peekKey() {
+        return cacheKey;
+    }
+
+    @Override
+    public CSVRecord pop() throws IOException {
+        CSVRecord ret = peek();
+        reload();
+        return ret;
+    }
+
+    private void reload() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            cache = null;
+            cacheKey = null;
+            return;
+        }
+        int keyLength = readVarInt(first);
+        cacheKey = new byte[keyLength];
+        in.readFully(cacheKey);
+        String[] values = new String[readVarInt(readByte())];
+        for (int i = 0; i < values.length; i++) {
+            int length = readVarInt(readByte()) - 1;
+            if (length < 0) {
+                continue;
+            }
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            in.readFully(buffer, 0, length);
+            values[i] = new String(buffer, 0, length, StandardCharsets.UTF_8);
+        }
+        cache = CsvRecords.of(values, ++recordNumber);
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("truncated run file");
+        }
+        return b;
+    }
+
+    private int readVarInt(int first) throws IOException {
+        int value = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            b = readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,85 @@
+package com.externalsort.helper;
+
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes records in the internal run format, read back by {@link BinaryRunStack}.
+ * There is no quoting nor escaping: each record is
+ * <pre>
+ *     varint keyLength, key bytes      (keyLength == 0 when there is no key)
+ *     varint fieldCount
+ *     fieldCount * (varint length + 1, UTF-8 bytes)   (0 for a null field)
+ * </pre>
+ * This format is only meant for temporary files, it is not stable across versions.
+ */
+public class BinaryRunWriter implements IOSink<CSVRecord> {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] NO_KEY = new byte[0];
+
+    private final DataOutputStream out;
+
+    public BinaryRunWriter(OutputStream outputStream) {
+        this.out = new DataOutputStream(new BufferedOutputStream(outputStream, BUFFER_SIZE));
+    }
+
+    @Override
+    public void push(CSVRecord record) throws IOException {
+        write(record, NO_KEY);
+    }
+
+    /**
+     * @param record record to write
+     * @param key binary sort key stored in front of the record, may be empty
+     */
+    public void write(CSVRecord record, byte[] key) throws IOException {
+        writeKey(key);
+        int size = record.size();
+        writeVarInt(size);
+        for (int i = 0; i < size; i++) {
+            writeField(record.get(i));
+        }
+    }
+
+    /**
+     * Copy a whole record, key included, already encoded in this format.
+     */
+    public void writeEncoded(byte[] buffer, int offset, int length) throws IOException {
+        out.write(buffer, offset, length);
+    }
+
+    private void writeKey(byte[] key) throws IOException {
+        byte[] k = key == null ? NO_KEY : key;
+        writeVarInt(k.length);
+        out.write(k);
+    }
+
+    private void writeField(String value) throws IOException {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
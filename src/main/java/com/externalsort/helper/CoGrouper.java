@@ -0,0 +1,21 @@
+package com.externalsort.helper;
+
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.IOException;
+
+/**
+ * Writes the rows of one key of a co-group, given the records of both inputs having that key.
+ * The keys come in sort order and each one is given once, with at least one record on one side.
+ * The records of a side are held in memory, or in a temporary file when they do not fit, and may be iterated
+ * several times, until the call returns.
+ */
+public interface CoGrouper {
+
+    /**
+     * @param left the records of the left input with the key, in sort order, empty when it has none
+     * @param right the records of the right input with the key, in sort order, empty when it has none
+     * @param out where the rows of the key are written, see {@link CsvRecords#of(String[], long)}
+     */
+    void coGroup(Iterable<CSVRecord> left, Iterable<CSVRecord> right, IOSink<CSVRecord> out) throws IOException;
+}
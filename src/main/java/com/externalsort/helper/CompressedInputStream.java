@@ -0,0 +1,102 @@
+package com.externalsort.helper;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the frames written by {@link CompressedOutputStream} and decompresses them one block at a time.
+ * This class is not thread safe, it is used by one reader at a time.
+ */
+public class CompressedInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private final SpillCodec codec;
+    private byte[] block = new byte[0];
+    private byte[] packed = new byte[0];
+    private int position;
+    private int limit;
+    private boolean eof;
+
+    /**
+     * @param in the stream of the frames, closed with this stream
+     * @param codec the codec the blocks were compressed with
+     */
+    public CompressedInputStream(InputStream in, SpillCodec codec) {
+        this.in = new DataInputStream(in);
+        this.codec = codec;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !nextBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == limit && !nextBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * @return false at the end of the stream
+     */
+    private boolean nextBlock() throws IOException {
+        while (!eof) {
+            int rawLength;
+            try {
+                rawLength = in.readInt();
+            } catch (EOFException e) {
+                eof = true;
+                return false;
+            }
+            int storedLength = in.readInt();
+            if (rawLength < 0 || storedLength < 0 || storedLength > rawLength) {
+                throw new IOException("corrupted frame: " + rawLength + " bytes stored in " + storedLength);
+            }
+            if (block.length < rawLength) {
+                block = new byte[rawLength];
+            }
+            if (storedLength == rawLength) {
+                in.readFully(block, 0, rawLength);
+            } else {
+                if (packed.length < storedLength) {
+                    packed = new byte[storedLength];
+                }
+                in.readFully(packed, 0, storedLength);
+                int n = codec.decompress(packed, 0, storedLength, block, 0, rawLength);
+                if (n != rawLength) {
+                    throw new IOException("corrupted frame: " + n + " bytes decompressed instead of " + rawLength);
+                }
+            }
+            position = 0;
+            limit = rawLength;
+            if (limit > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,162 @@
+package com.externalsort.helper;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Cuts the data in blocks compressed independently by a {@link SpillCodec} and writes them as frames:
+ * the length of the block, the length stored, then the stored bytes. A block that does not shrink is stored
+ * as is, its two lengths are equal. The frames are read back by {@link CompressedInputStream}.
+ * Full blocks are compressed on an executor while the next ones are filled, the frames are written in order
+ * by the writing thread.
+ * This class is not thread safe, it is used by one writer at a time.
+ */
+public class CompressedOutputStream extends OutputStream {
+
+    private final DataOutputStream out;
+    private final SpillCodec codec;
+    private final int blockSize;
+    private final Executor executor;
+    private final int maxPendingBlocks;
+    private final Queue<Frame> freeFrames = new ArrayDeque<>();
+    private final Queue<Future<Frame>> pending = new ArrayDeque<>();
+    private Frame current;
+    private boolean closed;
+
+    /**
+     * @param out the stream of the frames, closed with this stream
+     * @param codec compresses the blocks
+     * @param blockSize bytes compressed at once
+     * @param executor compresses the blocks, null to compress on the writing thread
+     * @param maxPendingBlocks blocks being compressed at the same time
+     */
+    public CompressedOutputStream(OutputStream out, SpillCodec codec, int blockSize, Executor executor,
+                                  int maxPendingBlocks) {
+        this.out = new DataOutputStream(out);
+        this.codec = codec;
+        this.blockSize = blockSize;
+        this.executor = executor;
+        this.maxPendingBlocks = Math.max(1, maxPendingBlocks);
+        this.current = new Frame(blockSize, codec.maxCompressedLength(blockSize));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (current.rawLength == blockSize) {
+            submit();
+        }
+        current.raw[current.rawLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (current.rawLength == blockSize) {
+                submit();
+            }
+            int n = Math.min(len, blockSize - current.rawLength);
+            System.arraycopy(b, off, current.raw, current.rawLength, n);
+            current.rawLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Compress the block being filled and write every pending frame, then flush the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (current.rawLength > 0) {
+            submit();
+        }
+        while (!pending.isEmpty()) {
+            writeFrame(pending.poll());
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            for (Future<Frame> frame : pending) {
+                frame.cancel(false);
+            }
+            out.close();
+        }
+    }
+
+    private void submit() throws IOException {
+        Frame frame = current;
+        FutureTask<Frame> task = new FutureTask<>(() -> {
+            frame.compress(codec);
+            return frame;
+        });
+        pending.add(task);
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+        while (pending.size() > maxPendingBlocks) {
+            writeFrame(pending.poll());
+        }
+        Frame free = freeFrames.poll();
+        current = free != null ? free : new Frame(blockSize, codec.maxCompressedLength(blockSize));
+    }
+
+    private void writeFrame(Future<Frame> task) throws IOException {
+        Frame frame;
+        try {
+            frame = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while compressing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error while compressing", e.getCause());
+        }
+        out.writeInt(frame.rawLength);
+        if (frame.packedLength < frame.rawLength) {
+            out.writeInt(frame.packedLength);
+            out.write(frame.packed, 0, frame.packedLength);
+        } else {
+            out.writeInt(frame.rawLength);
+            out.write(frame.raw, 0, frame.rawLength);
+        }
+        frame.rawLength = 0;
+        freeFrames.add(frame);
+    }
+
+    private static final class Frame {
+        private final byte[] raw;
+        private final byte[] packed;
+        private int rawLength;
+        private int packedLength;
+
+        Frame(int blockSize, int maxCompressedLength) {
+            this.raw = new byte[blockSize];
+            this.packed = new byte[maxCompressedLength];
+        }
+
+        void compress(SpillCodec codec) throws IOException {
+            packedLength = codec.compress(raw, 0, rawLength, packed, 0);
+        }
+    }
+}
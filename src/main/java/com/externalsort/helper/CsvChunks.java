@@ -0,0 +1,164 @@
+package com.externalsort.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a CSV file into chunks that start and end on record boundaries, so that each chunk can be parsed
+ * on its own thread. A line break inside a quoted field is not a boundary: the quotes before each tentative
+ * split point are counted in parallel, an escaped quote counts twice and keeps the parity, so the quoting
+ * state at any position is known without parsing the file.
+ */
+public class CsvChunks {
+
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private CsvChunks() {
+
+    }
+
+    /**
+     * @param channel the file, opened for reading
+     * @param chunks the number of chunks wanted, fewer are returned when the records are too large
+     * @param quote the quote character of the format
+     * @param executor counts the quotes of the tentative chunks in parallel, null to count on the calling thread
+     * @return the boundaries: chunk i is from boundaries[i] included to boundaries[i + 1] excluded
+     */
+    public static long[] split(FileChannel channel, int chunks, char quote, ExecutorService executor)
+            throws IOException {
+        long size = channel.size();
+        int count = (int) Math.max(1, Math.min(chunks, size));
+        long[] tentative = new long[count + 1];
+        for (int i = 0; i <= count; i++) {
+            tentative[i] = size * i / count;
+        }
+        long[] quotes = countQuotes(channel, tentative, (byte) quote, executor);
+
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        long quotesBefore = 0;
+        for (int i = 1; i < count; i++) {
+            quotesBefore += quotes[i - 1];
+            long boundary = nextRecord(channel, tentative[i], size, (quotesBefore & 1) == 1, (byte) quote);
+            if (boundary > boundaries.get(boundaries.size() - 1) && boundary < size) {
+                boundaries.add(boundary);
+            }
+        }
+        boundaries.add(size);
+        long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Count the records of a CSV stream by its line breaks out of quotes, without parsing it.
+     * @param in the stream, in a charset where line breaks and quotes are single bytes; it is not closed
+     * @param quote the quote character of the format
+     * @param separator the last character of the record separator of the format
+     * @return the number of records, the last one counts even without its separator
+     */
+    public static long countRecords(InputStream in, char quote, char separator) throws IOException {
+        byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+        boolean inQuotes = false;
+        boolean pending = false;
+        long records = 0;
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < n; i++) {
+                byte b = buffer[i];
+                if (b == quote) {
+                    inQuotes = !inQuotes;
+                } else if (b == separator && !inQuotes) {
+                    records++;
+                    pending = false;
+                    continue;
+                }
+                pending = true;
+            }
+        }
+        return pending ? records + 1 : records;
+    }
+
+    private static long[] countQuotes(FileChannel channel, long[] ranges, byte quote, ExecutorService executor)
+            throws IOException {
+        int count = ranges.length - 1;
+        long[] quotes = new long[count];
+        if (executor == null) {
+            for (int i = 0; i < count; i++) {
+                quotes[i] = countQuotes(channel, ranges[i], ranges[i + 1], quote);
+            }
+            return quotes;
+        }
+        List<Future<Long>> counts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long start = ranges[i];
+            long end = ranges[i + 1];
+            counts.add(executor.submit(() -> countQuotes(channel, start, end, quote)));
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                quotes[i] = counts.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while splitting the input");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error while splitting the input", e.getCause());
+        } finally {
+            for (Future<Long> c : counts) {
+                c.cancel(true);
+            }
+        }
+        return quotes;
+    }
+
+    private static long countQuotes(FileChannel channel, long start, long end, byte quote) throws IOException {
+        long quotes = 0;
+        byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+        InputStream in = new MappedInputStream(channel, start, end);
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < n; i++) {
+                if (buffer[i] == quote) {
+                    quotes++;
+                }
+            }
+        }
+        return quotes;
+    }
+
+    /**
+     * @return the position following the first line break out of quotes at or after from, or end
+     */
+    private static long nextRecord(FileChannel channel, long from, long end, boolean inQuotes, byte quote)
+            throws IOException {
+        byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+        InputStream in = new MappedInputStream(channel, from, end);
+        long position = from;
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < n; i++) {
+                byte b = buffer[i];
+                if (b == quote) {
+                    inQuotes = !inQuotes;
+                } else if (b == '\n' && !inQuotes) {
+                    return position + i + 1;
+                }
+            }
+            position += n;
+        }
+        return end;
+    }
+}
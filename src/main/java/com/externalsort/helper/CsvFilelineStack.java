@@ -18,9 +18,20 @@ public class CsvFilelineStack implements IOStack<CSVRecord> {
         reload();
     }
 
+    /**
+     * @param records sorted records already in memory
+     */
+    public CsvFilelineStack(Iterator<CSVRecord> records) {
+        this.csvParser = null;
+        iterator = records;
+        reload();
+    }
+
     @Override
     public void close() throws IOException {
-        csvParser.close();
+        if (csvParser != null) {
+            csvParser.close();
+        }
     }
 
     @Override
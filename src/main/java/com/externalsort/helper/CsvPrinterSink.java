@@ -0,0 +1,25 @@
+package com.externalsort.helper;
+
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.IOException;
+
+public class CsvPrinterSink implements IOSink<CSVRecord> {
+
+    private final CSVPrinter csvPrinter;
+
+    public CsvPrinterSink(CSVPrinter csvPrinter) {
+        this.csvPrinter = csvPrinter;
+    }
+
+    @Override
+    public void push(CSVRecord record) throws IOException {
+        csvPrinter.printRecord(record);
+    }
+
+    @Override
+    public void close() throws IOException {
+        csvPrinter.close();
+    }
+}
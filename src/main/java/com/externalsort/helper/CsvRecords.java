@@ -0,0 +1,54 @@
+package com.externalsort.helper;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.lang.reflect.Constructor;
+
+/**
+ * Builds CSVRecord instances from already split values.
+ * commons-csv only creates records from its parser, the constructor is package private,
+ * so it is looked up once by reflection. Records built here have no parser, hence no header mapping.
+ */
+public class CsvRecords {
+
+    private static final Constructor<CSVRecord> CONSTRUCTOR;
+
+    static {
+        try {
+            CONSTRUCTOR = CSVRecord.class.getDeclaredConstructor(CSVParser.class, String[].class, String.class,
+                    long.class, long.class);
+            CONSTRUCTOR.setAccessible(true);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private CsvRecords() {
+
+    }
+
+    /**
+     * @param values the fields of the record, the array is not copied
+     * @param recordNumber number of the record in its source, starting at 1
+     * @return a record holding values
+     */
+    public static CSVRecord of(String[] values, long recordNumber) {
+        try {
+            return CONSTRUCTOR.newInstance(null, values, null, recordNumber, -1L);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot create CSVRecord", e);
+        }
+    }
+
+    /**
+     * @return the fields of the record, in a fresh array
+     */
+    public static String[] values(CSVRecord record) {
+        String[] values = new String[record.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = record.get(i);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,12 @@
+package com.externalsort.helper;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * General interface for the destination of merged records,
+ * the counterpart of {@link IOStack}.
+ */
+public interface IOSink<T> extends Closeable {
+    void push(T t) throws IOException;
+}
@@ -0,0 +1,113 @@
+package com.externalsort.helper;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Tournament tree of losers over k sorted stacks, used for k-way merging.
+ * Every internal node remembers the stack which lost the match played there, the overall
+ * winner is kept apart. After the winner has been popped only the matches on its path
+ * to the root are replayed, that is about log2(k) comparisons per record and no allocation.
+ * An empty stack loses against every other stack, ties are won by the lower index so the
+ * merge is stable.
+ *
+ * Typical usage:
+ * <pre>
+ *     while (!tree.empty()) {
+ *         T record = tree.top().pop();
+ *         tree.replay();
+ *     }
+ * </pre>
+ */
+public class LoserTree<S extends IOStack<?>> {
+
+    private final List<S> stacks;
+    private final Comparator<? super S> cmp;
+    private final int k;
+    // tree[0] is the winner, tree[1 .. k-1] are the losers of the internal nodes
+    private final int[] tree;
+
+    /**
+     * @param stacks stacks to merge, each of them already sorted
+     * @param cmp order of two non empty stacks, usually by comparing their heads
+     */
+    public LoserTree(List<S> stacks, Comparator<? super S> cmp) {
+        this.stacks = stacks;
+        this.cmp = cmp;
+        this.k = stacks.size();
+        this.tree = new int[Math.max(k, 1)];
+        if (k == 0) {
+            tree[0] = -1;
+        } else if (k == 1) {
+            tree[0] = 0;
+        } else {
+            tree[0] = build(1);
+        }
+    }
+
+    /**
+     * Build a tree ordering the stacks by their head record.
+     */
+    public static <T, S extends IOStack<T>> LoserTree<S> byHead(List<S> stacks, Comparator<? super T> cmp) {
+        return new LoserTree<>(stacks, (a, b) -> cmp.compare(a.peek(), b.peek()));
+    }
+
+    /**
+     * @return true when every stack is exhausted
+     */
+    public boolean empty() {
+        return tree[0] < 0 || stacks.get(tree[0]).empty();
+    }
+
+    /**
+     * @return the stack holding the smallest head, call {@link #replay()} once it has been popped
+     */
+    public S top() {
+        return tree[0] < 0 ? null : stacks.get(tree[0]);
+    }
+
+    /**
+     * Restore the tree after the head of {@link #top()} has been popped.
+     */
+    public void replay() {
+        if (k < 2) {
+            return;
+        }
+        int winner = tree[0];
+        for (int node = (winner + k) >>> 1; node > 0; node >>>= 1) {
+            if (beats(tree[node], winner)) {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    private int build(int node) {
+        if (node >= k) {
+            return node - k;
+        }
+        int left = build(2 * node);
+        int right = build(2 * node + 1);
+        if (beats(left, right)) {
+            tree[node] = right;
+            return left;
+        }
+        tree[node] = left;
+        return right;
+    }
+
+    private boolean beats(int a, int b) {
+        S sa = stacks.get(a);
+        S sb = stacks.get(b);
+        if (sa.empty()) {
+            return false;
+        }
+        if (sb.empty()) {
+            return true;
+        }
+        int c = cmp.compare(sa, sb);
+        return c < 0 || (c == 0 && a < b);
+    }
+}
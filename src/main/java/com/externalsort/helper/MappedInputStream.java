@@ -0,0 +1,77 @@
+package com.externalsort.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a range of a file through memory mapped windows, the pages are read by the kernel
+ * without a copy into a user buffer. Windows are mapped one after the other, so ranges larger
+ * than 2 GB can be read. The channel is not closed by this stream.
+ * This class is not thread safe, several streams can share the same channel.
+ */
+public class MappedInputStream extends InputStream {
+
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long end;
+    private long windowStart;
+    private MappedByteBuffer window;
+
+    /**
+     * @param channel the file, opened for reading
+     * @param start first byte of the range
+     * @param end the byte after the range
+     */
+    public MappedInputStream(FileChannel channel, long start, long end) {
+        this.channel = channel;
+        this.end = end;
+        this.windowStart = start;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureWindow()) {
+            return -1;
+        }
+        return window.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureWindow()) {
+            return -1;
+        }
+        int n = Math.min(len, window.remaining());
+        window.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return window == null ? 0 : window.remaining();
+    }
+
+    /**
+     * @return false at the end of the range
+     */
+    private boolean ensureWindow() throws IOException {
+        if (window != null && window.hasRemaining()) {
+            return true;
+        }
+        if (window != null) {
+            windowStart += window.capacity();
+        }
+        long size = Math.min(WINDOW_SIZE, end - windowStart);
+        if (size <= 0) {
+            return false;
+        }
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+        return true;
+    }
+}
@@ -0,0 +1,138 @@
+package com.externalsort.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Double buffered input stream: while the reader consumes one block, the next block is read
+ * in the background on an executor, so the disk latency overlaps the work of the reader.
+ * At most one read is in flight, a task never blocks waiting for the reader, so a few threads
+ * can prefetch for many streams.
+ * This class is not thread safe, it is used by one reader at a time.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    private final InputStream in;
+    private final Executor executor;
+    private byte[] current;
+    private int position;
+    private int limit;
+    private byte[] spare;
+    private Future<Integer> next;
+    private boolean eof;
+
+    /**
+     * @param in the stream read in the background, closed with this stream
+     * @param blockSize bytes read at once, the stream holds two blocks
+     * @param executor runs the background reads
+     */
+    public ReadAheadInputStream(InputStream in, int blockSize, Executor executor) {
+        this.in = in;
+        this.executor = executor;
+        this.current = new byte[blockSize];
+        this.spare = new byte[blockSize];
+        prefetch();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            awaitPrefetch();
+        } catch (IOException ignored) {
+            // the stream is closed anyway, a failed read ahead does not matter any more
+        } finally {
+            eof = true;
+            in.close();
+        }
+    }
+
+    /**
+     * Swap the buffers: take the block read in the background and start reading the next one.
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        int n = awaitPrefetch();
+        if (n <= 0) {
+            eof = true;
+            return false;
+        }
+        byte[] consumed = current;
+        current = spare;
+        spare = consumed;
+        position = 0;
+        limit = n;
+        prefetch();
+        return true;
+    }
+
+    private void prefetch() {
+        byte[] block = spare;
+        FutureTask<Integer> task = new FutureTask<>(() -> {
+            int n = 0;
+            while (n < block.length) {
+                int r = in.read(block, n, block.length - n);
+                if (r < 0) {
+                    break;
+                }
+                n += r;
+            }
+            return n;
+        });
+        next = task;
+        executor.execute(task);
+    }
+
+    private int awaitPrefetch() throws IOException {
+        if (next == null) {
+            return -1;
+        }
+        try {
+            return next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while reading ahead");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error while reading ahead", e.getCause());
+        } finally {
+            next = null;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package com.externalsort.helper;
+
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compact in-memory block of records for the run generation.
+ * Records are encoded exactly like in {@link BinaryRunWriter} and appended into large pages,
+ * so a record costs its UTF-8 bytes plus a few bytes of index instead of a CSVRecord, a String[] and one
+ * String per field. Sorting only permutes a primitive index: a sort by binary keys never decodes the records,
+ * a sort with a comparator sorts slices of about a megabyte decoded one at a time, then merges them
+ * decoding each record once more, so the decoded records held at once stay small beside the block.
+ * Pages are kept by {@link #clear()}, so a buffer can be reused for the next block without new allocation.
+ * This class is not thread safe.
+ */
+public class RecordBuffer {
+
+    // pages double from the first one up to the largest, so a small block is not charged a whole large page
+    private static final int FIRST_PAGE_SIZE = 64 * 1024;
+    private static final int MAX_PAGE_SIZE = 1 << 20;
+    // address, length and order of each record, plus the temporary array of the sort
+    private static final int INDEX_BYTES_PER_RECORD = 8 + 4 + 4 + 4;
+    private static final int INSERTION_SORT_THRESHOLD = 7;
+    private static final int RADIX_SORT_THRESHOLD = 32;
+    // encoded bytes of the records decoded together by a sort with a comparator
+    private static final int SORT_SLICE_BYTES = 1 << 20;
+
+    private final List<byte[]> pages = new ArrayList<>();
+    private int currentPage = -1;
+    private int pagePosition;
+    private int pageLimit;
+    private long pageBytesUsed;
+
+    // page index << 32 | offset in page
+    private long[] addresses = new long[1024];
+    private int[] lengths = new int[1024];
+    private int[] order;
+    private int size;
+
+    private byte[] scratch = new byte[256];
+    private int scratchLength;
+
+    /**
+     * Append a record at the end of the buffer.
+     */
+    public void add(CSVRecord record) {
+        add(record, null);
+    }
+
+    /**
+     * Append a record with its binary sort key at the end of the buffer.
+     * @param key key compared by {@link #sortByKey()}, may be null
+     */
+    public void add(CSVRecord record, byte[] key) {
+        scratchLength = 0;
+        int keyLength = key == null ? 0 : key.length;
+        putVarInt(keyLength);
+        putBytes(key, keyLength);
+        int fields = record.size();
+        putVarInt(fields);
+        for (int i = 0; i < fields; i++) {
+            String value = record.get(i);
+            if (value == null) {
+                putVarInt(0);
+                continue;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putVarInt(bytes.length + 1);
+            putBytes(bytes, bytes.length);
+        }
+        append(scratch, 0, scratchLength);
+    }
+
+    /**
+     * @return number of records in the buffer
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return bytes taken by the records and their index, this is exact and not an estimation
+     */
+    public long memoryUsed() {
+        return pageBytesUsed + (long) size * INDEX_BYTES_PER_RECORD;
+    }
+
+    /**
+     * @param i position of the record, in sorted order once the buffer has been sorted
+     * @return the decoded record
+     */
+    public CSVRecord get(int i) {
+        return decode(order == null ? i : order[i]);
+    }
+
+    /**
+     * Stable sort of the records with a comparator, only the index is moved.
+     * Each slice is decoded once for its sort, the sorted slices are merged reading one decoded record per slice.
+     */
+    public void sort(Comparator<CSVRecord> cmp) {
+        int[] src = identity();
+        List<SliceStack> slices = new ArrayList<>();
+        int start = 0;
+        while (start < size) {
+            int end = start;
+            long bytes = 0;
+            while (end < size && (end == start || bytes + lengths[end] <= SORT_SLICE_BYTES)) {
+                bytes += lengths[end++];
+            }
+            CSVRecord[] records = new CSVRecord[end - start];
+            for (int i = start; i < end; i++) {
+                records[i - start] = decode(i);
+            }
+            mergeSort(src, order, start, end, start, records, cmp);
+            slices.add(new SliceStack(start, end));
+            start = end;
+        }
+        if (slices.size() > 1) {
+            LoserTree<SliceStack> tree = LoserTree.byHead(slices, cmp);
+            for (int i = 0; !tree.empty(); i++) {
+                SliceStack top = tree.top();
+                src[i] = top.record();
+                top.pop();
+                tree.replay();
+            }
+            order = src;
+        }
+    }
+
+    /**
+     * Stable sort of the records by their binary key, compared as unsigned bytes.
+     * This is a most significant digit radix sort reading the keys in place, no record is decoded.
+     */
+    public void sortByKey() {
+        int[] tmp = identity();
+        radixSort(order, tmp, 0, size, 0, new int[257]);
+    }
+
+    /**
+     * Compare the keys of two records, positions are in sorted order once the buffer has been sorted.
+     */
+    public int compareKeys(int i, int j) {
+        return compareKeysFrom(order == null ? i : order[i], order == null ? j : order[j], 0);
+    }
+
+    /**
+     * Copy the i-th record, already encoded, into a binary run.
+     */
+    public void writeTo(BinaryRunWriter writer, int i) throws IOException {
+        int record = order == null ? i : order[i];
+        long address = addresses[record];
+        writer.writeEncoded(pages.get((int) (address >>> 32)), (int) address, lengths[record]);
+    }
+
+    /**
+     * Forget every record but keep the allocated pages for the next block.
+     */
+    public void clear() {
+        size = 0;
+        order = null;
+        currentPage = -1;
+        pagePosition = 0;
+        pageLimit = 0;
+        pageBytesUsed = 0;
+    }
+
+    private int[] identity() {
+        order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        return order.clone();
+    }
+
+    private void append(byte[] bytes, int offset, int length) {
+        if (pagePosition + length > pageLimit || currentPage < 0) {
+            nextPage(length);
+        }
+        byte[] page = pages.get(currentPage);
+        System.arraycopy(bytes, offset, page, pagePosition, length);
+        if (size == addresses.length) {
+            addresses = Arrays.copyOf(addresses, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+        }
+        addresses[size] = ((long) currentPage << 32) | pagePosition;
+        lengths[size] = length;
+        size++;
+        pagePosition += length;
+    }
+
+    private void nextPage(int length) {
+        currentPage++;
+        pagePosition = 0;
+        int pageSize = pageSize(currentPage);
+        if (length > pageSize) {
+            // a record larger than its page gets a page of its own, it is not pooled
+            byte[] large = new byte[length];
+            if (currentPage < pages.size()) {
+                pages.add(currentPage, large);
+            } else {
+                pages.add(large);
+            }
+            pageLimit = length;
+            pageBytesUsed += length;
+            return;
+        }
+        while (currentPage < pages.size() && pages.get(currentPage).length != pageSize) {
+            pages.remove(currentPage);
+        }
+        if (currentPage == pages.size()) {
+            pages.add(new byte[pageSize]);
+        }
+        pageLimit = pageSize;
+        // whole pages are accounted, including the unused tail of the previous one
+        pageBytesUsed += pageSize;
+    }
+
+    private static int pageSize(int page) {
+        return page >= 4 ? MAX_PAGE_SIZE : FIRST_PAGE_SIZE << page;
+    }
+
+    private CSVRecord decode(int record) {
+        long address = addresses[record];
+        byte[] page = pages.get((int) (address >>> 32));
+        int[] position = {(int) address};
+        int keyLength = readVarInt(page, position);
+        position[0] += keyLength;
+        String[] values = new String[readVarInt(page, position)];
+        for (int i = 0; i < values.length; i++) {
+            int length = readVarInt(page, position) - 1;
+            if (length >= 0) {
+                values[i] = new String(page, position[0], length, StandardCharsets.UTF_8);
+                position[0] += length;
+            }
+        }
+        return CsvRecords.of(values, record + 1);
+    }
+
+    /**
+     * @return the byte of the key at depth as an unsigned value, or -1 once the key is over
+     */
+    private int keyByte(int record, int depth) {
+        long address = addresses[record];
+        byte[] page = pages.get((int) (address >>> 32));
+        int[] position = {(int) address};
+        int keyLength = readVarInt(page, position);
+        return depth < keyLength ? page[position[0] + depth] & 0xFF : -1;
+    }
+
+    private int compareKeysFrom(int a, int b, int depth) {
+        long addressA = addresses[a];
+        long addressB = addresses[b];
+        byte[] pageA = pages.get((int) (addressA >>> 32));
+        byte[] pageB = pages.get((int) (addressB >>> 32));
+        int[] positionA = {(int) addressA};
+        int[] positionB = {(int) addressB};
+        int lengthA = readVarInt(pageA, positionA);
+        int lengthB = readVarInt(pageB, positionB);
+        int length = Math.min(lengthA, lengthB);
+        for (int i = depth; i < length; i++) {
+            int c = (pageA[positionA[0] + i] & 0xFF) - (pageB[positionB[0] + i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return lengthA - lengthB;
+    }
+
+    private void radixSort(int[] index, int[] tmp, int low, int high, int depth, int[] count) {
+        if (high - low < RADIX_SORT_THRESHOLD) {
+            for (int i = low + 1; i < high; i++) {
+                for (int j = i; j > low && compareKeysFrom(index[j - 1], index[j], depth) > 0; j--) {
+                    int t = index[j];
+                    index[j] = index[j - 1];
+                    index[j - 1] = t;
+                }
+            }
+            return;
+        }
+        // bucket 0 holds the keys ending before depth, bucket b + 1 the keys with byte b at depth
+        Arrays.fill(count, 0);
+        for (int i = low; i < high; i++) {
+            count[keyByte(index[i], depth) + 1]++;
+        }
+        int[] start = new int[258];
+        for (int b = 0; b < 257; b++) {
+            start[b + 1] = start[b] + count[b];
+        }
+        int[] next = Arrays.copyOf(start, 257);
+        for (int i = low; i < high; i++) {
+            tmp[low + next[keyByte(index[i], depth) + 1]++] = index[i];
+        }
+        System.arraycopy(tmp, low, index, low, high - low);
+        for (int b = 1; b < 257; b++) {
+            if (start[b + 1] - start[b] > 1) {
+                radixSort(index, tmp, low + start[b], low + start[b + 1], depth + 1, count);
+            }
+        }
+    }
+
+    private static int readVarInt(byte[] page, int[] position) {
+        int b = page[position[0]++];
+        int value = b & 0x7F;
+        int shift = 7;
+        while ((b & 0x80) != 0) {
+            b = page[position[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+
+    private void putVarInt(int value) {
+        ensureScratch(5);
+        while ((value & ~0x7F) != 0) {
+            scratch[scratchLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        scratch[scratchLength++] = (byte) value;
+    }
+
+    private void putBytes(byte[] bytes, int length) {
+        if (length == 0) {
+            return;
+        }
+        ensureScratch(length);
+        System.arraycopy(bytes, 0, scratch, scratchLength, length);
+        scratchLength += length;
+    }
+
+    private void ensureScratch(int more) {
+        if (scratchLength + more > scratch.length) {
+            scratch = Arrays.copyOf(scratch, Math.max(scratchLength + more, scratch.length * 2));
+        }
+    }
+
+    /**
+     * @param base first record of the slice, records holds the decoded records of the slice from there
+     */
+    private static void mergeSort(int[] src, int[] dest, int low, int high, int base, CSVRecord[] records,
+                                  Comparator<CSVRecord> cmp) {
+        int length = high - low;
+        if (length < INSERTION_SORT_THRESHOLD) {
+            for (int i = low; i < high; i++) {
+                for (int j = i; j > low && cmp.compare(records[dest[j - 1] - base], records[dest[j] - base]) > 0; j--) {
+                    int t = dest[j];
+                    dest[j] = dest[j - 1];
+                    dest[j - 1] = t;
+                }
+            }
+            return;
+        }
+        int mid = (low + high) >>> 1;
+        mergeSort(dest, src, low, mid, base, records, cmp);
+        mergeSort(dest, src, mid, high, base, records, cmp);
+        if (cmp.compare(records[src[mid - 1] - base], records[src[mid] - base]) <= 0) {
+            System.arraycopy(src, low, dest, low, length);
+            return;
+        }
+        for (int i = low, p = low, q = mid; i < high; i++) {
+            if (q >= high || (p < mid && cmp.compare(records[src[p] - base], records[src[q] - base]) <= 0)) {
+                dest[i] = src[p++];
+            } else {
+                dest[i] = src[q++];
+            }
+        }
+    }
+
+    /**
+     * A sorted slice of the index, its head is the only record of the slice decoded during the merge.
+     */
+    private final class SliceStack implements IOStack<CSVRecord> {
+        private final int end;
+        private int position;
+        private CSVRecord head;
+
+        SliceStack(int start, int end) {
+            this.position = start;
+            this.end = end;
+            this.head = decode(order[start]);
+        }
+
+        int record() {
+            return order[position];
+        }
+
+        @Override
+        public boolean empty() {
+            return head == null;
+        }
+
+        @Override
+        public CSVRecord peek() {
+            return head;
+        }
+
+        @Override
+        public CSVRecord pop() {
+            CSVRecord record = head;
+            position++;
+            head = position < end ? decode(order[position]) : null;
+            return record;
+        }
+
+        @Override
+        public void close() {
+            head = null;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.externalsort.helper;
+
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Collapses the records having the same key into one while they are sorted, so that the runs and every merge
+ * level only hold one record per key. The sort calls {@link #init(CSVRecord)} once on each input record, then
+ * {@link #combine(CSVRecord, CSVRecord)} on partial results in any grouping, in sort order: a combiner must be
+ * associative and keep the fields of the key. See {@link RecordCombiners} for the usual combiners.
+ */
+public interface RecordCombiner {
+
+    /**
+     * @return the partial result of a single input record, the record itself by default
+     */
+    default CSVRecord init(CSVRecord record) {
+        return record;
+    }
+
+    /**
+     * @param first partial result of the records coming first in sort order
+     * @param second partial result of the following records with the same key
+     * @return the partial result of all of them
+     */
+    CSVRecord combine(CSVRecord first, CSVRecord second);
+
+    /**
+     * @return what the combiner computes, recorded by a resumable sort so that a job started again with another
+     * combiner starts over. The class of the combiner by default, the class of a lambda may change from one run
+     * to the next and its job then always starts over
+     */
+    default String name() {
+        return getClass().getName();
+    }
+}
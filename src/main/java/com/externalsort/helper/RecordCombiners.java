@@ -0,0 +1,85 @@
+package com.externalsort.helper;
+
+import org.apache.commons.csv.CSVRecord;
+
+import java.util.Arrays;
+import java.util.function.BinaryOperator;
+
+/**
+ * The built-in {@link RecordCombiner}s.
+ */
+public class RecordCombiners {
+
+    private RecordCombiners() {
+
+    }
+
+    /**
+     * Keeps the first record of each key, like a distinct sort.
+     */
+    public static RecordCombiner first() {
+        return named("first", (first, second) -> first);
+    }
+
+    /**
+     * Keeps the last record of each key, in sort order.
+     */
+    public static RecordCombiner last() {
+        return named("last", (first, second) -> second);
+    }
+
+    /**
+     * Keeps the first record of each key with the number of records of the key appended as a last column.
+     */
+    public static RecordCombiner count() {
+        return new RecordCombiner() {
+            @Override
+            public CSVRecord init(CSVRecord record) {
+                String[] values = Arrays.copyOf(CsvRecords.values(record), record.size() + 1);
+                values[record.size()] = "1";
+                return CsvRecords.of(values, record.getRecordNumber());
+            }
+
+            @Override
+            public CSVRecord combine(CSVRecord first, CSVRecord second) {
+                return sum(first, second, first.size() - 1);
+            }
+
+            @Override
+            public String name() {
+                return "count";
+            }
+        };
+    }
+
+    /**
+     * Keeps the first record of each key with the columns replaced by their sum over the key,
+     * the columns hold signed longs.
+     */
+    public static RecordCombiner sum(int... columns) {
+        return named("sum" + Arrays.toString(columns), (first, second) -> sum(first, second, columns));
+    }
+
+    private static RecordCombiner named(String name, BinaryOperator<CSVRecord> combine) {
+        return new RecordCombiner() {
+            @Override
+            public CSVRecord combine(CSVRecord first, CSVRecord second) {
+                return combine.apply(first, second);
+            }
+
+            @Override
+            public String name() {
+                return name;
+            }
+        };
+    }
+
+    private static CSVRecord sum(CSVRecord first, CSVRecord second, int... columns) {
+        String[] values = CsvRecords.values(first);
+        for (int column : columns) {
+            values[column] = String.valueOf(Long.parseLong(first.get(column).trim())
+                    + Long.parseLong(second.get(column).trim()));
+        }
+        return CsvRecords.of(values, first.getRecordNumber());
+    }
+}
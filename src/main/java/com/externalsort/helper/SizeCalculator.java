@@ -6,6 +6,7 @@ public class SizeCalculator {
     private static int OBJ_HEADER;
     private static int OBJ_REF;
     private static int OBJ_OVERHEAD;
+    private static int ARRAY_HEADER;
     private static int CSV_OVERHEAD = 26000;
     private static boolean IS_64_BIT_JVM;
 
@@ -30,6 +31,9 @@ public class SizeCalculator {
         OBJ_REF = IS_64_BIT_JVM ? 8 : 4;
 
         OBJ_OVERHEAD = OBJ_HEADER + OBJ_REF;
+
+        // the length of an array follows the object header
+        ARRAY_HEADER = OBJ_OVERHEAD + 4;
     }
 
     /**
@@ -37,9 +41,42 @@ public class SizeCalculator {
      *
      * @param s The CSVRecord to estimate memory footprint.
      * @return The <strong>estimated</strong> size in bytes.
+     * @deprecated allocates the string of the whole record to measure it, use {@link #sizeOf(CSVRecord)}
      */
+    @Deprecated
     public static long estimatedSizeOf(CSVRecord s) {
         return ((long) (s.toString().length() * 15) + OBJ_OVERHEAD + CSV_OVERHEAD);
     }
 
+    /**
+     * Measures the heap taken by a parsed CSVRecord from the length of its fields, without allocating:
+     * the record, its array of values, and for each field a String and its array of chars.
+     * The chars are counted 2 bytes each, this is exact for the char[] of Java 8 and an upper bound
+     * for the compact strings of later versions.
+     *
+     * @param s The CSVRecord to measure.
+     * @return The size in bytes, including the reference held by the collection the record is kept in.
+     */
+    public static long sizeOf(CSVRecord s) {
+        int fields = s.size();
+        // comment, parser and values references, recordNumber and characterPosition
+        long size = align(OBJ_OVERHEAD + 3L * OBJ_REF + 16) + OBJ_REF;
+        size += align(ARRAY_HEADER + (long) fields * OBJ_REF);
+        for (int i = 0; i < fields; i++) {
+            String value = s.get(i);
+            if (value != null) {
+                // value reference and hash
+                size += align(OBJ_OVERHEAD + OBJ_REF + 4) + align(ARRAY_HEADER + 2L * value.length());
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return bytes taken by an object of size bytes once aligned on 8 bytes
+     */
+    public static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
 }
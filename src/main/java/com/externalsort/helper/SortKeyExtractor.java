@@ -0,0 +1,13 @@
+package com.externalsort.helper;
+
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Turns a record into a binary comparable key: two records are ordered like their keys compared
+ * as unsigned bytes, a key being smaller than the longer keys it is a prefix of.
+ * The key is computed once per record, sorting and merging then never call back user code.
+ * See {@link SortKeys} for the usual extractors.
+ */
+public interface SortKeyExtractor {
+    byte[] keyOf(CSVRecord record);
+}
@@ -0,0 +1,87 @@
+package com.externalsort.helper;
+
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+
+/**
+ * Factories of {@link SortKeyExtractor} and helpers to compare binary keys.
+ */
+public class SortKeys {
+
+    private SortKeys() {
+
+    }
+
+    /**
+     * Key of the UTF-8 bytes of a column, a null value is sorted like an empty one.
+     * It orders by code point, which is String.compareTo order except that characters above U+FFFF
+     * sort after U+E000..U+FFFF.
+     */
+    public static SortKeyExtractor utf8Column(int column) {
+        return record -> {
+            String value = record.get(column);
+            return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        };
+    }
+
+    /**
+     * Key of a column holding a signed long, stored big endian with the sign bit flipped.
+     */
+    public static SortKeyExtractor longColumn(int column) {
+        return record -> {
+            long value = Long.parseLong(record.get(column).trim()) ^ Long.MIN_VALUE;
+            byte[] key = new byte[8];
+            for (int i = 7; i >= 0; i--) {
+                key[i] = (byte) value;
+                value >>>= 8;
+            }
+            return key;
+        };
+    }
+
+    /**
+     * Key ordering by the first part, then by the second and so on.
+     * Every part is escaped (0x00 becomes 0x00 0xFF) and terminated by 0x00 0x01
+     * so that a shorter part still sorts before the longer parts it is a prefix of.
+     */
+    public static SortKeyExtractor of(SortKeyExtractor... parts) {
+        return record -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+            for (SortKeyExtractor part : parts) {
+                for (byte b : part.keyOf(record)) {
+                    out.write(b);
+                    if (b == 0) {
+                        out.write(0xFF);
+                    }
+                }
+                out.write(0);
+                out.write(1);
+            }
+            return out.toByteArray();
+        };
+    }
+
+    /**
+     * Compare two keys as unsigned bytes.
+     */
+    public static int compare(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * @return a record comparator agreeing with the keys, it extracts both keys at each call
+     */
+    public static Comparator<CSVRecord> comparator(SortKeyExtractor extractor) {
+        return (a, b) -> compare(extractor.keyOf(a), extractor.keyOf(b));
+    }
+}
@@ -0,0 +1,27 @@
+package com.externalsort.helper;
+
+import java.io.IOException;
+
+/**
+ * Compresses the blocks of the temporary files of a sort, see {@link SpillCodecs} for the built-in codecs.
+ * Each block is compressed on its own, so the blocks of one file can be compressed on several threads;
+ * implementations must be thread safe.
+ */
+public interface SpillCodec {
+
+    /**
+     * @return the largest size of a compressed block of length bytes
+     */
+    int maxCompressedLength(int length);
+
+    /**
+     * @return the length of the compressed block written in dst at dstOff
+     */
+    int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) throws IOException;
+
+    /**
+     * @param dstLen the length of the block before compression
+     * @return the length of the block written in dst at dstOff
+     */
+    int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) throws IOException;
+}
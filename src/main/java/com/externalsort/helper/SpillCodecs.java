@@ -0,0 +1,150 @@
+package com.externalsort.helper;
+
+import org.iq80.snappy.CorruptionException;
+import org.iq80.snappy.Snappy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The built-in {@link SpillCodec}s, and the wrapper applying a codec to the temporary files only.
+ */
+public class SpillCodecs {
+
+    // bytes compressed at once, large enough for the codecs to find matches
+    private static final int BLOCK_SIZE = 128 * 1024;
+
+    // blocks of one file being compressed at the same time
+    private static final int MAX_PENDING_BLOCKS = 4;
+
+    private static final ExecutorService COMPRESSORS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "externalsort-compressor");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private static final SpillCodec SNAPPY = new SpillCodec() {
+        @Override
+        public int maxCompressedLength(int length) {
+            return Snappy.maxCompressedLength(length);
+        }
+
+        @Override
+        public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+            return Snappy.compress(src, srcOff, srcLen, dst, dstOff);
+        }
+
+        @Override
+        public int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+                throws IOException {
+            try {
+                return Snappy.uncompress(src, srcOff, srcLen, dst, dstOff);
+            } catch (CorruptionException e) {
+                throw new IOException("corrupted snappy block", e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "snappy";
+        }
+    };
+
+    private SpillCodecs() {
+
+    }
+
+    /**
+     * @return a fast LZ77 codec, about 2x on CSV data for a small cost in CPU
+     */
+    public static SpillCodec snappy() {
+        return SNAPPY;
+    }
+
+    /**
+     * @param level from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+     * @return a deflate codec, slower than {@link #snappy()} but smaller, for the slowest disks
+     */
+    public static SpillCodec deflate(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("deflate level must be between 1 and 9: " + level);
+        }
+        return new SpillCodec() {
+            @Override
+            public int maxCompressedLength(int length) {
+                // stored blocks of deflate, plus the zlib header and checksum
+                return length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 6;
+            }
+
+            @Override
+            public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) throws IOException {
+                Deflater deflater = new Deflater(level);
+                try {
+                    deflater.setInput(src, srcOff, srcLen);
+                    deflater.finish();
+                    int n = deflater.deflate(dst, dstOff, dst.length - dstOff);
+                    if (!deflater.finished()) {
+                        throw new IOException("compressed block larger than " + (dst.length - dstOff));
+                    }
+                    return n;
+                } finally {
+                    deflater.end();
+                }
+            }
+
+            @Override
+            public int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+                    throws IOException {
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(src, srcOff, srcLen);
+                    int n = inflater.inflate(dst, dstOff, dstLen);
+                    if (!inflater.finished()) {
+                        throw new IOException("truncated deflate block");
+                    }
+                    return n;
+                } catch (DataFormatException e) {
+                    throw new IOException("corrupted deflate block", e);
+                } finally {
+                    inflater.end();
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "deflate-" + level;
+            }
+        };
+    }
+
+    /**
+     * Compress the streams of a wrapper: the data is compressed first, then given to the wrapper,
+     * eg. to be encrypted. The blocks of a file are compressed on a shared pool of threads.
+     * @param codec the codec, null to return the wrapper itself
+     * @return a wrapper for the temporary files
+     */
+    public static IStreamWrapper wrap(IStreamWrapper wrapper, SpillCodec codec) {
+        if (codec == null) {
+            return wrapper;
+        }
+        return new IStreamWrapper() {
+            @Override
+            public OutputStream wrap(OutputStream outputStream) {
+                return new CompressedOutputStream(wrapper.wrap(outputStream), codec, BLOCK_SIZE, COMPRESSORS,
+                        MAX_PENDING_BLOCKS);
+            }
+
+            @Override
+            public InputStream wrap(InputStream inputStream) {
+                return new CompressedInputStream(wrapper.wrap(inputStream), codec);
+            }
+        };
+    }
+}
@@ -0,0 +1,177 @@
+package com.externalsort.helper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Output stream writing full blocks in the background on an executor, so the writer keeps working while
+ * the previous blocks go to the disk. The blocks are written in order by one task at a time, at most
+ * queueDepth blocks exist: the writer waits for a free one when the disk is behind.
+ * Failures of the background writes are thrown by the next write, flush or close.
+ * This class is not thread safe, it is used by one writer at a time.
+ */
+public class WriteBehindOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final Executor executor;
+    private final BlockingQueue<byte[]> freeBlocks;
+    private final Queue<Block> pending = new ArrayDeque<>();
+    private boolean draining;
+    private volatile IOException failure;
+    private byte[] current;
+    private int position;
+    private boolean closed;
+
+    /**
+     * @param out the stream written in the background, closed with this stream
+     * @param blockSize bytes written at once
+     * @param queueDepth blocks being filled, waiting or being written, at least 2
+     * @param executor runs the background writes
+     */
+    public WriteBehindOutputStream(OutputStream out, int blockSize, int queueDepth, Executor executor) {
+        this.out = out;
+        this.executor = executor;
+        int blocks = Math.max(2, queueDepth);
+        this.freeBlocks = new ArrayBlockingQueue<>(blocks);
+        for (int i = 1; i < blocks; i++) {
+            freeBlocks.add(new byte[blockSize]);
+        }
+        this.current = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (position == current.length) {
+            submit();
+        }
+        current[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (position == current.length) {
+                submit();
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(b, off, current, position, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Wait until every block is written, then flush the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (position > 0) {
+            submit();
+        }
+        awaitWrites();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            try {
+                awaitWrites();
+            } catch (IOException ignored) {
+                // already thrown by flush
+            }
+            out.close();
+        }
+    }
+
+    private void submit() throws IOException {
+        checkFailure();
+        Block block = new Block(current, position);
+        try {
+            current = freeBlocks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a free block");
+        }
+        position = 0;
+        synchronized (pending) {
+            pending.add(block);
+            if (!draining) {
+                draining = true;
+                executor.execute(this::drain);
+            }
+        }
+    }
+
+    /**
+     * Write the pending blocks in order, only one drain runs at a time for a stream.
+     */
+    private void drain() {
+        while (true) {
+            Block block;
+            synchronized (pending) {
+                block = pending.poll();
+                if (block == null) {
+                    draining = false;
+                    pending.notifyAll();
+                    return;
+                }
+            }
+            try {
+                if (failure == null) {
+                    out.write(block.bytes, 0, block.length);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException("Error while writing behind", e);
+            } finally {
+                freeBlocks.add(block.bytes);
+            }
+        }
+    }
+
+    private void awaitWrites() throws IOException {
+        synchronized (pending) {
+            while (draining) {
+                try {
+                    pending.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for the writes");
+                }
+            }
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException("Error while writing behind", e);
+        }
+    }
+
+    private static final class Block {
+        private final byte[] bytes;
+        private final int length;
+
+        Block(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+    }
+}
@@ -1,24 +1,55 @@
 package com.externalsort;
 
+import com.externalsort.helper.BinaryRunWriter;
+import com.externalsort.helper.CloseableIterator;
+import com.externalsort.helper.CsvFilelineStack;
+import com.externalsort.helper.CsvRecords;
 import com.externalsort.helper.FileEncrypterDecrypter;
 import com.externalsort.helper.IStreamWrapper;
 import com.externalsort.helper.RandomString;
+import com.externalsort.helper.ReadAheadInputStream;
+import com.externalsort.helper.RecordBuffer;
+import com.externalsort.helper.RecordCombiners;
+import com.externalsort.helper.SortKeyExtractor;
+import com.externalsort.helper.SortKeys;
+import com.externalsort.helper.SpillCodec;
+import com.externalsort.helper.SpillCodecs;
 import com.externalsort.helper.TmpFileBuilder;
+import com.externalsort.helper.WriteBehindOutputStream;
 import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 import org.junit.Ignore;
 import org.junit.Test;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
@@ -172,6 +203,1153 @@ public class ExternalSortTest {
         checkFileIsSorted(500000, output);
     }
 
+    @Test
+    public void testParallelSortNonDistinct() throws IOException {
+        String resourcesPath = getClass().getResource("/test_files/").getPath();
+        File input = new File(resourcesPath + "external_mission.csv");
+        File output = File.createTempFile("parallel_external_mission", ".csv");
+        // a budget smaller than the records, so that they go through runs
+        long lines = ExternalSort.sortCsv(input, output, DEFAULT_CMP,
+                SortConfig.builder().parallelism(4).memoryBudget(8 << 20).build());
+        assertEquals(500000, lines);
+        checkFileIsSorted(500000, output);
+    }
+
+    @Test
+    public void testByteArenaSort() throws IOException {
+        String resourcesPath = getClass().getResource("/test_files/").getPath();
+        File input = new File(resourcesPath + "external_mission.csv");
+        for (int parallelism : new int[]{1, 3}) {
+            File output = File.createTempFile("arena_external_mission", ".csv");
+            long lines = ExternalSort.sortCsv(input, output, DEFAULT_CMP, SortConfig.builder()
+                    .parallelism(parallelism).runGeneration(RunGeneration.BYTE_ARENA).memoryBudget(8 << 20).build());
+            assertEquals(500000, lines);
+            checkFileIsSorted(500000, output);
+        }
+        File distinct = File.createTempFile("arena_external_mission_distinct", ".csv");
+        ExternalSort.sortCsv(input, distinct, DEFAULT_CMP, SortConfig.builder().distinct(true)
+                .runGeneration(RunGeneration.BYTE_ARENA).memoryBudget(8 << 20).build());
+        checkFileIsSorted(10, distinct);
+
+        // a stable sort with a comparator decodes each record once within a slice, and once more to merge slices
+        String padding = RandomString.random(100);
+        for (int count : new int[]{5000, 40000}) {
+            RecordBuffer buffer = new RecordBuffer();
+            Random random = new Random(4);
+            for (int i = 0; i < count; i++) {
+                buffer.add(CsvRecords.of(new String[]{"k" + random.nextInt(100), String.valueOf(i), padding}, i + 1));
+            }
+            Set<CSVRecord> decoded = Collections.newSetFromMap(new IdentityHashMap<>());
+            buffer.sort((a, b) -> {
+                decoded.add(a);
+                decoded.add(b);
+                return DEFAULT_CMP.compare(a, b);
+            });
+            assertTrue(decoded.size() >= count && decoded.size() <= (count < 10000 ? count : 2 * count));
+            assertEquals(count, buffer.size());
+            for (int i = 1; i < buffer.size(); i++) {
+                CSVRecord previous = buffer.get(i - 1);
+                CSVRecord current = buffer.get(i);
+                int c = DEFAULT_CMP.compare(previous, current);
+                assertTrue(c < 0 || c == 0 && Long.parseLong(previous.get(1)) < Long.parseLong(current.get(1)));
+            }
+        }
+    }
+
+    @Test
+    public void testReplacementSelectionSort() throws IOException {
+        String resourcesPath = getClass().getResource("/test_files/").getPath();
+        File input = new File(resourcesPath + "external_mission.csv");
+        File output = File.createTempFile("replacement_external_mission", ".csv");
+        long lines = ExternalSort.sortCsv(input, output, DEFAULT_CMP, SortConfig.builder()
+                .runGeneration(RunGeneration.REPLACEMENT_SELECTION).memoryBudget(8 << 20).build());
+        assertEquals(500000, lines);
+
+        // an already sorted input gives a single run
+        File tmpDirectory = Files.createTempDirectory("replacement").toFile();
+        List<File> runs = BatchSortedFileProducer.sortCsvInBatch(output, DEFAULT_CMP, tmpDirectory,
+                Charset.defaultCharset(), false, CSVFormat.DEFAULT, 0, DEFAULT_WRAPPER, 1, RunFormat.CSV,
+                RunGeneration.REPLACEMENT_SELECTION);
+        assertEquals(1, runs.size());
+        assertTrue(runs.get(0).delete());
+        assertTrue(tmpDirectory.delete());
+        checkFileIsSorted(500000, output);
+
+        File distinct = File.createTempFile("replacement_external_mission_distinct", ".csv");
+        ExternalSort.sortCsv(input, distinct, DEFAULT_CMP, SortConfig.builder().distinct(true)
+                .runGeneration(RunGeneration.REPLACEMENT_SELECTION).memoryBudget(8 << 20).build());
+        checkFileIsSorted(10, distinct);
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        String resourcesPath = getClass().getResource("/test_files/").getPath();
+        File input = new File(resourcesPath + "external_mission.csv");
+
+        // an exact budget gives blocks of the same size whatever the heap state
+        SortConfig small = SortConfig.builder().memoryBudget(1 << 20).build();
+        List<File> runs = BatchSortedFileProducer.sortCsvInBatch(input, DEFAULT_CMP, small);
+        assertTrue(runs.size() > 1);
+        for (File run : runs) {
+            assertTrue(run.delete());
+        }
+
+        // two sorts share a budget, each one reserves half of it
+        MemoryBudget budget = new MemoryBudget(4 << 20);
+        SortConfig shared = SortConfig.builder().memoryBudget(budget).sortMemory(2 << 20).build();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<File>> outputs = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                outputs.add(executor.submit(() -> {
+                    File output = File.createTempFile("budget_external_mission", ".csv");
+                    ExternalSort.sortCsv(input, output, DEFAULT_CMP, shared);
+                    return output;
+                }));
+            }
+            for (Future<File> output : outputs) {
+                checkFileIsSorted(500000, output.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(budget.getCapacity(), budget.getAvailable());
+    }
+
+    @Test
+    public void testReadAheadAndWriteBehind() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            byte[] data = new byte[100003];
+            new Random(7).nextBytes(data);
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            try (WriteBehindOutputStream out = new WriteBehindOutputStream(sink, 1000, 3, executor)) {
+                out.write(data, 0, 10);
+                out.write(data[10]);
+                out.write(data, 11, data.length - 11);
+            }
+            assertArrayEquals(data, sink.toByteArray());
+
+            ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            try (ReadAheadInputStream in = new ReadAheadInputStream(
+                    new ByteArrayInputStream(data), 999, executor)) {
+                copy.write(in.read());
+                byte[] chunk = new byte[4096];
+                int n;
+                while ((n = in.read(chunk, 0, chunk.length)) >= 0) {
+                    copy.write(chunk, 0, n);
+                }
+                assertEquals(-1, in.read());
+            }
+            assertArrayEquals(data, copy.toByteArray());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSpillCodec() throws IOException {
+        String resourcesPath = getClass().getResource("/test_files/").getPath();
+        File input = new File(resourcesPath + "external_mission.csv");
+        SortConfig plain = SortConfig.builder().memoryBudget(8 << 20).build();
+        SortConfig compressed = plain.toBuilder().spillCodec(SpillCodecs.snappy()).build();
+        // the runs shrink, the output file is not compressed
+        assertTrue(spillSize(input, compressed) < spillSize(input, plain));
+
+        for (SpillCodec codec : new SpillCodec[]{SpillCodecs.snappy(), SpillCodecs.deflate(1)}) {
+            File output = File.createTempFile("codec_external_mission", ".csv");
+            ExternalSort.sortCsv(input, output, DEFAULT_CMP, plain.toBuilder().spillCodec(codec).build());
+            checkFileIsSorted(500000, output);
+        }
+
+        // a run that cannot be written fails the sort, the runs already written are deleted
+        SpillCodec snappy = SpillCodecs.snappy();
+        AtomicInteger blocks = new AtomicInteger();
+        SpillCodec failing = new SpillCodec() {
+            @Override
+            public int maxCompressedLength(int length) {
+                return snappy.maxCompressedLength(length);
+            }
+
+            @Override
+            public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) throws IOException {
+                if (blocks.incrementAndGet() > 20) {
+                    throw new IOException("no space left on device");
+                }
+                return snappy.compress(src, srcOff, srcLen, dst, dstOff);
+            }
+
+            @Override
+            public int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+                    throws IOException {
+                return snappy.decompress(src, srcOff, srcLen, dst, dstOff, dstLen);
+            }
+        };
+        File tmpDirectory = Files.createTempDirectory("failing_spill").toFile();
+        try {
+            BatchSortedFileProducer.sortCsvInBatch(input, DEFAULT_CMP,
+                    plain.toBuilder().tmpDirectory(tmpDirectory).spillCodec(failing).build());
+            fail("the spill fails");
+        } catch (IOException expected) {
+            assertEquals("no space left on device", expected.getMessage());
+        }
+        assertEquals(0, tmpDirectory.list().length);
+        assertTrue(tmpDirectory.delete());
+    }
+
+    private long spillSize(File input, SortConfig config) throws IOException {
+        long size = 0;
+        for (File run : BatchSortedFileProducer.sortCsvInBatch(input, DEFAULT_CMP, config)) {
+            size += run.length();
+            assertTrue(run.delete());
+        }
+        return size;
+    }
+
+    @Test
+    public void testMappedInput() throws IOException {
+        // quoted fields hold line breaks and escaped quotes, a chunk must not start inside them
+        List<String> lines = new ArrayList<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 20000; i++) {
+            lines.add(RandomString.random(8) + ",\"line " + i + "\n\"\"next\"\", line\"," + random.nextInt(1000));
+        }
+        File input = TmpFileBuilder.tmpFileBuilder(lines);
+        File expected = File.createTempFile("mapped_expected", ".csv");
+        File actual = File.createTempFile("mapped_actual", ".csv");
+        try {
+            ExternalSort.sortCsv(input, expected, DEFAULT_CMP, SortConfig.builder().build());
+            for (RunGeneration generation : new RunGeneration[]{RunGeneration.OBJECT_LIST, RunGeneration.BYTE_ARENA}) {
+                ExternalSort.sortCsv(input, actual, DEFAULT_CMP, SortConfig.builder().mappedInput(true)
+                        .parallelism(4).runGeneration(generation).memoryBudget(1 << 20).build());
+                assertEquals(new String(Files.readAllBytes(expected.toPath())),
+                        new String(Files.readAllBytes(actual.toPath())));
+            }
+        } finally {
+            expected.delete();
+            actual.delete();
+        }
+    }
+
+    @Test
+    public void testPartitionedSort() throws IOException {
+        // few distinct keys, equal keys must go to the same partition
+        List<String> lines = new ArrayList<>();
+        lines.add("key,value");
+        Random random = new Random(13);
+        for (int i = 0; i < 50000; i++) {
+            lines.add("k" + random.nextInt(300) + "," + i);
+        }
+        File input = TmpFileBuilder.tmpFileBuilder(lines);
+        File expected = File.createTempFile("partitioned_expected", ".csv");
+        File actual = File.createTempFile("partitioned_actual", ".csv");
+        Comparator<CSVRecord> total = DEFAULT_CMP.thenComparing(r -> Long.parseLong(r.get(1)));
+        SortKeyExtractor totalKey = SortKeys.of(SortKeys.utf8Column(0), SortKeys.longColumn(1));
+        try {
+            SortConfig plain = SortConfig.builder().headerLineNum(1)
+                    .csvFormat(CSVFormat.DEFAULT.withHeader("key", "value")).build();
+            SortConfig partitioned = plain.toBuilder().partitions(8).parallelism(4)
+                    .spillCodec(SpillCodecs.snappy()).memoryBudget(1 << 20).build();
+            long expectedLines = ExternalSort.sortCsv(input, expected, total, plain);
+            assertEquals(expectedLines, ExternalSort.sortCsv(input, actual, total, partitioned));
+            assertEquals(new String(Files.readAllBytes(expected.toPath())),
+                    new String(Files.readAllBytes(actual.toPath())));
+
+            ExternalSort.sortCsv(input, actual, totalKey, partitioned);
+            assertEquals(new String(Files.readAllBytes(expected.toPath())),
+                    new String(Files.readAllBytes(actual.toPath())));
+
+            // the record kept among duplicates is not specified, only the keys are compared
+            ExternalSort.sortCsv(input, expected, DEFAULT_CMP, plain.toBuilder().distinct(true).build());
+            ExternalSort.sortCsv(input, actual, DEFAULT_CMP, partitioned.toBuilder().distinct(true).build());
+            assertEquals(firstColumn(expected), firstColumn(actual));
+            ExternalSort.sortCsv(input, actual, SortKeys.utf8Column(0), partitioned.toBuilder().distinct(true).build());
+            assertEquals(firstColumn(expected), firstColumn(actual));
+        } finally {
+            expected.delete();
+            actual.delete();
+        }
+    }
+
+    private static List<String> firstColumn(File f) throws IOException {
+        List<String> keys = new ArrayList<>();
+        for (String line : Files.readAllLines(f.toPath())) {
+            keys.add(line.split(",")[0]);
+        }
+        return keys;
+    }
+
+    @Test
+    public void testSingleRunShortcuts() throws IOException {
+        // a small input is sorted in memory, it never needs the temporary directory
+        File missing = new File(Files.createTempDirectory("fast").toFile(), "missing");
+        File small = TmpFileBuilder.tmpFileBuilder("c,3\r\nb,2\r\na,1\r\nb,4\r\n");
+        File output = File.createTempFile("fast", ".csv");
+        SortConfig inMemory = SortConfig.builder().tmpDirectory(missing).build();
+        assertEquals(4, ExternalSort.sortCsv(small, output, DEFAULT_CMP, inMemory));
+        assertEquals("a,1\r\nb,2\r\nb,4\r\nc,3\r\n", new String(Files.readAllBytes(output.toPath())));
+        assertEquals(3, ExternalSort.sortCsv(small, output, SortKeys.utf8Column(0),
+                inMemory.toBuilder().distinct(true).build()));
+        assertEquals("a,1\r\nb,2\r\nc,3\r\n", new String(Files.readAllBytes(output.toPath())));
+
+        // a sorted input larger than the memory gives a single CSV run, renamed or appended to the output
+        String resourcesPath = getClass().getResource("/test_files/").getPath();
+        File sorted = File.createTempFile("fast_sorted", ".csv");
+        ExternalSort.sortCsv(new File(resourcesPath + "external_mission.csv"), sorted, DEFAULT_CMP);
+        SortConfig singleRun = SortConfig.builder().runFormat(RunFormat.CSV)
+                .runGeneration(RunGeneration.REPLACEMENT_SELECTION).memoryBudget(8 << 20).build();
+        assertEquals(500000, ExternalSort.sortCsv(sorted, output, DEFAULT_CMP, singleRun));
+        assertArrayEquals(Files.readAllBytes(sorted.toPath()), Files.readAllBytes(output.toPath()));
+        assertEquals(500000, ExternalSort.sortCsv(sorted, output, DEFAULT_CMP,
+                singleRun.toBuilder().append(true).build()));
+        assertEquals(2 * sorted.length(), output.length());
+        // the records are counted while the run is written, it is not read back
+        List<SortStats> published = new ArrayList<>();
+        assertEquals(500000, ExternalSort.sortCsv(sorted, output, DEFAULT_CMP,
+                singleRun.toBuilder().listener(published::add).build()));
+        assertEquals(1, published.get(0).getRunCount());
+        assertEquals(0, published.get(0).getBytesReread());
+        assertTrue(sorted.delete());
+        assertTrue(output.delete());
+    }
+
+    @Test
+    public void testStreamingSort() throws IOException {
+        List<String> keys = new ArrayList<>();
+        List<CSVRecord> records = new ArrayList<>();
+        Random random = new Random(17);
+        for (int i = 0; i < 40000; i++) {
+            String key = RandomString.random(6) + random.nextInt(100);
+            keys.add(key);
+            records.add(CsvRecords.of(new String[]{key, String.valueOf(i)}, i + 1));
+        }
+        Collections.sort(keys);
+
+        // larger than the memory: runs merged lazily, deleted and released on close
+        File tmpDirectory = Files.createTempDirectory("streaming").toFile();
+        MemoryBudget budget = new MemoryBudget(1 << 20);
+        SortConfig config = SortConfig.builder().tmpDirectory(tmpDirectory).memoryBudget(budget).parallelism(2)
+                .build();
+        List<String> sorted = new ArrayList<>();
+        try (Stream<CSVRecord> stream = ExternalSort.sort(records.stream(), DEFAULT_CMP, config)) {
+            assertTrue(tmpDirectory.list().length > 1);
+            assertEquals(budget.getCapacity() - budget.getCapacity() / 4, budget.getAvailable());
+            stream.forEach(r -> sorted.add(r.get(0)));
+        }
+        assertEquals(keys, sorted);
+        assertEquals(0, tmpDirectory.list().length);
+        assertEquals(budget.getCapacity(), budget.getAvailable());
+        assertTrue(tmpDirectory.delete());
+
+        // small text sorted in memory, header skipped and duplicates dropped
+        SortConfig distinct = SortConfig.builder().headerLineNum(1).distinct(true).build();
+        List<String> lines = new ArrayList<>();
+        try (CloseableIterator<CSVRecord> it = ExternalSort.sort(
+                new StringReader("key,value\nb,1\na,2\nb,3\n"), DEFAULT_CMP, distinct)) {
+            it.forEachRemaining(r -> lines.add(r.get(0) + r.get(1)));
+        }
+        assertEquals(Arrays.asList("a2", "b1"), lines);
+    }
+
+    @Test(timeout = 20000)
+    public void testNestedStreamingSorts() throws IOException {
+        List<CSVRecord> records = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 40000; i++) {
+            records.add(CsvRecords.of(new String[]{RandomString.random(6), String.valueOf(i)}, i + 1));
+            values.add(String.valueOf(i));
+        }
+        Collections.sort(values);
+        // the second stage of a pipeline sorts the lazy output of the first one, both are open on this thread
+        MemoryBudget budget = new MemoryBudget(4 << 20);
+        SortConfig config = SortConfig.builder().memoryBudget(budget).build();
+        List<String> sorted = new ArrayList<>();
+        try (CloseableIterator<CSVRecord> byKey = ExternalSort.sort(records.iterator(), DEFAULT_CMP, config);
+             CloseableIterator<CSVRecord> byValue = ExternalSort.sort(byKey, Comparator.comparing(r -> r.get(1)),
+                     config)) {
+            byValue.forEachRemaining(r -> sorted.add(r.get(1)));
+        }
+        assertEquals(values, sorted);
+        assertEquals(budget.getCapacity(), budget.getAvailable());
+    }
+
+    @Test
+    public void testLimitedSort() throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("key,value");
+        Random random = new Random(19);
+        for (int i = 0; i < 50000; i++) {
+            lines.add("k" + random.nextInt(3000) + "," + i);
+        }
+        File input = TmpFileBuilder.tmpFileBuilder(lines);
+        File full = File.createTempFile("limited_full", ".csv");
+        File actual = File.createTempFile("limited_actual", ".csv");
+        Comparator<CSVRecord> total = DEFAULT_CMP.thenComparing(r -> Long.parseLong(r.get(1)));
+        try {
+            SortConfig plain = SortConfig.builder().headerLineNum(1).build();
+            ExternalSort.sortCsv(input, full, total, plain);
+            List<String> sorted = Files.readAllLines(full.toPath());
+
+            // the best records fit in memory, no run is written
+            File missing = new File(Files.createTempDirectory("limited").toFile(), "missing");
+            assertEquals(100, ExternalSort.sortCsv(input, actual, total,
+                    plain.toBuilder().limit(100).tmpDirectory(missing).build()));
+            assertEquals(sorted.subList(0, 100), Files.readAllLines(actual.toPath()));
+
+            // too many for the memory: runs cut to the limit then merged up to the limit
+            SortConfig small = plain.toBuilder().limit(20000).memoryBudget(1 << 20).build();
+            assertEquals(20000, ExternalSort.sortCsv(input, actual, total, small));
+            assertEquals(sorted.subList(0, 20000), Files.readAllLines(actual.toPath()));
+            assertEquals(20000, ExternalSort.sortCsv(input, actual, total,
+                    small.toBuilder().runGeneration(RunGeneration.REPLACEMENT_SELECTION).build()));
+            assertEquals(sorted.subList(0, 20000), Files.readAllLines(actual.toPath()));
+
+            // a limit larger than the input writes all of it
+            assertEquals(50000, ExternalSort.sortCsv(input, actual,
+                    SortKeys.of(SortKeys.utf8Column(0), SortKeys.longColumn(1)),
+                    plain.toBuilder().limit(100000).build()));
+            assertEquals(sorted, Files.readAllLines(actual.toPath()));
+
+            // distinct keys in and out of memory
+            ExternalSort.sortCsv(input, full, DEFAULT_CMP, plain.toBuilder().distinct(true).build());
+            List<String> keys = firstColumn(full);
+            ExternalSort.sortCsv(input, actual, DEFAULT_CMP, plain.toBuilder().distinct(true).limit(50).build());
+            assertEquals(keys.subList(0, 50), firstColumn(actual));
+            ExternalSort.sortCsv(input, actual, DEFAULT_CMP, small.toBuilder().distinct(true).limit(2000)
+                    .memoryBudget(256 << 10).build());
+            assertEquals(keys.subList(0, 2000), firstColumn(actual));
+        } finally {
+            full.delete();
+            actual.delete();
+        }
+    }
+
+    @Test
+    public void testLimitOnlyAppliesToOneFile() throws IOException {
+        // the sorts that do not stop at a limit write all of their records
+        SortConfig limited = SortConfig.builder().limit(3).memoryBudget(1 << 20).build();
+        List<File> shards = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            List<String> shard = new ArrayList<>();
+            for (int k = 0; k < 10; k++) {
+                shard.add("k" + (char) ('a' + 2 * k + i) + "," + i);
+                keys.add("k" + (char) ('a' + 2 * k + i));
+            }
+            shards.add(TmpFileBuilder.tmpFileBuilder(shard));
+        }
+        Collections.sort(keys);
+        File output = File.createTempFile("unlimited", ".csv");
+        assertEquals(20, ExternalSort.sortCsv(shards, output, DEFAULT_CMP, limited));
+        assertEquals(keys, firstColumn(output));
+        assertEquals(20, ExternalSort.sortCsv(shards, output, SortKeys.utf8Column(0), limited));
+        assertEquals(keys, firstColumn(output));
+
+        assertEquals(20, ExternalSort.joinCsv(shards.get(0), SortKeys.utf8Column(0), shards.get(1),
+                SortKeys.utf8Column(0), output, JoinType.FULL_OUTER, limited));
+        List<String> joined = new ArrayList<>();
+        try (CSVParser parser = CSVFormat.DEFAULT.parse(new FileReader(output))) {
+            parser.forEach(r -> joined.add(r.get(0).isEmpty() ? r.get(2) : r.get(0)));
+        }
+        assertEquals(keys, joined);
+
+        List<CSVRecord> records = new ArrayList<>();
+        List<String> sorted = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            String key = RandomString.random(6);
+            records.add(CsvRecords.of(new String[]{key, String.valueOf(i)}, i + 1));
+            sorted.add(key);
+        }
+        Collections.sort(sorted);
+        for (SortConfig config : Arrays.asList(limited.toBuilder().memoryBudget(64 << 20).build(), limited)) {
+            List<String> streamed = new ArrayList<>();
+            try (CloseableIterator<CSVRecord> it = ExternalSort.sort(records.iterator(), DEFAULT_CMP, config)) {
+                it.forEachRemaining(r -> streamed.add(r.get(0)));
+            }
+            assertEquals(sorted, streamed);
+        }
+        assertTrue(output.delete());
+        for (File shard : shards) {
+            assertTrue(shard.delete());
+        }
+    }
+
+    @Test
+    public void testCombiner() throws IOException {
+        String resourcesPath = getClass().getResource("/test_files/").getPath();
+        File input = new File(resourcesPath + "external_mission.csv");
+        Map<String, Long> counts = new TreeMap<>();
+        for (String line : Files.readAllLines(input.toPath())) {
+            counts.merge(line, 1L, Long::sum);
+        }
+        List<String> expected = new ArrayList<>();
+        counts.forEach((key, count) -> expected.add(key + "," + count));
+        File output = File.createTempFile("combined_external_mission", ".csv");
+        SortConfig count = SortConfig.builder().combiner(RecordCombiners.count()).memoryBudget(8 << 20).build();
+        List<SortConfig> configs = Arrays.asList(count,
+                count.toBuilder().runGeneration(RunGeneration.BYTE_ARENA).parallelism(2).build(),
+                count.toBuilder().runGeneration(RunGeneration.REPLACEMENT_SELECTION).runFormat(RunFormat.CSV)
+                        .build(),
+                count.toBuilder().mergeEngine(MergeEngine.PRIORITY_QUEUE).partitions(4).build(),
+                count.toBuilder().memoryBudget(64 << 20).build());
+        try {
+            for (SortConfig config : configs) {
+                assertEquals(10, ExternalSort.sortCsv(input, output, DEFAULT_CMP, config));
+                assertEquals(expected, Files.readAllLines(output.toPath()));
+            }
+            assertEquals(10, ExternalSort.sortCsv(input, output, SortKeys.utf8Column(0), count));
+            assertEquals(expected, Files.readAllLines(output.toPath()));
+            assertEquals(3, ExternalSort.sortCsv(input, output, DEFAULT_CMP, count.toBuilder().limit(3).build()));
+            assertEquals(expected.subList(0, 3), Files.readAllLines(output.toPath()));
+        } finally {
+            output.delete();
+        }
+
+        // partial sums combined again by the lazy merge of the runs
+        List<CSVRecord> records = new ArrayList<>();
+        long[] sums = new long[50];
+        Random random = new Random(23);
+        for (int i = 0; i < 40000; i++) {
+            int key = random.nextInt(sums.length);
+            sums[key] += i;
+            records.add(CsvRecords.of(new String[]{String.format("k%02d", key), String.valueOf(i)}, i + 1));
+        }
+        SortConfig sum = SortConfig.builder().combiner(RecordCombiners.sum(1)).memoryBudget(1 << 20).build();
+        List<String> actual = new ArrayList<>();
+        try (CloseableIterator<CSVRecord> it = ExternalSort.sort(records.iterator(), DEFAULT_CMP, sum)) {
+            it.forEachRemaining(r -> actual.add(r.get(0) + "=" + r.get(1)));
+        }
+        List<String> expectedSums = new ArrayList<>();
+        for (int key = 0; key < sums.length; key++) {
+            if (sums[key] > 0) {
+                expectedSums.add(String.format("k%02d", key) + "=" + sums[key]);
+            }
+        }
+        assertEquals(expectedSums, actual);
+    }
+
+    @Test
+    public void testStripedSpillDirectories() throws IOException {
+        File[] directories = new File[3];
+        for (int i = 0; i < directories.length; i++) {
+            directories[i] = Files.createTempDirectory("drive" + i).toFile();
+        }
+        String resourcesPath = getClass().getResource("/test_files/").getPath();
+        File input = new File(resourcesPath + "external_mission.csv");
+        File output = File.createTempFile("striped_external_mission", ".csv");
+        SortConfig striped = SortConfig.builder().tmpDirectories(directories).memoryBudget(1 << 20).build();
+        try {
+            // the runs go to each directory in turn
+            List<File> runs = BatchSortedFileProducer.sortCsvInBatch(input, DEFAULT_CMP, striped);
+            assertTrue(runs.size() > 8);
+            for (int i = 0; i < runs.size(); i++) {
+                assertEquals(directories[i % directories.length], runs.get(i).getParentFile());
+            }
+            // the intermediate merges read from several directories and write to another one
+            assertEquals(500000, SortedFilesMerger.mergeSortedCsvFiles(runs, output, DEFAULT_CMP, striped, null));
+            checkFileIsSorted(500000, output);
+            File merged = striped.getSpillDirectories().newFile("merged", null,
+                    Arrays.asList(new File(directories[0], "a"), new File(directories[2], "b")));
+            assertEquals(directories[1], merged.getParentFile());
+            assertTrue(merged.delete());
+
+            assertEquals(500000, ExternalSort.sortCsv(input, output, DEFAULT_CMP,
+                    striped.toBuilder().spillPlacement(SpillPlacement.MOST_FREE_SPACE).parallelism(2).build()));
+            checkFileIsSorted(500000, output);
+            for (File directory : directories) {
+                assertEquals(0, directory.list().length);
+                assertTrue(directory.delete());
+            }
+        } finally {
+            output.delete();
+        }
+    }
+
+    @Test
+    public void testSortStats() throws IOException {
+        String resourcesPath = getClass().getResource("/test_files/").getPath();
+        File input = new File(resourcesPath + "external_mission.csv");
+        File output = File.createTempFile("stats_external_mission", ".csv");
+        List<SortStats> published = new ArrayList<>();
+        SortConfig config = SortConfig.builder().memoryBudget(1 << 20).listener(published::add).build();
+        try {
+            assertEquals(500000, ExternalSort.sortCsv(input, output, DEFAULT_CMP, config));
+            long outputBytes = output.length();
+            checkFileIsSorted(500000, output);
+            assertEquals(1, published.size());
+            SortStats stats = published.get(0);
+            assertEquals(500000, stats.getRowsRead());
+            assertEquals(500000, stats.getRowsWritten());
+            // the records read by the attempt to sort in memory are the first run, the input is read once
+            assertEquals(input.length(), stats.getBytesRead());
+            assertEquals(outputBytes, stats.getBytesWritten());
+            assertTrue(stats.getRunCount() > 8);
+            long runBytes = 0;
+            for (long size : stats.getRunSizes()) {
+                runBytes += size;
+            }
+            // the runs, then the intermediate merges
+            assertTrue(stats.getBytesSpilled() > runBytes);
+            assertEquals(stats.getBytesSpilled(), stats.getBytesReread());
+            assertTrue(stats.getMergePasses() > 1);
+            assertTrue(stats.getFanIn() > 1);
+            assertTrue(stats.getComparisons() > 500000);
+            assertTrue(stats.getPeakBufferedBytes() > 0 && stats.getPeakBufferedBytes() < 2 << 20);
+            for (SortStats.Phase phase : Arrays.asList(SortStats.Phase.RUN_GENERATION,
+                    SortStats.Phase.INTERMEDIATE_MERGES, SortStats.Phase.OUTPUT)) {
+                assertTrue(stats.getPhaseNanos(phase) > 0);
+            }
+            assertEquals(0, stats.getPhaseNanos(SortStats.Phase.PARTITIONING));
+            assertTrue(stats.getTotalNanos() >= stats.getPhaseNanos(SortStats.Phase.RUN_GENERATION));
+
+            // the same by binary keys
+            assertEquals(500000, ExternalSort.sortCsv(input, output, SortKeys.utf8Column(0), config));
+            checkFileIsSorted(500000, output);
+            stats = published.get(1);
+            assertEquals(500000, stats.getRowsRead());
+            assertEquals(input.length(), stats.getBytesRead());
+            assertTrue(stats.getRunCount() > 1);
+
+            // the records held by a replacement selection or a limited sort are reported while they are held
+            for (SortConfig held : Arrays.asList(config.toBuilder().runGeneration(RunGeneration.REPLACEMENT_SELECTION)
+                    .build(), config.toBuilder().limit(1000000).build())) {
+                assertEquals(500000, ExternalSort.sortCsv(input, output, DEFAULT_CMP, held));
+                stats = published.remove(published.size() - 1);
+                assertTrue(stats.getPeakBufferedBytes() > 0 && stats.getPeakBufferedBytes() < 2 << 20);
+            }
+
+            // sorted in memory, no runs
+            File small = new File(resourcesPath + "test.csv");
+            long lines = ExternalSort.sortCsv(small, output, DEFAULT_CMP, config.toBuilder().memoryBudget(8 << 20)
+                    .build());
+            stats = published.get(2);
+            assertEquals(lines, stats.getRowsWritten());
+            assertEquals(small.length(), stats.getBytesRead());
+            assertEquals(output.length(), stats.getBytesWritten());
+            assertEquals(0, stats.getRunCount());
+            assertEquals(0, stats.getMergePasses());
+            assertEquals(0, stats.getBytesSpilled());
+            assertTrue(stats.getPeakBufferedBytes() > 0);
+
+            // a sort without a listener runs with the config as is, nothing is recorded
+            SortConfig quiet = config.toBuilder().listener(null).build();
+            assertSame(quiet, quiet.newSort());
+        } finally {
+            output.delete();
+        }
+    }
+
+    @Test
+    public void testResumableSort() throws IOException {
+        String resourcesPath = getClass().getResource("/test_files/").getPath();
+        File input = new File(resourcesPath + "external_mission.csv");
+        File tmpDirectory = Files.createTempDirectory("jobs").toFile();
+        File jobDirectory = new File(tmpDirectory, "externalsort-mission");
+        List<SortStats> published = new ArrayList<>();
+        SortConfig config = SortConfig.builder().tmpDirectory(tmpDirectory).memoryBudget(1 << 20).jobId("mission")
+                .listener(published::add).build();
+        // the output cannot be opened: the sort fails once the intermediate merges are written
+        File unwritable = Files.createTempDirectory("unwritable").toFile();
+        try {
+            ExternalSort.sortCsv(input, unwritable, DEFAULT_CMP, config);
+            fail("the output is a directory");
+        } catch (IOException expected) {
+            // the job is kept
+        } finally {
+            assertTrue(unwritable.delete());
+        }
+        List<String> manifest = Files.readAllLines(new File(jobDirectory, "manifest").toPath());
+        assertTrue(manifest.get(0).startsWith("sort\t" + input.getAbsolutePath()));
+        assertTrue(manifest.stream().anyMatch(line -> line.startsWith("runs\t")));
+        assertTrue(manifest.stream().anyMatch(line -> line.startsWith("merge\t")));
+        assertTrue(published.isEmpty());
+
+        File output = File.createTempFile("resumed_external_mission", ".csv");
+        assertEquals(500000, ExternalSort.sortCsv(input, output, DEFAULT_CMP, config));
+        checkFileIsSorted(500000, output);
+        // the run generation and the intermediate merges already written are skipped
+        assertEquals(0, published.get(0).getRowsRead());
+        assertEquals(0, published.get(0).getRunCount());
+        assertEquals(0, published.get(0).getBytesSpilled());
+        assertFalse(jobDirectory.exists());
+
+        // the partial results of another combiner are not merged
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            lines.add(RandomString.random(4) + ",1");
+        }
+        File counted = TmpFileBuilder.tmpFileBuilder(lines);
+        unwritable = Files.createTempDirectory("unwritable").toFile();
+        try {
+            ExternalSort.sortCsv(counted, unwritable, DEFAULT_CMP,
+                    config.toBuilder().combiner(RecordCombiners.count()).build());
+            fail("the output is a directory");
+        } catch (IOException expected) {
+            // the job is kept
+        } finally {
+            assertTrue(unwritable.delete());
+        }
+        assertTrue(Files.readAllLines(new File(jobDirectory, "manifest").toPath()).get(0).contains("|count|"));
+        published.clear();
+        ExternalSort.sortCsv(counted, output, DEFAULT_CMP, config.toBuilder().combiner(RecordCombiners.sum(1)).build());
+        assertEquals(lines.size(), published.get(0).getRowsRead());
+        long total = 0;
+        for (String line : Files.readAllLines(output.toPath())) {
+            assertEquals(2, line.split(",").length);
+            total += Long.parseLong(line.split(",")[1]);
+        }
+        assertEquals(lines.size(), total);
+
+        // nor are runs written with another CSV format, the record separator is escaped in the manifest
+        SortConfig csvRuns = config.toBuilder().runFormat(RunFormat.CSV).build();
+        unwritable = Files.createTempDirectory("unwritable").toFile();
+        try {
+            ExternalSort.sortCsv(counted, unwritable, DEFAULT_CMP,
+                    csvRuns.toBuilder().csvFormat(CSVFormat.DEFAULT.withDelimiter(';')).build());
+            fail("the output is a directory");
+        } catch (IOException expected) {
+            // the job is kept
+        } finally {
+            assertTrue(unwritable.delete());
+        }
+        manifest = Files.readAllLines(new File(jobDirectory, "manifest").toPath());
+        assertTrue(manifest.get(0).contains("Delimiter=<;>") && manifest.get(0).contains("\\r\\n"));
+        assertTrue(manifest.get(1).startsWith("run\t"));
+        published.clear();
+        assertEquals(lines.size(), ExternalSort.sortCsv(counted, output, DEFAULT_CMP, csvRuns));
+        assertEquals(lines.size(), published.get(0).getRowsRead());
+        assertTrue(output.delete());
+        assertTrue(counted.delete());
+        assertFalse(jobDirectory.exists());
+        assertTrue(tmpDirectory.delete());
+    }
+
+    @Test
+    public void testIncrementalSort() throws IOException {
+        List<String> history = new ArrayList<>();
+        List<String> daily = new ArrayList<>();
+        List<String> expect = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            String line = RandomString.random(2) + "," + (i < 15000 ? "old" : "new") + i;
+            (i < 15000 ? history : daily).add(line);
+            expect.add(line);
+        }
+        File sorted = File.createTempFile("history", ".csv");
+        ExternalSort.sortCsv(TmpFileBuilder.tmpFileBuilder(history), sorted, DEFAULT_CMP);
+        File input = TmpFileBuilder.tmpFileBuilder(daily);
+        SortConfig config = SortConfig.builder().memoryBudget(1 << 20).sortMemory(1 << 18).verifySorted(true).build();
+        File output = File.createTempFile("incremental", ".csv");
+        assertEquals(20000, ExternalSort.sortCsvIncremental(sorted, input, output, DEFAULT_CMP, config));
+        // a stable sort of both: the records of the sorted file come first among the same keys
+        expect.sort(Comparator.comparing(l -> l.split(",")[0]));
+        assertEquals(expect.stream().map(l -> l.split(",")[0]).collect(Collectors.toList()), firstColumn(output));
+        List<String> actual = Files.readAllLines(output.toPath());
+        for (int i = 1; i < actual.size(); i++) {
+            String[] previous = actual.get(i - 1).split(",");
+            String[] current = actual.get(i).split(",");
+            assertFalse(previous[0].equals(current[0]) && previous[1].startsWith("new")
+                    && current[1].startsWith("old"));
+        }
+
+        // the output may be the sorted file
+        assertEquals(20000 + daily.size(), ExternalSort.sortCsvIncremental(output, input, output, DEFAULT_CMP,
+                config));
+        List<String> keys = firstColumn(output);
+        assertEquals(20000 + daily.size(), keys.size());
+        assertEquals(keys.stream().sorted().collect(Collectors.toList()), keys);
+
+        // a limit does not apply, it would drop records of the sorted file replaced in place
+        assertEquals(keys.size() + daily.size(), ExternalSort.sortCsvIncremental(output, input, output, DEFAULT_CMP,
+                config.toBuilder().limit(3).build()));
+        assertEquals(keys.size() + daily.size(), firstColumn(output).size());
+        assertTrue(output.delete());
+
+        File unsorted = TmpFileBuilder.tmpFileBuilder(Arrays.asList("b,1", "a,2"));
+        try {
+            ExternalSort.sortCsvIncremental(unsorted, input, File.createTempFile("unsorted", ".csv"), DEFAULT_CMP,
+                    config);
+            fail("the sorted file is not sorted");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("is not sorted"));
+        }
+        assertTrue(sorted.delete());
+    }
+
+    @Test
+    public void testMultiInputSort() throws IOException {
+        File shards = Files.createTempDirectory("shards").toFile();
+        List<String> expect = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            List<String> shard = new ArrayList<>();
+            shard.add("key,shard");
+            for (int k = 0; k < 3000 * i; k++) {
+                String key = RandomString.random(1 + k % 4);
+                shard.add(key + "," + i);
+                expect.add(key);
+            }
+            Files.write(new File(shards, "part-" + i + ".csv").toPath(), shard);
+        }
+        assertTrue(new File(shards, "_SUCCESS").createNewFile());
+        List<File> inputs = ExternalSort.listFiles(shards, "part-*.csv");
+        assertEquals(7, inputs.size());
+        Collections.sort(expect);
+
+        // each shard has its header line, the empty shard included
+        SortConfig config = SortConfig.builder().headerLineNum(1).parallelism(3).memoryBudget(1 << 20).build();
+        File output = File.createTempFile("multi_input", ".csv");
+        assertEquals(expect.size(), ExternalSort.sortCsv(inputs, output, DEFAULT_CMP, config));
+        assertEquals(expect, firstColumn(output));
+
+        File keyed = File.createTempFile("multi_input_keyed", ".csv");
+        assertEquals(expect.size(), ExternalSort.sortCsv(inputs, keyed, SortKeys.utf8Column(0), config));
+        assertEquals(expect, firstColumn(keyed));
+        assertTrue(output.delete());
+        assertTrue(keyed.delete());
+        for (File f : shards.listFiles()) {
+            assertTrue(f.delete());
+        }
+        assertTrue(shards.delete());
+    }
+
+    @Test
+    public void testOutputInParts() throws IOException {
+        List<String> content = new ArrayList<>();
+        for (int i = 0; i < 30000; i++) {
+            content.add(RandomString.random(1 + i % 3) + "," + i);
+        }
+        File input = TmpFileBuilder.tmpFileBuilder(content);
+        File output = new File(Files.createTempDirectory("parts").toFile(), "sorted.csv");
+        SortConfig config = SortConfig.builder().memoryBudget(1 << 20).partSize(64 << 10).indexInterval(100)
+                .csvFormat(CSVFormat.DEFAULT.withHeader("key", "id")).build();
+        assertEquals(30000, ExternalSort.sortCsv(input, output, DEFAULT_CMP, config));
+        assertFalse(output.exists());
+
+        PartIndex index = PartIndex.open(output, DEFAULT_CMP, config);
+        assertTrue(index.getPartCount() > 1);
+        List<String> expect = content.stream().map(l -> l.split(",")[0]).sorted().collect(Collectors.toList());
+        List<String> keys = new ArrayList<>();
+        try (CloseableIterator<CSVRecord> all = index.range(null, null)) {
+            all.forEachRemaining(r -> keys.add(r.get(0)));
+        }
+        assertEquals(expect, keys);
+
+        for (String key : Arrays.asList(expect.get(0), expect.get(12345), expect.get(29999), "zzzz~")) {
+            CSVRecord query = CsvRecords.of(new String[]{key}, 1);
+            long count = 0;
+            try (CloseableIterator<CSVRecord> matches = index.get(query)) {
+                while (matches.hasNext()) {
+                    assertEquals(key, matches.next().get(0));
+                    count++;
+                }
+            }
+            assertEquals(expect.stream().filter(key::equals).count(), count);
+        }
+        String from = expect.get(1000);
+        String to = expect.get(20000);
+        try (CloseableIterator<CSVRecord> range = index.range(CsvRecords.of(new String[]{from}, 1),
+                CsvRecords.of(new String[]{to}, 1))) {
+            assertEquals(expect.stream().filter(k -> k.compareTo(from) >= 0 && k.compareTo(to) <= 0).count(),
+                    range.stream().count());
+        }
+
+        // each part is a CSV file with its header, a sort in memory is cut in parts as well
+        File part = new File(output.getPath() + ".part-00001");
+        assertEquals("key,id", Files.readAllLines(part.toPath()).get(0));
+        assertEquals(30000, ExternalSort.sortCsv(input, output, DEFAULT_CMP, config.toBuilder()
+                .memoryBudget(64 << 20).build()));
+        try (CloseableIterator<CSVRecord> all = PartIndex.open(output, DEFAULT_CMP, config).range(null, null)) {
+            assertEquals(30000, all.stream().count());
+        }
+        for (File f : output.getParentFile().listFiles()) {
+            assertTrue(f.delete());
+        }
+        assertTrue(output.getParentFile().delete());
+    }
+
+    @Test
+    public void testSortMergeJoin() throws IOException {
+        Random random = new Random(25);
+        List<String> leftLines = new ArrayList<>();
+        List<String> rightLines = new ArrayList<>();
+        Map<String, Integer> leftCounts = new TreeMap<>();
+        Map<String, Integer> rightCounts = new TreeMap<>();
+        for (int i = 0; i < 6000; i++) {
+            // the hot key does not fit in the memory of its group and goes to a temporary file
+            String key = i < 5000 ? "hot" : "k" + random.nextInt(300);
+            leftLines.add(key + ",l" + i);
+            leftCounts.merge(key, 1, Integer::sum);
+        }
+        for (int i = 0; i < 4000; i++) {
+            String key = i < 2 ? "hot" : "k" + (100 + random.nextInt(300));
+            rightLines.add(key + ",r" + i + ",x");
+            rightCounts.merge(key, 1, Integer::sum);
+        }
+        File left = TmpFileBuilder.tmpFileBuilder(leftLines);
+        File right = TmpFileBuilder.tmpFileBuilder(rightLines);
+        long inner = 0;
+        long leftOnly = 0;
+        long rightOnly = 0;
+        for (Map.Entry<String, Integer> e : leftCounts.entrySet()) {
+            int r = rightCounts.getOrDefault(e.getKey(), 0);
+            inner += (long) e.getValue() * r;
+            leftOnly += r == 0 ? e.getValue() : 0;
+        }
+        for (Map.Entry<String, Integer> e : rightCounts.entrySet()) {
+            rightOnly += leftCounts.containsKey(e.getKey()) ? 0 : e.getValue();
+        }
+
+        SortConfig config = SortConfig.builder().memoryBudget(1 << 20).build();
+        File output = File.createTempFile("join", ".csv");
+        assertEquals(inner, ExternalSort.joinCsv(left, SortKeys.utf8Column(0), right, SortKeys.utf8Column(0), output,
+                JoinType.INNER, config));
+        List<String> keys = firstColumn(output);
+        assertEquals(keys.stream().sorted().collect(Collectors.toList()), keys);
+        try (CSVParser parser = CSVFormat.DEFAULT.parse(new FileReader(output))) {
+            for (CSVRecord record : parser) {
+                assertEquals(5, record.size());
+                assertEquals(record.get(0), record.get(2));
+            }
+        }
+        assertEquals(inner + leftOnly, ExternalSort.joinCsv(left, SortKeys.utf8Column(0), right,
+                SortKeys.utf8Column(0), output, JoinType.LEFT, config));
+        assertEquals(inner + leftOnly + rightOnly, ExternalSort.joinCsv(left, SortKeys.utf8Column(0), right,
+                SortKeys.utf8Column(0), output, JoinType.FULL_OUTER, config));
+        try (CSVParser parser = CSVFormat.DEFAULT.parse(new FileReader(output))) {
+            for (CSVRecord record : parser) {
+                assertEquals(5, record.size());
+                assertTrue(!record.get(0).isEmpty() || rightCounts.containsKey(record.get(2)));
+            }
+        }
+
+        // one row per key with the records of each side, a spilled side may be iterated again
+        long groups = ExternalSort.coGroupCsv(left, SortKeys.utf8Column(0), right, SortKeys.utf8Column(0), output,
+                (l, r, out) -> {
+                    long lc = 0;
+                    String key = null;
+                    for (CSVRecord record : l) {
+                        key = record.get(0);
+                        lc++;
+                    }
+                    long again = 0;
+                    for (CSVRecord record : l) {
+                        again++;
+                    }
+                    assertEquals(lc, again);
+                    long rc = 0;
+                    for (CSVRecord record : r) {
+                        key = record.get(0);
+                        rc++;
+                    }
+                    out.push(CsvRecords.of(new String[]{key, String.valueOf(lc), String.valueOf(rc)}, 0));
+                }, config);
+        Map<String, Integer> all = new TreeMap<>(leftCounts);
+        rightCounts.keySet().forEach(k -> all.putIfAbsent(k, 0));
+        assertEquals(all.size(), groups);
+        List<String> expect = all.keySet().stream().map(k -> k + "," + leftCounts.getOrDefault(k, 0) + ","
+                + rightCounts.getOrDefault(k, 0)).collect(Collectors.toList());
+        assertEquals(expect, Files.readAllLines(output.toPath()));
+
+        // a spilled group is written and read back with the charset of the config
+        List<String> accented = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            accented.add("hot,\u00e9t\u00e9" + i);
+        }
+        File leftAccented = File.createTempFile("join_accented", ".csv");
+        Files.write(leftAccented.toPath(), accented, Charset.forName("UTF-8"));
+        List<String> values = new ArrayList<>();
+        ExternalSort.coGroupCsv(leftAccented, SortKeys.utf8Column(0), right, SortKeys.utf8Column(0), output,
+                (l, r, out) -> {
+                    for (CSVRecord record : l) {
+                        values.add(record.get(1));
+                    }
+                }, config.toBuilder().charset(Charset.forName("UTF-8")).build());
+        assertEquals(5000, values.size());
+        assertTrue(values.stream().allMatch(value -> value.startsWith("\u00e9t\u00e9")));
+        assertTrue(leftAccented.delete());
+        assertTrue(output.delete());
+        assertTrue(left.delete());
+        assertTrue(right.delete());
+    }
+
+    @Test
+    public void testSortByKey() throws IOException {
+        String resourcesPath = getClass().getResource("/test_files/").getPath();
+        File input = new File(resourcesPath + "external_mission.csv");
+        File output = File.createTempFile("keyed_external_mission", ".csv");
+        long lines = ExternalSort.sortCsv(input, output, SortKeys.utf8Column(0),
+                SortConfig.builder().parallelism(2).memoryBudget(8 << 20).build());
+        assertEquals(500000, lines);
+        checkFileIsSorted(500000, output);
+
+        File distinct = File.createTempFile("keyed_external_mission_distinct", ".csv");
+        ExternalSort.sortCsv(input, distinct, SortKeys.utf8Column(0),
+                SortConfig.builder().distinct(true).memoryBudget(8 << 20).build());
+        checkFileIsSorted(10, distinct);
+    }
+
+    @Test
+    public void testCompositeKey() throws IOException {
+        List<String> content = new ArrayList<>();
+        List<String> expect = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String line = RandomString.random(1 + i % 3) + "," + (int) ((Math.random() - 0.5) * 2000);
+            content.add(line);
+            expect.add(line);
+        }
+        File input = TmpFileBuilder.tmpFileBuilder(content);
+        File output = File.createTempFile("composite", ".csv");
+        output.deleteOnExit();
+        ExternalSort.sortCsv(input, output, SortKeys.of(SortKeys.utf8Column(0), SortKeys.longColumn(1)));
+
+        expect.sort(Comparator.<String, String>comparing(l -> l.split(",")[0])
+                .thenComparingLong(l -> Long.parseLong(l.split(",")[1])));
+        List<String> actual = Files.readAllLines(output.toPath());
+        assertEquals(expect, actual);
+    }
+
+    @Test
+    public void testMergeEnginesAgree() throws IOException {
+        List<List<String>> runs = new ArrayList<>();
+        for (int j = 0; j < 37; j++) {
+            List<String> run = new ArrayList<>();
+            for (int k = 0; k < j % 5 * 7; k++) {
+                run.add(RandomString.random(1 + (int) (Math.random() * 3)));
+            }
+            Collections.sort(run);
+            runs.add(run);
+        }
+        String byTree = mergeInMemory(runs, MergeEngine.LOSER_TREE);
+        String byQueue = mergeInMemory(runs, MergeEngine.PRIORITY_QUEUE);
+        assertEquals(byQueue, byTree);
+
+        List<String> expect = new ArrayList<>();
+        runs.forEach(expect::addAll);
+        Collections.sort(expect);
+        StringBuilder sb = new StringBuilder();
+        expect.forEach(e -> sb.append(e).append("\r\n"));
+        assertEquals(sb.toString(), byTree);
+    }
+
+    @Test
+    public void testBinaryRunsWithIntermediateMerge() throws IOException {
+        checkBinaryRunsMerge(300, null);
+    }
+
+    @Test
+    public void testMergePlan() {
+        // the two smallest adjacent runs are merged first so that the next merges are full
+        MergePlanner.MergePlan plan = MergePlanner.plan(new long[]{10, 1, 1, 1, 1, 100}, 3);
+        assertEquals(3, plan.getStepCount());
+        assertArrayEquals(new int[]{1, 2}, plan.getInputs(0));
+        assertArrayEquals(new int[]{6, 3, 4}, plan.getInputs(1));
+        assertArrayEquals(new int[]{0, 7, 5}, plan.getInputs(2));
+        assertEquals(3, plan.getPasses());
+        assertEquals(2 + 4, plan.getRewrittenBytes());
+
+        // small runs apart from each other are not merged together
+        plan = MergePlanner.plan(new long[]{1, 50, 50, 1, 1}, 2);
+        assertArrayEquals(new int[]{3, 4}, plan.getInputs(0));
+        assertArrayEquals(new int[]{0, 1}, plan.getInputs(1));
+        assertArrayEquals(new int[]{2, 5}, plan.getInputs(2));
+        assertArrayEquals(new int[]{6, 7}, plan.getInputs(3));
+        assertEquals(1, MergePlanner.plan(new long[]{5, 3, 8}, 3).getStepCount());
+        assertEquals(1023, MergePlanner.fanIn(1L << 40, 64 * 1024, 1024));
+        assertEquals(15, MergePlanner.fanIn(1024 * 1024, 64 * 1024, 1024));
+    }
+
+    @Test
+    public void testStableMultiPassMerge() throws IOException {
+        List<String> lines = new ArrayList<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 30000; i++) {
+            lines.add("k" + random.nextInt(10) + "," + i);
+        }
+        File input = TmpFileBuilder.tmpFileBuilder(lines);
+        File output = File.createTempFile("stable", ".csv");
+        List<SortStats> stats = new ArrayList<>();
+        SortConfig small = SortConfig.builder().memoryBudget(100 << 10).listener(stats::add).build();
+        try {
+            // the records with the same key keep the input order through the intermediate merges
+            assertEquals(30000, ExternalSort.sortCsv(input, output, DEFAULT_CMP, small));
+            assertTrue(stats.get(0).getMergePasses() > 1);
+            List<String> expect = new ArrayList<>(lines);
+            expect.sort(Comparator.comparing(l -> l.split(",")[0]));
+            assertEquals(expect, Files.readAllLines(output.toPath()));
+
+            Map<String, String> first = new TreeMap<>();
+            Map<String, String> last = new TreeMap<>();
+            for (String line : lines) {
+                first.putIfAbsent(line.split(",")[0], line);
+                last.put(line.split(",")[0], line);
+            }
+            assertEquals(10, ExternalSort.sortCsv(input, output, DEFAULT_CMP, small.toBuilder()
+                    .combiner(RecordCombiners.first()).build()));
+            assertEquals(new ArrayList<>(first.values()), Files.readAllLines(output.toPath()));
+            assertEquals(10, ExternalSort.sortCsv(input, output, DEFAULT_CMP, small.toBuilder()
+                    .combiner(RecordCombiners.last()).build()));
+            assertEquals(new ArrayList<>(last.values()), Files.readAllLines(output.toPath()));
+        } finally {
+            output.delete();
+            input.delete();
+        }
+    }
+
+    @Test
+    public void testConcurrentIntermediateMerges() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            checkBinaryRunsMerge(700, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void checkBinaryRunsMerge(int runCount, ExecutorService executor) throws IOException {
+        File tmpDirectory = Files.createTempDirectory("binaryRuns").toFile();
+        tmpDirectory.deleteOnExit();
+        List<File> runs = new ArrayList<>();
+        List<String> expect = new ArrayList<>();
+        for (int j = 0; j < runCount; j++) {
+            File run = File.createTempFile("run", ".run", tmpDirectory);
+            List<String> keys = new ArrayList<>();
+            for (int k = 0; k < 3; k++) {
+                keys.add(RandomString.random(8));
+            }
+            Collections.sort(keys);
+            try (BinaryRunWriter writer = new BinaryRunWriter(new FileOutputStream(run))) {
+                for (String key : keys) {
+                    writer.push(CsvRecords.of(new String[]{key, "a,\"quoted\"\nvalue"}, 0));
+                    expect.add(key + ",\"a,\"\"quoted\"\"\nvalue\"");
+                }
+            }
+            runs.add(run);
+        }
+        File out = File.createTempFile("merged", ".csv", tmpDirectory);
+        out.deleteOnExit();
+        long lines = SortedFilesMerger.mergeSortedCsvFiles(runs, out, CSVFormat.DEFAULT, DEFAULT_CMP, false, false,
+                DEFAULT_WRAPPER, MergeEngine.LOSER_TREE, RunFormat.BINARY, executor, 3);
+
+        assertEquals(expect.size(), lines);
+        Collections.sort(expect);
+        StringBuilder sb = new StringBuilder();
+        expect.forEach(e -> sb.append(e).append("\r\n"));
+        assertEquals(sb.toString(), new String(Files.readAllBytes(out.toPath())));
+        for (File run : runs) {
+            assertFalse(run.exists());
+        }
+    }
+
+    private String mergeInMemory(List<List<String>> runs, MergeEngine engine) throws IOException {
+        List<CsvFilelineStack> stacks = new ArrayList<>();
+        for (List<String> run : runs) {
+            stacks.add(new CsvFilelineStack(CSVParser.parse(String.join("\n", run), CSVFormat.DEFAULT)));
+        }
+        StringWriter out = new StringWriter();
+        SortedFilesMerger.mergeSortedFiles(stacks, new BufferedWriter(out), DEFAULT_CMP, false,
+                CSVFormat.DEFAULT, engine);
+        return out.toString();
+    }
+
     private void checkFileIsSorted(long expectLines, File output) throws IOException {
         try {
             long curLineCnt = 0;